@@ -0,0 +1,363 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Reads planes of one initialized reader asynchronously.
+ * <p>
+ * Each request returns a {@link Future}, and is read on the given
+ * executor.  At most a fixed number of requests per file are read at
+ * once; further requests are queued, and taken from the queue in order of
+ * their position in the file when the reader reports plane offsets (see
+ * {@link FormatReader#getPlaneOffset(int)}), or otherwise in order of
+ * plane index and position in the plane.
+ * <p>
+ * If the reader supports {@link IFormatReader#cloneReader() cloning},
+ * requests are read in parallel on per-thread clones (see
+ * {@link ConcurrentReader}); otherwise they are read one at a time on the
+ * reader itself, which must then not be used by other threads while
+ * requests are pending.  Plane offsets are always looked up on the reader
+ * itself, so its series may change briefly while a request is queued.
+ * <p>
+ * If the executor rejects a request, the request is read on the calling
+ * thread instead.
+ */
+public class AsyncReader implements Closeable {
+
+  // -- Constants --
+
+  /** Default maximum number of requests read at once. */
+  public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+  // -- Fields --
+
+  private final IFormatReader reader;
+  private final ConcurrentReader concurrentReader;
+  private final Executor executor;
+  private final int maxInFlight;
+
+  private final PriorityQueue<Request> pending =
+    new PriorityQueue<Request>(16, new RequestOrder());
+
+  /** Requests handed to the executor that have not finished. */
+  private final Set<Request> inFlight = new HashSet<Request>();
+
+  /** Number of requests being read right now. */
+  private int running;
+
+  private long sequence;
+  private boolean closed;
+
+  // -- Constructors --
+
+  /**
+   * Constructs an asynchronous reader for the given initialized reader,
+   * reading at most {@link #DEFAULT_MAX_IN_FLIGHT} requests at once.
+   */
+  public AsyncReader(IFormatReader reader, Executor executor) {
+    this(reader, executor, DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * Constructs an asynchronous reader for the given initialized reader,
+   * reading at most maxInFlight requests at once on the given executor.
+   * The executor is not shut down by {@link #close()}.
+   */
+  public AsyncReader(IFormatReader reader, Executor executor,
+    int maxInFlight)
+  {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException(
+        "Invalid number of requests: " + maxInFlight);
+    }
+    FormatTools.assertId(reader.getCurrentFile(), true, 1);
+    this.reader = reader;
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+    ConcurrentReader concurrent = null;
+    try {
+      concurrent = new ConcurrentReader(reader);
+    }
+    catch (FormatException e) {
+      // cloning is not supported; read on the reader itself
+    }
+    concurrentReader = concurrent;
+  }
+
+  // -- AsyncReader API methods --
+
+  /**
+   * Asynchronously obtains the specified image plane in the current core
+   * index of the reader.
+   *
+   * @see IFormatReader#openBytes(int)
+   */
+  public Future<byte[]> openBytesAsync(int no)
+    throws FormatException, IOException
+  {
+    int coreIndex = reader.getCoreIndex();
+    return openBytesAsync(coreIndex, no, 0, 0, getSizeX(coreIndex),
+      getSizeY(coreIndex));
+  }
+
+  /**
+   * Asynchronously obtains a sub-image of the specified image plane in the
+   * current core index of the reader.
+   *
+   * @see IFormatReader#openBytes(int, int, int, int, int)
+   */
+  public Future<byte[]> openBytesAsync(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    return openBytesAsync(reader.getCoreIndex(), no, x, y, w, h);
+  }
+
+  /**
+   * Asynchronously obtains a sub-image of the specified image plane in the
+   * given core index (series and resolution).
+   *
+   * @see IFormatReader#openBytes(int, int, int, int, int)
+   */
+  public Future<byte[]> openBytesAsync(final int coreIndex, final int no,
+    final int x, final int y, final int w, final int h)
+    throws FormatException, IOException
+  {
+    long offset = getPlaneOffset(coreIndex, no);
+    Request request = new Request(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws FormatException, IOException {
+        return read(coreIndex, no, x, y, w, h);
+      }
+    }, coreIndex, offset < 0 ? no : offset, y, x);
+
+    synchronized (this) {
+      if (closed) throw new IllegalStateException("Reader is closed");
+      request.sequence = sequence++;
+      pending.add(request);
+    }
+    dispatch();
+    return request;
+  }
+
+  /** Gets the number of requests waiting to be read. */
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /** Gets the number of requests being read. */
+  public synchronized int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  // -- Closeable API methods --
+
+  /**
+   * Cancels all requests that have not finished, waits for the requests
+   * that are being read to finish, and closes the clones used to read
+   * requests.  The wrapped reader is left open.
+   */
+  @Override
+  public void close() throws IOException {
+    boolean interrupted = false;
+    synchronized (this) {
+      closed = true;
+      for (Request request : pending) {
+        request.cancel(false);
+      }
+      pending.clear();
+      for (Request request : inFlight) {
+        request.cancel(false);
+      }
+      while (running > 0) {
+        try {
+          wait();
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+    if (concurrentReader != null) concurrentReader.close();
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Starts pending requests until the in-flight limit is reached.  Requests
+   * that the executor rejects are read on the calling thread, within this
+   * loop, so that the stack does not grow with the number of requests.
+   */
+  private void dispatch() {
+    while (true) {
+      final Request request;
+      synchronized (this) {
+        if (inFlight.size() >= maxInFlight || pending.isEmpty()) return;
+        request = pending.poll();
+        inFlight.add(request);
+      }
+      Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          execute(request);
+          dispatch();
+        }
+      };
+      try {
+        executor.execute(task);
+      }
+      catch (RejectedExecutionException e) {
+        execute(request);
+      }
+    }
+  }
+
+  /** Reads the given in-flight request, unless the reader is closed. */
+  private void execute(Request request) {
+    synchronized (this) {
+      if (closed) {
+        request.cancel(false);
+        inFlight.remove(request);
+        return;
+      }
+      running++;
+    }
+    try {
+      request.run();
+    }
+    finally {
+      synchronized (this) {
+        running--;
+        inFlight.remove(request);
+        notifyAll();
+      }
+    }
+  }
+
+  private byte[] read(int coreIndex, int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    if (concurrentReader != null) {
+      return concurrentReader.openBytes(coreIndex, no, x, y, w, h);
+    }
+    synchronized (reader) {
+      int currentIndex = reader.getCoreIndex();
+      try {
+        reader.setCoreIndex(coreIndex);
+        return reader.openBytes(no, x, y, w, h);
+      }
+      finally {
+        reader.setCoreIndex(currentIndex);
+      }
+    }
+  }
+
+  /**
+   * Gets the offset of the given plane, or -1 if it is not known.  The
+   * offset is looked up on the wrapped reader, rather than on a clone, so
+   * that no clone or file handle is created for the calling thread.
+   */
+  private long getPlaneOffset(int coreIndex, int no)
+    throws FormatException, IOException
+  {
+    if (!(reader instanceof FormatReader)) {
+      // wrappers may number planes differently
+      return -1;
+    }
+    synchronized (reader) {
+      int currentIndex = reader.getCoreIndex();
+      try {
+        reader.setCoreIndex(coreIndex);
+        return ((FormatReader) reader).getPlaneOffset(no);
+      }
+      finally {
+        reader.setCoreIndex(currentIndex);
+      }
+    }
+  }
+
+  private int getSizeX(int coreIndex) {
+    return reader.getCoreMetadataList().get(coreIndex).sizeX;
+  }
+
+  private int getSizeY(int coreIndex) {
+    return reader.getCoreMetadataList().get(coreIndex).sizeY;
+  }
+
+  // -- Helper classes --
+
+  /** A queued read, with the position used to order it. */
+  private static final class Request extends FutureTask<byte[]> {
+    final int coreIndex;
+    final long offset;
+    final int y;
+    final int x;
+    long sequence;
+
+    Request(Callable<byte[]> read, int coreIndex, long offset, int y, int x) {
+      super(read);
+      this.coreIndex = coreIndex;
+      this.offset = offset;
+      this.y = y;
+      this.x = x;
+    }
+  }
+
+  /** Orders requests by core index, offset, position and submission. */
+  private static final class RequestOrder implements Comparator<Request> {
+    @Override
+    public int compare(Request a, Request b) {
+      if (a.coreIndex != b.coreIndex) {
+        return a.coreIndex < b.coreIndex ? -1 : 1;
+      }
+      if (a.offset != b.offset) return a.offset < b.offset ? -1 : 1;
+      if (a.y != b.y) return a.y < b.y ? -1 : 1;
+      if (a.x != b.x) return a.x < b.x ? -1 : 1;
+      if (a.sequence != b.sequence) return a.sequence < b.sequence ? -1 : 1;
+      return 0;
+    }
+  }
+
+}
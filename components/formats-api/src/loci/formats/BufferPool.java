@@ -0,0 +1,76 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+/**
+ * A pool of byte arrays that can be reused for image planes, to avoid
+ * allocating a new array for every call to
+ * {@link IFormatReader#openBytes(int, int, int, int, int)}.
+ * <p>
+ * An array obtained from {@link #acquire(int)} belongs to the caller until
+ * it is passed to {@link #release(byte[])}; it must not be used after it has
+ * been released.  Arrays that are never released are simply garbage
+ * collected.  Implementations must be thread-safe.
+ *
+ * @see IFormatReader#setBufferPool(BufferPool)
+ */
+public interface BufferPool {
+
+  /**
+   * Gets an array of exactly the given length, reusing a released array if
+   * possible.  The contents of the array are zeroed, as if newly allocated.
+   */
+  byte[] acquire(int length);
+
+  /** Returns an array obtained from {@link #acquire(int)} to the pool. */
+  void release(byte[] buf);
+
+  /** Gets the number of calls to {@link #acquire(int)} that reused an array. */
+  long getHitCount();
+
+  /** Gets the number of calls to {@link #acquire(int)} that allocated. */
+  long getMissCount();
+
+  /**
+   * Gets the fraction of calls to {@link #acquire(int)} that reused an
+   * array, or 0 if there have been no calls.
+   */
+  double getHitRate();
+
+  /** Gets the total size in bytes of the arrays retained by the pool. */
+  long getRetainedBytes();
+
+  /** Discards all retained arrays. */
+  void clear();
+
+}
@@ -0,0 +1,224 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import loci.common.DataTools;
+
+/**
+ * Reader wrapper that keeps recently read tiles in a {@link TileCache}, so
+ * that repeated requests for the same region of the same plane are served
+ * without reading and decoding the file again.
+ * <p>
+ * Tiles are keyed by file, core index (i.e. the current series and
+ * resolution), plane index and region, so changing the series or resolution
+ * never returns stale data.  Like other readers, a CachingReader is not
+ * thread-safe; threads that need to share cached tiles should each use
+ * their own CachingReader constructed with the same TileCache.
+ * <p>
+ * To keep more tiles than the heap can comfortably hold, attach an
+ * {@link OffHeapTileCache} with {@link TileCache#setSecondTier}.
+ */
+public class CachingReader extends ReaderWrapper {
+
+  // -- Fields --
+
+  private final TileCache cache;
+
+  // -- Constructors --
+
+  /** Constructs a caching reader around a new image reader. */
+  public CachingReader() {
+    this(new ImageReader());
+  }
+
+  /** Constructs a caching reader around the given reader, with a new cache. */
+  public CachingReader(IFormatReader r) {
+    this(r, new TileCache());
+  }
+
+  /** Constructs a caching reader around the given reader and cache. */
+  public CachingReader(IFormatReader r, TileCache cache) {
+    super(r);
+    if (cache == null) {
+      throw new IllegalArgumentException("Tile cache cannot be null");
+    }
+    this.cache = cache;
+  }
+
+  // -- CachingReader API methods --
+
+  /** Gets the cache used by this reader. */
+  public TileCache getTileCache() {
+    return cache;
+  }
+
+  // -- IFormatReader API methods --
+
+  @Override
+  public byte[] openBytes(int no) throws FormatException, IOException {
+    return openBytes(no, 0, 0, getSizeX(), getSizeY());
+  }
+
+  @Override
+  public byte[] openBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    byte[] tile = getCachedTile(no, x, y, w, h);
+    if (tile != null) return tile.clone();
+    int ch = getRGBChannelCount();
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    byte[] buf;
+    try {
+      buf = DataTools.allocate(w, h, ch, bpp);
+    }
+    catch (IllegalArgumentException e) {
+      // let the wrapped reader report the problem
+      return reader.openBytes(no, x, y, w, h);
+    }
+    return readTile(no, buf, x, y, w, h);
+  }
+
+  @Override
+  public byte[] openBytes(int no, byte[] buf)
+    throws FormatException, IOException
+  {
+    return openBytes(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  @Override
+  public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    byte[] tile = getCachedTile(no, x, y, w, h);
+    if (tile != null && tile.length <= buf.length) {
+      System.arraycopy(tile, 0, buf, 0, tile.length);
+      return buf;
+    }
+    return readTile(no, buf, x, y, w, h);
+  }
+
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf)
+    throws FormatException, IOException
+  {
+    return openBytes(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf, int x, int y, int w,
+    int h) throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf.remaining(), x, y, w, h);
+    byte[] tile = getCachedTile(no, x, y, w, h);
+    if (tile == null) {
+      tile = readTile(no, new byte[FormatTools.getPlaneSize(this, w, h)],
+        x, y, w, h);
+    }
+    buf.put(tile, 0, FormatTools.getPlaneSize(this, w, h));
+    return buf;
+  }
+
+  /**
+   * Serves cached regions from the cache, and reads the others with a
+   * single batch request to the wrapped reader.
+   */
+  @Override
+  public byte[][] openBytes(List<TileRequest> tiles)
+    throws FormatException, IOException
+  {
+    byte[][] results = new byte[tiles.size()][];
+    List<TileRequest> misses = new ArrayList<TileRequest>();
+    List<Integer> missIndexes = new ArrayList<Integer>();
+    for (int i=0; i<results.length; i++) {
+      TileRequest t = tiles.get(i);
+      byte[] tile = getCachedTile(t.no, t.x, t.y, t.w, t.h);
+      if (tile != null) results[i] = tile.clone();
+      else {
+        misses.add(t);
+        missIndexes.add(i);
+      }
+    }
+    if (misses.isEmpty()) return results;
+
+    byte[][] read = reader.openBytes(misses);
+    for (int i=0; i<read.length; i++) {
+      TileRequest t = misses.get(i);
+      results[missIndexes.get(i)] = read[i];
+      TileCache.Key key = getKey(t.no, t.x, t.y, t.w, t.h);
+      if (key != null) cache.put(key, read[i].clone());
+    }
+    return results;
+  }
+
+  /** Clones the wrapped reader; the clone shares this reader's cache. */
+  @Override
+  public IFormatReader cloneReader() throws FormatException, IOException {
+    return new CachingReader(getReader().cloneReader(), cache);
+  }
+
+  // -- Helper methods --
+
+  private TileCache.Key getKey(int no, int x, int y, int w, int h) {
+    String file = getCurrentFile();
+    if (file == null) return null;
+    return new TileCache.Key(file, getCoreIndex(), no, x, y, w, h,
+      isNormalized());
+  }
+
+  /** Gets the cached tile for the given region, or null. */
+  private byte[] getCachedTile(int no, int x, int y, int w, int h) {
+    TileCache.Key key = getKey(no, x, y, w, h);
+    return key == null ? null : cache.get(key);
+  }
+
+  /** Reads a tile from the wrapped reader, and caches a copy of it. */
+  private byte[] readTile(int no, byte[] buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    byte[] result = reader.openBytes(no, buf, x, y, w, h);
+    TileCache.Key key = getKey(no, x, y, w, h);
+    if (key != null) {
+      int size = FormatTools.getPlaneSize(this, w, h);
+      byte[] tile = new byte[size];
+      System.arraycopy(result, 0, tile, 0, Math.min(size, result.length));
+      cache.put(key, tile);
+    }
+    return result;
+  }
+
+}
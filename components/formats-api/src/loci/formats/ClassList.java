@@ -33,11 +33,13 @@
 package loci.formats;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URL;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.List;
@@ -77,6 +79,11 @@ import org.slf4j.LoggerFactory;
  * will attempt to create a list of three classes . Additionally, if the
  * last class is added, two key/value pairs will be stored in the options map:
  * <i>package3.class3.key1=value</i> and <i>package3.class3.key2=value2</i>.
+ * <p>
+ * If a precompiled index of the configuration file (see
+ * {@link ClassListIndex}) is found beside it, the index is read instead of
+ * the text.  Classes marked as <i>[type=external]</i> that are not present
+ * on the class path are skipped without attempting to load them.
  *
  * @author Curtis Rueden ctrueden at wisc.edu
  */
@@ -148,19 +155,7 @@ public class ClassList<T> {
    */
   public Map<String, String> parseOptions(String s)
    {
-      Map<String, String> map = new HashMap<String, String>();
-      StringTokenizer st1 = new StringTokenizer(s, ",");
-      StringTokenizer st2;
-      while (st1.hasMoreTokens()) {
-        st2 = new StringTokenizer(st1.nextToken(), "=");
-        if (st2.hasMoreTokens()) {
-          String key = st2.nextToken();
-          if (st2.hasMoreTokens()) {
-            map.put(key, st2.nextToken());
-          }
-        }
-      }
-      return map;
+      return parseOptionMap(s);
    }
 
   /**
@@ -175,54 +170,9 @@ public class ClassList<T> {
    */
   public void parseLine(String line)
    {
-      // Ignore characters following # sign (comments)
-      int ndx = line.indexOf('#');
-      if (ndx >= 0) line = line.substring(0, ndx);
-      line = line.trim();
-      if (line.equals("")) return;
-
-      Map<String, String> o = new HashMap<String, String>();
-      if (line.endsWith("]")) {
-        ndx = line.indexOf('[');
-        if (ndx >= 0) {
-          o = parseOptions(line.substring(ndx + 1, line.length() - 1));
-          line = line.substring(0, ndx).trim();
-        }
-      }
-
-      // load class
-      Class<? extends T> c = null;
-      try {
-        Class<?> rawClass = Class.forName(line);
-        c = cast(rawClass);
-      }
-      catch (ClassNotFoundException exc) {
-        LOGGER.debug("Could not find {}", line, exc);
-      }
-      catch (NoClassDefFoundError err) {
-        LOGGER.debug("Could not find {}", line, err);
-      }
-      catch (ExceptionInInitializerError err) {
-        LOGGER.debug("Failed to create an instance of {}", line, err);
-      }
-      catch (RuntimeException exc) {
-        // HACK: workaround for bug in Apache Axis2
-        String msg = exc.getMessage();
-        if (msg != null && msg.indexOf("ClassNotFound") < 0) throw exc;
-        LOGGER.debug("", exc);
-      }
-      if (c == null) {
-        if (!o.containsKey("type") || !o.get("type").equals("external")) {
-          LOGGER.error("\"{}\" is not valid.", line);
-        }
-      } else {
-        classes.add(c);
-        for (Map.Entry<String, String> entry : o.entrySet())
-        {
-          addOption(line + "." + entry.getKey(), entry.getValue());
-        }
-      }
-  }
+      Entry entry = parseEntry(line);
+      if (entry != null) addEntry(entry);
+   }
 
    /**
     * Parses a list of classes from a configuration file.
@@ -234,6 +184,8 @@ public class ClassList<T> {
   public void parseFile(String file, Class<?> location)
     throws IOException
   {
+    if (parseIndex(file, location)) return;
+
     // locate an input stream
     InputStream stream = null;
     if (location == null) {
@@ -343,6 +295,156 @@ public class ClassList<T> {
 
   // -- Helper methods --
 
+  /** Parses a string of options; see {@link #parseOptions(String)}. */
+  static Map<String, String> parseOptionMap(String s) {
+    Map<String, String> map = new HashMap<String, String>();
+    StringTokenizer st1 = new StringTokenizer(s, ",");
+    StringTokenizer st2;
+    while (st1.hasMoreTokens()) {
+      st2 = new StringTokenizer(st1.nextToken(), "=");
+      if (st2.hasMoreTokens()) {
+        String key = st2.nextToken();
+        if (st2.hasMoreTokens()) {
+          map.put(key, st2.nextToken());
+        }
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Parses the class name and options from a line of a configuration file,
+   * without loading the class.
+   *
+   * @return the parsed entry, or null if the line does not name a class
+   */
+  static Entry parseEntry(String line) {
+    // Ignore characters following # sign (comments)
+    int ndx = line.indexOf('#');
+    if (ndx >= 0) line = line.substring(0, ndx);
+    line = line.trim();
+    if (line.equals("")) return null;
+
+    Map<String, String> o = new HashMap<String, String>();
+    if (line.endsWith("]")) {
+      ndx = line.indexOf('[');
+      if (ndx >= 0) {
+        o = parseOptionMap(line.substring(ndx + 1, line.length() - 1));
+        line = line.substring(0, ndx).trim();
+      }
+    }
+    return new Entry(line, o);
+  }
+
+  /** Loads the class named by the given entry and adds it to the list. */
+  private void addEntry(Entry entry) {
+    String line = entry.className;
+    Map<String, String> o = entry.options;
+    boolean external = "external".equals(o.get("type"));
+
+    // external classes are often absent; avoid a failed class lookup
+    if (external && !isOnClassPath(line)) {
+      LOGGER.debug("Skipping unavailable external class {}", line);
+      return;
+    }
+
+    // load class
+    Class<? extends T> c = null;
+    try {
+      Class<?> rawClass = Class.forName(line);
+      c = cast(rawClass);
+    }
+    catch (ClassNotFoundException exc) {
+      LOGGER.debug("Could not find {}", line, exc);
+    }
+    catch (NoClassDefFoundError err) {
+      LOGGER.debug("Could not find {}", line, err);
+    }
+    catch (ExceptionInInitializerError err) {
+      LOGGER.debug("Failed to create an instance of {}", line, err);
+    }
+    catch (RuntimeException exc) {
+      // HACK: workaround for bug in Apache Axis2
+      String msg = exc.getMessage();
+      if (msg != null && msg.indexOf("ClassNotFound") < 0) throw exc;
+      LOGGER.debug("", exc);
+    }
+    if (c == null) {
+      if (!external) {
+        LOGGER.error("\"{}\" is not valid.", line);
+      }
+    } else {
+      classes.add(c);
+      for (Map.Entry<String, String> option : o.entrySet())
+      {
+        addOption(line + "." + option.getKey(), option.getValue());
+      }
+    }
+  }
+
+  /**
+   * Reads the precompiled index of the given configuration file, if there
+   * is an up-to-date index beside it.
+   *
+   * @return true if the class list was read from the index
+   */
+  private boolean parseIndex(String file, Class<?> location) {
+    String indexName = file + ClassListIndex.SUFFIX;
+    InputStream stream = null;
+    try {
+      if (location == null) {
+        File text = new File(file);
+        File index = new File(indexName);
+        if (!text.exists() || !index.exists() ||
+          index.lastModified() < text.lastModified())
+        {
+          return false;
+        }
+        stream = new FileInputStream(index);
+      }
+      else {
+        // an index is only valid for the copy of the file it was built from
+        URL text = location.getResource(file);
+        URL index = location.getResource(indexName);
+        if (text == null || index == null ||
+          !index.toString().equals(text.toString() + ClassListIndex.SUFFIX))
+        {
+          return false;
+        }
+        stream = index.openStream();
+      }
+      List<Entry> entries = ClassListIndex.read(stream);
+      for (Entry entry : entries) {
+        addEntry(entry);
+      }
+      return true;
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not read {}", indexName, e);
+      return false;
+    }
+    finally {
+      if (stream != null) {
+        try {
+          stream.close();
+        }
+        catch (IOException e) {
+          LOGGER.debug("Could not close {}", indexName, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks whether the given class can be found by the class loader that
+   * {@link Class#forName(String)} would use, without loading it.
+   */
+  private static boolean isOnClassPath(String className) {
+    ClassLoader loader = ClassList.class.getClassLoader();
+    if (loader == null) loader = ClassLoader.getSystemClassLoader();
+    return loader.getResource(className.replace('.', '/') + ".class") != null;
+  }
+
   /**
    * Cast the given class to something that extends the base class.
    * @param rawClass the class to be cast
@@ -353,4 +455,17 @@ public class ClassList<T> {
     return (Class<? extends T>) rawClass;
   }
 
+  // -- Helper classes --
+
+  /** A class name and its options, as listed in a configuration file. */
+  static class Entry {
+    final String className;
+    final Map<String, String> options;
+
+    Entry(String className, Map<String, String> options) {
+      this.className = className;
+      this.options = options;
+    }
+  }
+
 }
@@ -0,0 +1,184 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import loci.common.Constants;
+
+/**
+ * ClassListIndex compiles a {@link ClassList} configuration file, such as
+ * readers.txt or writers.txt, into a binary index that can be read without
+ * parsing the text.
+ * <p>
+ * The index of a configuration file is written beside it, with the suffix
+ * {@link #SUFFIX}.  The build generates indexes for the built-in
+ * configuration files; {@link ClassList} only reads an index found in the
+ * same location as the text file it was built from (and, for files on disk,
+ * not older than it), so a configuration file placed earlier on the class
+ * path or edited after the build overrides the index.
+ * <p>
+ * Usage: java loci.formats.ClassListIndex file1.txt [file2.txt ...]
+ */
+public final class ClassListIndex {
+
+  // -- Constants --
+
+  /** Suffix appended to the configuration file name to name its index. */
+  public static final String SUFFIX = ".idx";
+
+  /** Identifies class list index files ("BFCL"). */
+  private static final int MAGIC = 0x4246434c;
+
+  /** Version of the index format. */
+  private static final int VERSION = 1;
+
+  // -- Constructor --
+
+  private ClassListIndex() { }
+
+  // -- ClassListIndex API methods --
+
+  /**
+   * Compiles the given configuration file into an index, written to the
+   * same path with {@link #SUFFIX} appended.
+   * @throws IOException if the configuration file cannot be read or the
+   *   index cannot be written
+   */
+  public static void compile(String file) throws IOException {
+    List<ClassList.Entry> entries = new ArrayList<ClassList.Entry>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+      new FileInputStream(file), Constants.ENCODING));
+    try {
+      while (true) {
+        String line = in.readLine();
+        if (line == null) break;
+        ClassList.Entry entry = ClassList.parseEntry(line);
+        if (entry != null) entries.add(entry);
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    File index = new File(file + SUFFIX);
+    OutputStream out = new FileOutputStream(index);
+    try {
+      write(entries, out);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  // -- Main method --
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println(
+        "Usage: java loci.formats.ClassListIndex file1.txt [file2.txt ...]");
+      System.exit(1);
+    }
+    for (String file : args) {
+      compile(file);
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Writes the given entries in index form. */
+  static void write(List<ClassList.Entry> entries, OutputStream stream)
+    throws IOException
+  {
+    DataOutputStream out =
+      new DataOutputStream(new BufferedOutputStream(stream));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(entries.size());
+    for (ClassList.Entry entry : entries) {
+      out.writeUTF(entry.className);
+      out.writeShort(entry.options.size());
+      for (Map.Entry<String, String> option : entry.options.entrySet()) {
+        out.writeUTF(option.getKey());
+        out.writeUTF(option.getValue());
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Reads entries in index form.
+   * @throws IOException if the stream is not a valid index
+   */
+  static List<ClassList.Entry> read(InputStream stream) throws IOException {
+    DataInputStream in =
+      new DataInputStream(new BufferedInputStream(stream));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a class list index");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported class list index version " + version);
+    }
+    int count = in.readInt();
+    if (count < 0) throw new IOException("Invalid entry count " + count);
+    List<ClassList.Entry> entries = new ArrayList<ClassList.Entry>(count);
+    for (int i=0; i<count; i++) {
+      String className = in.readUTF();
+      int optionCount = in.readUnsignedShort();
+      Map<String, String> options = new HashMap<String, String>();
+      for (int j=0; j<optionCount; j++) {
+        String key = in.readUTF();
+        options.put(key, in.readUTF());
+      }
+      entries.add(new ClassList.Entry(className, options));
+    }
+    return entries;
+  }
+
+}
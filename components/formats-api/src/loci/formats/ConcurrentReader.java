@@ -0,0 +1,189 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads planes of one initialized reader from several threads at once.
+ * <p>
+ * Each calling thread is given its own clone of the reader (see
+ * {@link IFormatReader#cloneReader()}), which shares the core metadata,
+ * metadata tables and MetadataStore with the original but has its own
+ * stream and series position.  Threads can therefore read planes in
+ * parallel without initializing one reader per thread.  The underlying
+ * format reader must declare {@link FormatReader#isShallowCopySupported()},
+ * and any {@link ReaderWrapper}s around it must override
+ * {@link ReaderWrapper#cloneReader()}.
+ * <p>
+ * The wrapped reader itself is never used for reading, and remains
+ * available to its owner; {@link #close()} closes the clones' streams but
+ * not the wrapped reader.
+ */
+public class ConcurrentReader implements Closeable {
+
+  // -- Fields --
+
+  private final IFormatReader reader;
+
+  private final ThreadLocal<IFormatReader> threadReader =
+    new ThreadLocal<IFormatReader>();
+
+  /** All clones handed out so far, so that they can be closed. */
+  private final List<IFormatReader> copies = new ArrayList<IFormatReader>();
+
+  private volatile boolean closed;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a concurrent reader for the given initialized reader, which
+   * may be an {@link ImageReader} or a stack of {@link ReaderWrapper}s.
+   *
+   * @throws FormatException if the reader does not support cloning.
+   */
+  public ConcurrentReader(IFormatReader reader) throws FormatException {
+    IFormatReader r = reader;
+    while (r instanceof ReaderWrapper || r instanceof ImageReader) {
+      if (r instanceof ImageReader) r = ((ImageReader) r).getReader();
+      else {
+        if (!overridesCloneReader(r)) {
+          throw new FormatException(
+            r.getClass().getName() + " does not support cloning");
+        }
+        r = ((ReaderWrapper) r).getReader();
+      }
+    }
+    if (!(r instanceof FormatReader) ||
+      !((FormatReader) r).isShallowCopySupported())
+    {
+      throw new FormatException(
+        r.getClass().getName() + " does not support cloning");
+    }
+    FormatTools.assertId(reader.getCurrentFile(), true, 1);
+    this.reader = reader;
+  }
+
+  // -- ConcurrentReader API methods --
+
+  /**
+   * Gets the calling thread's clone of the reader, creating it on first
+   * use.  The clone must not be passed to other threads, or closed by the
+   * caller.
+   */
+  public IFormatReader getReader() throws FormatException, IOException {
+    IFormatReader copy = threadReader.get();
+    if (copy == null) {
+      synchronized (copies) {
+        if (closed) throw new IllegalStateException("Reader is closed");
+        copy = reader.cloneReader();
+        copies.add(copy);
+      }
+      threadReader.set(copy);
+    }
+    else if (closed) {
+      throw new IllegalStateException("Reader is closed");
+    }
+    return copy;
+  }
+
+  /**
+   * Obtains a sub-image of the specified image plane in the given core
+   * index (series and resolution), using the calling thread's clone.
+   *
+   * @see IFormatReader#openBytes(int, int, int, int, int)
+   */
+  public byte[] openBytes(int coreIndex, int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    IFormatReader copy = getReader();
+    copy.setCoreIndex(coreIndex);
+    return copy.openBytes(no, x, y, w, h);
+  }
+
+  /**
+   * Obtains a sub-image of the specified image plane in the given core
+   * index (series and resolution) into a pre-allocated byte array, using
+   * the calling thread's clone.
+   *
+   * @see IFormatReader#openBytes(int, byte[], int, int, int, int)
+   */
+  public byte[] openBytes(int coreIndex, int no, byte[] buf, int x, int y,
+    int w, int h) throws FormatException, IOException
+  {
+    IFormatReader copy = getReader();
+    copy.setCoreIndex(coreIndex);
+    return copy.openBytes(no, buf, x, y, w, h);
+  }
+
+  /** Gets the number of clones created so far, i.e. one per thread. */
+  public int getCopyCount() {
+    synchronized (copies) {
+      return copies.size();
+    }
+  }
+
+  // -- Closeable API methods --
+
+  /**
+   * Closes the streams of all clones.  The clones must no longer be in use,
+   * and the wrapped reader is left open.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (copies) {
+      closed = true;
+      for (IFormatReader copy : copies) {
+        copy.close(true);
+      }
+      copies.clear();
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Whether the given wrapper replaces ReaderWrapper's refusal to clone. */
+  private static boolean overridesCloneReader(IFormatReader wrapper) {
+    try {
+      return wrapper.getClass().getMethod("cloneReader")
+        .getDeclaringClass() != ReaderWrapper.class;
+    }
+    catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,620 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies every plane of an initialized reader to an initialized writer,
+ * overlapping reading, pixel transformation and writing.
+ * <p>
+ * Planes are read by one or more reader threads, optionally passed through
+ * a {@link PlaneTransform} on one or more transform threads, and written on
+ * the calling thread, since writers are not thread-safe.  The stages are
+ * connected by bounded queues, and at most {@link #getQueueSize()} planes
+ * are in flight at any time.  Planes of all series are read in parallel
+ * when the reader can be cloned (see {@link ConcurrentReader}); otherwise a
+ * single reader thread uses the reader itself.  Unless ordering is disabled
+ * with {@link #setOrdered(boolean)}, planes are written in series and plane
+ * order, as most writers require; the pipeline reorders them itself, and
+ * does not change the writer's settings.
+ * <p>
+ * Each stage keeps {@link StageStatistics} that can be inspected once
+ * {@link #run()} has returned.
+ *
+ * @see FormatTools#convert(IFormatReader, IFormatWriter, String)
+ */
+public class ConversionPipeline {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ConversionPipeline.class);
+
+  /** Default maximum number of planes in flight. */
+  public static final int DEFAULT_QUEUE_SIZE = 8;
+
+  /** How often blocked stages check whether another stage has failed. */
+  private static final long POLL_MILLIS = 100;
+
+  // -- Fields --
+
+  private final IFormatReader input;
+  private final IFormatWriter output;
+
+  private int readerThreads =
+    Math.min(4, Runtime.getRuntime().availableProcessors());
+  private int transformThreads = 1;
+  private int queueSize = DEFAULT_QUEUE_SIZE;
+  private boolean ordered = true;
+  private boolean recycleBuffers;
+  private PlaneTransform transform;
+
+  private final StageStatistics readStats = new StageStatistics("read");
+  private final StageStatistics transformStats =
+    new StageStatistics("transform");
+  private final StageStatistics writeStats = new StageStatistics("write");
+  private long elapsedNanos;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a pipeline that copies the planes of the given reader, on
+   * which setId must already have been called, to the given writer, on
+   * which setId must also have been called.  Neither is closed by the
+   * pipeline.
+   */
+  public ConversionPipeline(IFormatReader input, IFormatWriter output) {
+    if (input == null || output == null) {
+      throw new IllegalArgumentException("Reader and writer cannot be null");
+    }
+    this.input = input;
+    this.output = output;
+  }
+
+  // -- ConversionPipeline API methods --
+
+  /**
+   * Sets the number of threads that read planes.  More than one thread is
+   * only used if the reader can be cloned.
+   */
+  public void setReaderThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + threads);
+    }
+    readerThreads = threads;
+  }
+
+  /** Gets the number of threads that read planes. */
+  public int getReaderThreads() {
+    return readerThreads;
+  }
+
+  /** Sets the number of threads that apply the plane transform. */
+  public void setTransformThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + threads);
+    }
+    transformThreads = threads;
+  }
+
+  /** Gets the number of threads that apply the plane transform. */
+  public int getTransformThreads() {
+    return transformThreads;
+  }
+
+  /** Sets the maximum number of planes in flight between the stages. */
+  public void setQueueSize(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Invalid queue size: " + size);
+    }
+    queueSize = size;
+  }
+
+  /** Gets the maximum number of planes in flight between the stages. */
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  /**
+   * Sets whether planes must be written in series and plane order.  This
+   * is true by default; only disable it for writers that accept planes in
+   * any order.
+   */
+  public void setOrdered(boolean ordered) {
+    this.ordered = ordered;
+  }
+
+  /** Returns true if planes are written in series and plane order. */
+  public boolean isOrdered() {
+    return ordered;
+  }
+
+  /**
+   * Sets whether plane buffers are taken from the reader's
+   * {@link BufferPool}, and returned to it once the writer has saved them.
+   * This is false by default; only enable it for writers that do not keep
+   * a reference to the array passed to saveBytes after it returns.
+   */
+  public void setRecycleBuffers(boolean recycle) {
+    recycleBuffers = recycle;
+  }
+
+  /** Returns true if plane buffers are returned to the reader's pool. */
+  public boolean isRecycleBuffers() {
+    return recycleBuffers;
+  }
+
+  /** Sets the transform applied to each plane, or null for none. */
+  public void setTransform(PlaneTransform transform) {
+    this.transform = transform;
+  }
+
+  /** Gets the transform applied to each plane, or null. */
+  public PlaneTransform getTransform() {
+    return transform;
+  }
+
+  /** Gets the statistics of the read stage. */
+  public StageStatistics getReadStatistics() {
+    return readStats;
+  }
+
+  /** Gets the statistics of the transform stage. */
+  public StageStatistics getTransformStatistics() {
+    return transformStats;
+  }
+
+  /** Gets the statistics of the write stage. */
+  public StageStatistics getWriteStatistics() {
+    return writeStats;
+  }
+
+  /** Gets the wall-clock duration of the last call to {@link #run()}. */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * Copies all planes of all series from the reader to the writer.  The
+   * reader's series and resolution are restored before this returns, and
+   * no pipeline thread is still using the reader by then, even if the
+   * conversion failed.
+   *
+   * @throws FormatException if a plane could not be read, transformed or
+   *   written.
+   * @throws IOException if there is an I/O-related error, or the calling
+   *   thread is interrupted.
+   */
+  public void run() throws FormatException, IOException {
+    long start = System.nanoTime();
+    readStats.reset();
+    transformStats.reset();
+    writeStats.reset();
+
+    int seriesCount = input.getSeriesCount();
+    int originalCoreIndex = input.getCoreIndex();
+    int[] firstPlane = new int[seriesCount + 1];
+    int[] coreIndex = new int[seriesCount];
+    int[] sizeX = new int[seriesCount];
+    int[] sizeY = new int[seriesCount];
+    int[] planeSize = new int[seriesCount];
+    for (int s=0; s<seriesCount; s++) {
+      input.setSeries(s);
+      firstPlane[s + 1] = firstPlane[s] + input.getImageCount();
+      coreIndex[s] = input.getCoreIndex();
+      sizeX[s] = input.getSizeX();
+      sizeY[s] = input.getSizeY();
+      planeSize[s] = FormatTools.getPlaneSize(input);
+    }
+    input.setCoreIndex(originalCoreIndex);
+    int total = firstPlane[seriesCount];
+    if (total == 0) return;
+
+    ConcurrentReader concurrent = null;
+    if (readerThreads > 1) {
+      try {
+        concurrent = new ConcurrentReader(input);
+      }
+      catch (FormatException e) {
+        LOGGER.debug("Reading planes on a single thread", e);
+      }
+    }
+    int readers = concurrent == null ? 1 : readerThreads;
+    int transformers = transform == null ? 0 : transformThreads;
+    BufferPool pool = recycleBuffers ? input.getBufferPool() : null;
+
+    Shared shared = new Shared(input, concurrent, pool,
+      firstPlane, coreIndex, sizeX, sizeY, planeSize, queueSize);
+    ExecutorService threads = Executors.newFixedThreadPool(
+      readers + transformers, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t =
+            new Thread(r, "ConversionPipeline-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    try {
+      BlockingQueue<Plane> written = shared.read;
+      if (transformers > 0) {
+        written = new ArrayBlockingQueue<Plane>(queueSize);
+        for (int i=0; i<transformers; i++) {
+          threads.execute(new TransformStage(shared, written));
+        }
+      }
+      for (int i=0; i<readers; i++) {
+        threads.execute(new ReadStage(shared));
+      }
+      write(shared, written, total);
+    }
+    finally {
+      threads.shutdownNow();
+      awaitTermination(threads);
+      if (concurrent != null) concurrent.close();
+      input.setCoreIndex(originalCoreIndex);
+      elapsedNanos = System.nanoTime() - start;
+      LOGGER.debug("Converted {} planes in {} ms: {}, {}, {}", new Object[] {
+        total, elapsedNanos / 1000000, readStats, transformStats,
+        writeStats});
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Waits until the stages have stopped, so that none of them is still
+   * reading when the readers are closed.  A read in progress does not
+   * necessarily stop when it is interrupted, so this waits for it.
+   */
+  private static void awaitTermination(ExecutorService threads) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        if (threads.awaitTermination(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+          break;
+        }
+      }
+      catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  /** Writes planes on the calling thread until all have been written. */
+  private void write(Shared shared, BlockingQueue<Plane> queue, int total)
+    throws FormatException, IOException
+  {
+    Map<Integer, Plane> pending = new HashMap<Integer, Plane>();
+    int next = 0;
+    int count = 0;
+    int series = -1;
+    while (count < total) {
+      shared.checkFailure();
+      Plane plane;
+      if (ordered && pending.containsKey(next)) {
+        plane = pending.remove(next);
+      }
+      else {
+        try {
+          plane = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while converting", e);
+        }
+        if (plane == null) continue;
+        if (ordered && plane.index != next) {
+          pending.put(plane.index, plane);
+          continue;
+        }
+      }
+
+      if (plane.series != series) {
+        series = plane.series;
+        output.setSeries(series);
+      }
+      long start = System.nanoTime();
+      output.saveBytes(plane.no, plane.bytes);
+      writeStats.add(plane.bytes.length, System.nanoTime() - start);
+      if (shared.pool != null) shared.pool.release(plane.bytes);
+      shared.permits.release();
+      count++;
+      next++;
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Transforms planes between reading and writing. */
+  public interface PlaneTransform {
+
+    /**
+     * Transforms one plane.  This is called concurrently from the transform
+     * threads, so implementations must be thread-safe.
+     *
+     * @param series the series to which the plane belongs
+     * @param no the plane index within the series
+     * @param plane the plane, as returned by
+     *   {@link IFormatReader#openBytes(int, byte[])}
+     * @return the transformed plane, which may be the given array
+     */
+    byte[] transform(int series, int no, byte[] plane)
+      throws FormatException, IOException;
+
+  }
+
+  /** Counts the planes, bytes and busy time of one stage. */
+  public static final class StageStatistics {
+    private final String name;
+    private final AtomicLong planes = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    StageStatistics(String name) {
+      this.name = name;
+    }
+
+    /** Gets the name of the stage. */
+    public String getName() {
+      return name;
+    }
+
+    /** Gets the number of planes processed by the stage. */
+    public long getPlaneCount() {
+      return planes.get();
+    }
+
+    /** Gets the number of bytes processed by the stage. */
+    public long getByteCount() {
+      return bytes.get();
+    }
+
+    /**
+     * Gets the time spent processing planes, summed over all of the stage's
+     * threads.
+     */
+    public long getBusyNanos() {
+      return busyNanos.get();
+    }
+
+    /**
+     * Gets the stage's throughput in bytes per second of busy time per
+     * thread, or 0 if it has processed nothing.
+     */
+    public double getThroughput() {
+      long nanos = busyNanos.get();
+      return nanos == 0 ? 0 : bytes.get() * 1e9 / nanos;
+    }
+
+    void add(long byteCount, long nanos) {
+      planes.incrementAndGet();
+      bytes.addAndGet(byteCount);
+      busyNanos.addAndGet(nanos);
+    }
+
+    void reset() {
+      planes.set(0);
+      bytes.set(0);
+      busyNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %d planes, %.1f MB/s", name, planes.get(),
+        getThroughput() / (1024 * 1024));
+    }
+  }
+
+  /** A plane passing through the pipeline. */
+  private static final class Plane {
+    final int index;
+    final int series;
+    final int no;
+    byte[] bytes;
+
+    Plane(int index, int series, int no, byte[] bytes) {
+      this.index = index;
+      this.series = series;
+      this.no = no;
+      this.bytes = bytes;
+    }
+  }
+
+  /** State shared by the stages of one run. */
+  private static final class Shared {
+    final IFormatReader input;
+    final ConcurrentReader concurrent;
+    final BufferPool pool;
+    final int[] firstPlane;
+    final int[] coreIndex;
+    final int[] sizeX;
+    final int[] sizeY;
+    final int[] planeSize;
+
+    /** Limits the planes in flight; released once a plane is written. */
+    final Semaphore permits;
+    final AtomicInteger nextIndex = new AtomicInteger();
+    final BlockingQueue<Plane> read;
+    final AtomicReference<Throwable> failure =
+      new AtomicReference<Throwable>();
+
+    Shared(IFormatReader input, ConcurrentReader concurrent, BufferPool pool,
+      int[] firstPlane, int[] coreIndex, int[] sizeX, int[] sizeY,
+      int[] planeSize, int queueSize)
+    {
+      this.input = input;
+      this.concurrent = concurrent;
+      this.pool = pool;
+      this.firstPlane = firstPlane;
+      this.coreIndex = coreIndex;
+      this.sizeX = sizeX;
+      this.sizeY = sizeY;
+      this.planeSize = planeSize;
+      permits = new Semaphore(queueSize);
+      // every plane in a queue holds a permit, so puts never block for long
+      read = new ArrayBlockingQueue<Plane>(queueSize);
+    }
+
+    /** Rethrows the first failure of any stage. */
+    void checkFailure() throws FormatException, IOException {
+      Throwable t = failure.get();
+      if (t == null) return;
+      if (t instanceof FormatException) throw (FormatException) t;
+      if (t instanceof IOException) throw (IOException) t;
+      if (t instanceof RuntimeException) throw (RuntimeException) t;
+      if (t instanceof Error) throw (Error) t;
+      throw new FormatException(t);
+    }
+
+    void fail(Throwable t) {
+      if (!failure.compareAndSet(null, t) &&
+        !(t instanceof InterruptedException))
+      {
+        LOGGER.debug("Additional conversion failure", t);
+      }
+    }
+  }
+
+  /** Reads planes in index order until all have been claimed. */
+  private final class ReadStage implements Runnable {
+    private final Shared shared;
+
+    ReadStage(Shared shared) {
+      this.shared = shared;
+    }
+
+    @Override
+    public void run() {
+      int total = shared.firstPlane[shared.firstPlane.length - 1];
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          // take a permit before claiming an index, so that the lowest
+          // unwritten plane is always in flight and ordering cannot stall
+          shared.permits.acquire();
+          int index = shared.nextIndex.getAndIncrement();
+          if (index >= total) {
+            shared.permits.release();
+            return;
+          }
+          int series = getSeries(index);
+          int no = index - shared.firstPlane[series];
+          int size = shared.planeSize[series];
+          byte[] buf =
+            shared.pool == null ? new byte[size] : shared.pool.acquire(size);
+
+          long start = System.nanoTime();
+          if (shared.concurrent != null) {
+            buf = shared.concurrent.openBytes(shared.coreIndex[series], no,
+              buf, 0, 0, shared.sizeX[series], shared.sizeY[series]);
+          }
+          else {
+            if (shared.input.getSeries() != series) {
+              shared.input.setSeries(series);
+            }
+            buf = shared.input.openBytes(no, buf);
+          }
+          readStats.add(buf.length, System.nanoTime() - start);
+          shared.read.put(new Plane(index, series, no, buf));
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      catch (Throwable t) {
+        shared.fail(t);
+      }
+    }
+
+    private int getSeries(int index) {
+      int series = 0;
+      while (index >= shared.firstPlane[series + 1]) series++;
+      return series;
+    }
+  }
+
+  /** Applies the plane transform to planes as they are read. */
+  private final class TransformStage implements Runnable {
+    private final Shared shared;
+    private final BlockingQueue<Plane> out;
+
+    TransformStage(Shared shared, BlockingQueue<Plane> out) {
+      this.shared = shared;
+      this.out = out;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          Plane plane = shared.read.take();
+          long start = System.nanoTime();
+          byte[] result = transform.transform(plane.series, plane.no,
+            plane.bytes);
+          transformStats.add(result.length, System.nanoTime() - start);
+          if (result != plane.bytes && shared.pool != null) {
+            shared.pool.release(plane.bytes);
+          }
+          plane.bytes = result;
+          out.put(plane);
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      catch (Throwable t) {
+        shared.fail(t);
+      }
+    }
+  }
+
+}
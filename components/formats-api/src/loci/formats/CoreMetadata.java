@@ -143,7 +143,7 @@ public class CoreMetadata implements Cloneable {
   // -- Constructors --
 
   public CoreMetadata() {
-    seriesMetadata = new Hashtable<String, Object>();
+    seriesMetadata = new MetadataTable();
   }
 
   public CoreMetadata(IFormatReader r, int coreIndex) {
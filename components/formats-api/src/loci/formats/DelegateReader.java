@@ -33,7 +33,9 @@
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import loci.common.RandomAccessInputStream;
@@ -173,6 +175,14 @@ public abstract class DelegateReader extends FormatReader {
     legacyReader.setFlattenedResolutions(flattened);
   }
 
+  /* @see IFormatReader#setBufferPool(BufferPool) */
+  @Override
+  public void setBufferPool(BufferPool pool) {
+    super.setBufferPool(pool);
+    nativeReader.setBufferPool(pool);
+    legacyReader.setBufferPool(pool);
+  }
+
   /* @see IFormatReader#setMetadataFiltered(boolean) */
   @Override
   public void setMetadataFiltered(boolean filter) {
@@ -227,6 +237,28 @@ public abstract class DelegateReader extends FormatReader {
     return nativeReader.openBytes(no, buf, x, y, w, h);
   }
 
+  /* @see IFormatReader#openBytes(int, ByteBuffer, int, int, int, int) */
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf, int x, int y, int w,
+    int h) throws FormatException, IOException
+  {
+    if (callLegacyReader()) {
+      return legacyReader.openBytes(no, buf, x, y, w, h);
+    }
+    return nativeReader.openBytes(no, buf, x, y, w, h);
+  }
+
+  /* @see IFormatReader#openBytes(List) */
+  @Override
+  public byte[][] openBytes(List<TileRequest> tiles)
+    throws FormatException, IOException
+  {
+    if (callLegacyReader()) {
+      return legacyReader.openBytes(tiles);
+    }
+    return nativeReader.openBytes(tiles);
+  }
+
   /* @see IFormatReader#close(boolean) */
   @Override
   public void close(boolean fileOnly) throws IOException {
@@ -0,0 +1,290 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import loci.common.Location;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DetectionCache remembers which reader class was used to open a file,
+ * so that {@link ImageReader} can skip format detection for files that it
+ * has seen before.
+ *
+ * Entries are keyed by absolute path and validated against the length and
+ * last modification time of the file; a file that has changed since it was
+ * cached is detected again.  The cache can be saved to and loaded from a
+ * compact binary file so that a new JVM starts with the results of
+ * previous runs.  All methods are thread-safe, so one cache may be shared
+ * by several {@link ImageReader}s.
+ */
+public class DetectionCache {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(DetectionCache.class);
+
+  /** Identifies a detection cache file. */
+  private static final int MAGIC = 0x42464443;
+
+  /** Version of the cache file format. */
+  private static final int VERSION = 1;
+
+  // -- Fields --
+
+  /** Cached entries, keyed by absolute path. */
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  /** File to which the cache is saved, or null if not persistent. */
+  private final String file;
+
+  /** Whether or not there are changes that have not been saved. */
+  private boolean dirty;
+
+  private long hits;
+  private long misses;
+
+  // -- Constructors --
+
+  /** Constructs an empty in-memory detection cache. */
+  public DetectionCache() {
+    file = null;
+  }
+
+  /**
+   * Constructs a detection cache backed by the given file.
+   * If the file exists, existing entries are loaded from it; an unreadable
+   * or incompatible file is ignored and will be overwritten by
+   * {@link #save()}.
+   */
+  public DetectionCache(String file) {
+    this.file = file;
+    if (new File(file).exists()) {
+      try {
+        load();
+      }
+      catch (IOException e) {
+        LOGGER.warn("Could not load detection cache {}", file, e);
+        entries.clear();
+      }
+    }
+  }
+
+  // -- DetectionCache API methods --
+
+  /**
+   * Gets the name of the reader class that was used to open the given file,
+   * or null if the file is not in the cache or has changed since it was
+   * cached.
+   */
+  public synchronized String get(String id) {
+    Location location = new Location(id);
+    String path = location.getAbsolutePath();
+    Entry entry = entries.get(path);
+    if (entry != null) {
+      if (entry.length == location.length() &&
+        entry.lastModified == location.lastModified())
+      {
+        hits++;
+        return entry.readerClass;
+      }
+      // stale entry; the file has been modified
+      entries.remove(path);
+      dirty = true;
+    }
+    misses++;
+    return null;
+  }
+
+  /** Records the reader class that was used to open the given file. */
+  public synchronized void put(String id, Class<? extends IFormatReader> c) {
+    Location location = new Location(id);
+    if (!location.exists()) return;
+    entries.put(location.getAbsolutePath(), new Entry(c.getName(),
+      location.length(), location.lastModified()));
+    dirty = true;
+  }
+
+  /** Removes the entry for the given file. */
+  public synchronized void remove(String id) {
+    if (entries.remove(new Location(id).getAbsolutePath()) != null) {
+      dirty = true;
+    }
+  }
+
+  /** Removes all entries and resets the hit and miss counters. */
+  public synchronized void clear() {
+    if (entries.size() > 0) dirty = true;
+    entries.clear();
+    hits = 0;
+    misses = 0;
+  }
+
+  /** Gets the number of cached entries. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** Gets the number of lookups that found a valid entry. */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /** Gets the number of lookups that did not find a valid entry. */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /** Gets the file to which the cache is saved, or null. */
+  public String getFile() {
+    return file;
+  }
+
+  /**
+   * Writes the cache to its backing file, if any entries have changed.
+   * The file is replaced atomically where the file system allows it.
+   */
+  public synchronized void save() throws IOException {
+    if (file == null || !dirty) return;
+
+    // store each reader class name once
+    List<String> classes = new ArrayList<String>();
+    Map<String, Integer> classIndex = new HashMap<String, Integer>();
+    for (Entry entry : entries.values()) {
+      if (!classIndex.containsKey(entry.readerClass)) {
+        classIndex.put(entry.readerClass, classes.size());
+        classes.add(entry.readerClass);
+      }
+    }
+
+    File target = new File(file);
+    File tmp = new File(target.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(classes.size());
+      for (String c : classes) {
+        out.writeUTF(c);
+      }
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        Entry entry = e.getValue();
+        out.writeUTF(e.getKey());
+        out.writeLong(entry.length);
+        out.writeLong(entry.lastModified);
+        out.writeShort(classIndex.get(entry.readerClass));
+      }
+    }
+    finally {
+      out.close();
+    }
+    if (!tmp.renameTo(target)) {
+      // NB: rename does not replace an existing file on all platforms
+      target.delete();
+      if (!tmp.renameTo(target)) {
+        tmp.delete();
+        throw new IOException("Could not write detection cache " + file);
+      }
+    }
+    dirty = false;
+  }
+
+  // -- Helper methods --
+
+  private void load() throws IOException {
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a detection cache file");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported detection cache version " +
+          version);
+      }
+      String[] classes = new String[in.readInt()];
+      for (int i=0; i<classes.length; i++) {
+        classes[i] = in.readUTF();
+      }
+      int count = in.readInt();
+      for (int i=0; i<count; i++) {
+        String path = in.readUTF();
+        long length = in.readLong();
+        long lastModified = in.readLong();
+        int classIndex = in.readUnsignedShort();
+        if (classIndex >= classes.length) {
+          throw new IOException("Invalid reader class index " + classIndex);
+        }
+        entries.put(path,
+          new Entry(classes[classIndex], length, lastModified));
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Reader class and file state recorded for a single file. */
+  private static class Entry {
+    final String readerClass;
+    final long length;
+    final long lastModified;
+
+    Entry(String readerClass, long length, long lastModified) {
+      this.readerClass = readerClass;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package loci.formats;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.NIOFileHandle;
+import loci.common.RandomAccessInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps regions of a local file into memory, on behalf of a
+ * {@link RandomAccessInputStream} that reads the same file.  The file is
+ * opened separately with {@link Location#getHandle(String)}, as the stream
+ * itself would have opened it; only files given a {@link NIOFileHandle}
+ * (i.e. uncompressed files on disk) can be mapped.  For any other file
+ * (compressed, in-memory or remote data) {@link #map} returns null and the
+ * caller is expected to read from the stream instead.
+ *
+ * Files no larger than 2 GB are mapped in full, and the mapping is reused
+ * until the file changes or {@link #close()} is called.  Mappings are
+ * released as soon as they are no longer used, rather than when they are
+ * garbage collected, so a buffer returned by {@link #map} must not be used
+ * after the next call to {@link #map} or {@link #close()}.
+ */
+final class FileMapping {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(FileMapping.class);
+
+  // -- Fields --
+
+  /** Name of the current file, or null if no file is open. */
+  private String file;
+
+  /** Handle of the current file, or null if it cannot be mapped. */
+  private NIOFileHandle handle;
+
+  /** Mapping of the whole of the current file. */
+  private MappedByteBuffer buffer;
+
+  /** Mapping of the last region of a file too large to map in full. */
+  private MappedByteBuffer partial;
+
+  // -- FileMapping API methods --
+
+  /**
+   * Maps the given region of a file.
+   *
+   * @param id the file read by the stream
+   * @param s the stream; its file pointer is not changed, and the file is
+   *   not mapped unless the stream has the same length
+   * @param start offset of the first byte in the region
+   * @param end offset following the last byte in the region
+   * @return a read-only buffer whose index 0 is the byte at {@code start}
+   *   and whose limit is {@code end - start}, or null if the file cannot
+   *   be mapped or the region is not within the file
+   */
+  ByteBuffer map(String id, RandomAccessInputStream s, long start, long end)
+    throws IOException
+  {
+    if (id == null || start < 0 || end < start ||
+      end - start > Integer.MAX_VALUE)
+    {
+      return null;
+    }
+    FileChannel channel = getChannel(id);
+    if (channel == null) return null;
+    long size = channel.size();
+    if (end > size || size != s.length()) return null;
+
+    if (partial != null) {
+      unmap(partial);
+      partial = null;
+    }
+    if (buffer == null || buffer.capacity() != size) {
+      if (buffer != null) {
+        unmap(buffer);
+        buffer = null;
+      }
+      if (size > Integer.MAX_VALUE) {
+        // too large to map in full; map only the requested region
+        partial = channel.map(FileChannel.MapMode.READ_ONLY, start,
+          end - start);
+        return partial;
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    ByteBuffer region = buffer.duplicate();
+    region.limit((int) end);
+    region.position((int) start);
+    return region.slice();
+  }
+
+  /** Releases the current mappings, and closes the current file. */
+  void close() throws IOException {
+    if (buffer != null) unmap(buffer);
+    if (partial != null) unmap(partial);
+    buffer = null;
+    partial = null;
+    file = null;
+    if (handle != null) {
+      NIOFileHandle h = handle;
+      handle = null;
+      h.close();
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Releases a mapping without waiting for it to be garbage collected.
+   * There is no public API for this, so the JDK's cleaner is called
+   * through reflection; if that fails, the mapping is left to the garbage
+   * collector.
+   */
+  private static void unmap(MappedByteBuffer mapping) {
+    try {
+      try {
+        // Java 9 and later
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Method invokeCleaner =
+          unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), mapping);
+      }
+      catch (NoSuchMethodException e) {
+        // Java 8 and earlier
+        Method getCleaner = mapping.getClass().getMethod("cleaner");
+        getCleaner.setAccessible(true);
+        Object cleaner = getCleaner.invoke(mapping);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    }
+    catch (Exception e) {
+      LOGGER.debug("Could not unmap buffer", e);
+    }
+  }
+
+  /**
+   * Gets the channel of the given file, opening it if it is not the
+   * current file.  Returns null if the file cannot be mapped.
+   */
+  private FileChannel getChannel(String id) throws IOException {
+    if (!id.equals(file)) {
+      close();
+      file = id;
+      if (Location.getMappedFile(id) != null) {
+        // the handle belongs to whoever mapped the id
+        LOGGER.debug("Cannot map {}: not a file on disk", id);
+        return null;
+      }
+      IRandomAccess h;
+      try {
+        h = Location.getHandle(id);
+      }
+      catch (IOException e) {
+        LOGGER.debug("Cannot map {}", id, e);
+        return null;
+      }
+      if (h instanceof NIOFileHandle) {
+        handle = (NIOFileHandle) h;
+      }
+      else {
+        LOGGER.debug("Cannot map {}: read with {}", id,
+          h.getClass().getName());
+        h.close();
+      }
+    }
+    return handle == null ? null : handle.getFileChannel();
+  }
+
+}
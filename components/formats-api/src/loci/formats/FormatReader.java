@@ -32,8 +32,14 @@
 
 package loci.formats;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedHashSet;
 import java.util.Hashtable;
 import java.util.List;
@@ -47,13 +53,16 @@ import loci.common.RandomAccessInputStream;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.common.services.ServiceFactory;
+import loci.formats.in.DynamicMetadataOptions;
 import loci.formats.in.MetadataLevel;
+import loci.formats.in.MetadataOptions;
 import loci.formats.meta.DummyMetadata;
 import loci.formats.meta.FilterMetadata;
 import loci.formats.meta.IMetadata;
 import loci.formats.meta.MetadataRetrieve;
 import loci.formats.meta.MetadataStore;
 import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.ome.OMEXMLMetadataImpl;
 import loci.formats.services.OMEXMLService;
 
 import ome.xml.model.AffineTransform;
@@ -113,7 +122,7 @@ import ome.xml.model.enums.handlers.PulseEnumHandler;
  * Abstract superclass of all biological file format readers.
  */
 public abstract class FormatReader extends FormatHandler
-  implements IFormatReader
+  implements IFormatReader, Cloneable
 {
 
   // -- Constants --
@@ -121,6 +130,44 @@ public abstract class FormatReader extends FormatHandler
   /** Default thumbnail width and height. */
   protected static final int THUMBNAIL_DIMENSION = 128;
 
+  /**
+   * {@link DynamicMetadataOptions} key that enables memory-mapped reads
+   * in {@link #readPlane(RandomAccessInputStream, int, int, int, int, int,
+   * byte[])} for uncompressed files on local disk, in readers that declare
+   * {@link #isMappedReadSupported()}.
+   */
+  public static final String MAPPED_READ_KEY = "reader.mapped.read";
+  public static final boolean MAPPED_READ_DEFAULT = false;
+
+  /**
+   * {@link DynamicMetadataOptions} key giving the largest number of unused
+   * bytes between two regions that {@link #openBytes(List)} will read in a
+   * single call rather than separately.
+   */
+  public static final String COALESCE_GAP_KEY = "reader.coalesce.gap";
+  public static final int COALESCE_GAP_DEFAULT = 64 * 1024;
+
+  /**
+   * {@link DynamicMetadataOptions} key that defers the OriginalMetadata
+   * annotations created by {@link #setId(String)} until they are first read
+   * from an {@link OMEXMLMetadataImpl} store, or its XML is dumped.  Other
+   * stores are always populated immediately.
+   */
+  public static final String LAZY_ORIGINAL_METADATA_KEY =
+    "reader.lazy.original.metadata";
+  public static final boolean LAZY_ORIGINAL_METADATA_DEFAULT = false;
+
+  /** Largest single read made by {@link #openBytes(List)}: 16 MB. */
+  private static final int MAX_COALESCED_READ = 16 * 1024 * 1024;
+
+  /** Maximum length of a filtered metadata key or string value. */
+  private static final int MAX_META_LENGTH = 8192;
+
+  /** Flags returned by {@link #scanMeta(String)}. */
+  private static final int META_HAS_LETTER = 1;
+  private static final int META_NEEDS_STRIP = 2;
+  private static final int META_HAS_LINE_BREAK = 4;
+
   // -- Fields --
 
   /** Current file. */
@@ -189,6 +236,15 @@ public abstract class FormatReader extends FormatHandler
   private ServiceFactory factory;
   private OMEXMLService service;
 
+  /** Mapping of the current file used by readPlane, if enabled. */
+  private transient FileMapping fileMapping;
+
+  /** Pool from which planes are allocated, or null. */
+  private BufferPool bufferPool;
+
+  /** Key ids shared by the metadata tables of all series. */
+  private MetadataKeyDictionary seriesKeys;
+
   // -- Constructors --
 
   /** Constructs a format reader with the given name and default suffix. */
@@ -232,7 +288,8 @@ public abstract class FormatReader extends FormatHandler
     series = 0;
     close();
     currentId = id;
-    metadata = new Hashtable<String, Object>();
+    metadata = new MetadataTable();
+    seriesKeys = new MetadataKeyDictionary();
 
     core = new ArrayList<CoreMetadata>();
     CoreMetadata core0 = new CoreMetadata();
@@ -259,61 +316,155 @@ public abstract class FormatReader extends FormatHandler
   protected void addMeta(String key, Object value,
     Hashtable<String, Object> meta)
   {
-    if (key == null || value == null ||
-      getMetadataOptions().getMetadataLevel() == MetadataLevel.MINIMUM)
-    {
-      return;
-    }
-
-    key = key.trim();
-
+    if (value == null) return;
     boolean string = value instanceof String || value instanceof Character;
 
     // string value, if passed in value is a string
     String val = string ? String.valueOf(value) : null;
 
-    if (filterMetadata ||
-      (saveOriginalMetadata && (getMetadataStore() instanceof OMEXMLMetadata)))
-    {
+    if (isMetaFiltered()) {
       // filter out complex data types
       boolean simple = string ||
         value instanceof Number ||
         value instanceof Boolean;
       if (!simple) return;
 
-      // verify key & value are reasonable length
-      int maxLen = 8192;
-      if (key.length() > maxLen) return;
-      if (string && val.length() > maxLen) return;
-
-      // remove all non-printable characters
-      key = DataTools.sanitize(key);
-      if (string) val = DataTools.sanitize(val);
-
-      // verify key contains at least one alphabetic character
-      if (!key.matches(".*[a-zA-Z].*")) return;
-
-      // remove &lt;, &gt; and &amp; to prevent XML parsing errors
-      String[] invalidSequences = new String[] {
-        "&lt;", "&gt;", "&amp;", "<", ">", "&"
-      };
-      for (int i=0; i<invalidSequences.length; i++) {
-        if (key.indexOf(invalidSequences[i]) >= 0) {
-          key = key.replaceAll(invalidSequences[i], "");
-        }
-        if (string && val.indexOf(invalidSequences[i]) >= 0) {
-          val = val.replaceAll(invalidSequences[i], "");
-        }
+      // verify value is a reasonable length, not empty, and free of
+      // non-printable characters and XML markup
+      if (string) {
+        if (val.length() > MAX_META_LENGTH) return;
+        if ((scanMeta(val) & META_NEEDS_STRIP) != 0) val = stripMeta(val);
+        if (isBlank(val)) return;
       }
+    }
+
+    key = prepareMetaKey(key);
+    if (key == null) return;
+    meta.put(key, val == null ? value : val);
+  }
 
-      // verify key & value are not empty
-      if (key.length() == 0) return;
-      if (string && val.trim().length() == 0) return;
+  /** Returns true if addMeta should filter keys and values. */
+  private boolean isMetaFiltered() {
+    return filterMetadata ||
+      (saveOriginalMetadata && (getMetadataStore() instanceof OMEXMLMetadata));
+  }
 
-      if (string) value = val;
+  /**
+   * Trims and, if metadata is filtered, cleans up a metadata key, returning
+   * null if the entry should not be added.
+   */
+  private String prepareMetaKey(String key) {
+    if (key == null ||
+      getMetadataOptions().getMetadataLevel() == MetadataLevel.MINIMUM)
+    {
+      return null;
     }
 
-    meta.put(key, val == null ? value : val);
+    key = key.trim();
+    if (!isMetaFiltered()) return key;
+
+    // verify key is a reasonable length
+    if (key.length() > MAX_META_LENGTH) return null;
+
+    // remove non-printable characters and XML markup, and verify that
+    // the key contains at least one alphabetic character on one line
+    int keyFlags = scanMeta(key);
+    if ((keyFlags & META_HAS_LETTER) == 0 ||
+      (keyFlags & META_HAS_LINE_BREAK) != 0)
+    {
+      return null;
+    }
+    if ((keyFlags & META_NEEDS_STRIP) != 0) key = stripMeta(key);
+
+    // verify key is not empty
+    return key.length() == 0 ? null : key;
+  }
+
+  /**
+   * Scans a metadata key or value once, returning a combination of the
+   * META_* flags that describe what {@link #stripMeta(String)} would remove
+   * and whether the key checks in addMeta would pass.
+   */
+  private static int scanMeta(String s) {
+    int flags = 0;
+    for (int i=0; i<s.length(); i++) {
+      char c = s.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+        flags |= META_HAS_LETTER;
+      }
+      else if (c == '<' || c == '>' || c == '&' ||
+        (c != '\t' && c != '\n' && Character.isISOControl(c)))
+      {
+        flags |= META_NEEDS_STRIP;
+      }
+      else if (c == '\n' || c == '\u2028' || c == '\u2029') {
+        // line terminators that are kept, but that the original
+        // key.matches(".*[a-zA-Z].*") check rejected
+        flags |= META_HAS_LINE_BREAK;
+      }
+    }
+    return flags;
+  }
+
+  /**
+   * Removes ISO control characters other than tab and newline, as
+   * {@link DataTools#sanitize(String)} does, then the sequences "&amp;lt;",
+   * "&amp;gt;" and "&amp;amp;" in that order, then all remaining '&lt;',
+   * '&gt;' and '&amp;' characters.  Each sequence is removed in a single
+   * left-to-right pass, exactly as String.replaceAll would.
+   */
+  private static String stripMeta(String s) {
+    char[] chars = s.toCharArray();
+    int length = 0;
+    for (int i=0; i<chars.length; i++) {
+      char c = chars[i];
+      if (c == '\t' || c == '\n' || !Character.isISOControl(c)) {
+        chars[length++] = c;
+      }
+    }
+    length = removeSequence(chars, length, "&lt;");
+    length = removeSequence(chars, length, "&gt;");
+    length = removeSequence(chars, length, "&amp;");
+    int kept = 0;
+    for (int i=0; i<length; i++) {
+      char c = chars[i];
+      if (c != '<' && c != '>' && c != '&') chars[kept++] = c;
+    }
+    return new String(chars, 0, kept);
+  }
+
+  /**
+   * Removes non-overlapping occurrences of the given sequence from the
+   * first length characters of the array, returning the new length.
+   */
+  private static int removeSequence(char[] chars, int length, String seq) {
+    int seqLength = seq.length();
+    int kept = 0;
+    int i = 0;
+    while (i < length) {
+      if (i + seqLength <= length && matches(chars, i, seq)) {
+        i += seqLength;
+      }
+      else {
+        chars[kept++] = chars[i++];
+      }
+    }
+    return kept;
+  }
+
+  private static boolean matches(char[] chars, int offset, String seq) {
+    for (int i=0; i<seq.length(); i++) {
+      if (chars[offset + i] != seq.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  /** Returns true if the string is empty once trimmed. */
+  private static boolean isBlank(String s) {
+    for (int i=0; i<s.length(); i++) {
+      if (s.charAt(i) > ' ') return false;
+    }
+    return true;
   }
 
   /** Adds an entry to the global metadata table. */
@@ -323,37 +474,37 @@ public abstract class FormatReader extends FormatHandler
 
   /** Adds an entry to the global metadata table. */
   protected void addGlobalMeta(String key, boolean value) {
-    addGlobalMeta(key, new Boolean(value));
+    addGlobalMeta(key, Boolean.valueOf(value));
   }
 
   /** Adds an entry to the global metadata table. */
   protected void addGlobalMeta(String key, byte value) {
-    addGlobalMeta(key, new Byte(value));
+    addGlobalMeta(key, Byte.valueOf(value));
   }
 
   /** Adds an entry to the global metadata table. */
   protected void addGlobalMeta(String key, short value) {
-    addGlobalMeta(key, new Short(value));
+    addGlobalMeta(key, Short.valueOf(value));
   }
 
   /** Adds an entry to the global metadata table. */
   protected void addGlobalMeta(String key, int value) {
-    addGlobalMeta(key, new Integer(value));
+    addGlobalMeta(key, Integer.valueOf(value));
   }
 
   /** Adds an entry to the global metadata table. */
   protected void addGlobalMeta(String key, long value) {
-    addGlobalMeta(key, new Long(value));
+    addGlobalMeta(key, Long.valueOf(value));
   }
 
   /** Adds an entry to the global metadata table. */
   protected void addGlobalMeta(String key, float value) {
-    addGlobalMeta(key, new Float(value));
+    addGlobalMeta(key, Float.valueOf(value));
   }
 
   /** Adds an entry to the global metadata table. */
   protected void addGlobalMeta(String key, double value) {
-    addGlobalMeta(key, new Double(value));
+    addGlobalMeta(key, Double.valueOf(value));
   }
 
   /** Adds an entry to the global metadata table. */
@@ -412,7 +563,7 @@ public abstract class FormatReader extends FormatHandler
    * and the value will be appended to the list.
    */
   protected void addSeriesMetaList(String key, Object value) {
-    addMetaList(key, value, core.get(getCoreIndex()).seriesMetadata);
+    addMetaList(key, value, getSeriesMetaTable());
   }
 
   /**
@@ -433,9 +584,15 @@ public abstract class FormatReader extends FormatHandler
    * For the given metadata hashtable, replace any value that is
    * a list with one key/value pair per list entry.  The new keys
    * will be the original key with the list index appended.
+   * A {@link MetadataTable} that holds no lists is not scanned.
    * @param meta the hashtable from which to remove lists
    */
   private void updateMetadataLists(Hashtable<String, Object> meta) {
+    if (meta instanceof MetadataTable &&
+      !((MetadataTable) meta).hasListValues())
+    {
+      return;
+    }
     String[] keys = meta.keySet().toArray(new String[meta.size()]);
     for (String key : keys) {
       Object v = meta.get(key);
@@ -458,42 +615,42 @@ public abstract class FormatReader extends FormatHandler
 
   /** Adds an entry to the metadata table for the current series. */
   protected void addSeriesMeta(String key, Object value) {
-    addMeta(key, value, core.get(getCoreIndex()).seriesMetadata);
+    addMeta(key, value, getSeriesMetaTable());
   }
 
   /** Adds an entry to the metadata table for the current series. */
   protected void addSeriesMeta(String key, boolean value) {
-    addSeriesMeta(key, new Boolean(value));
+    addSeriesMeta(key, Boolean.valueOf(value));
   }
 
   /** Adds an entry to the metadata table for the current series. */
   protected void addSeriesMeta(String key, byte value) {
-    addSeriesMeta(key, new Byte(value));
+    addSeriesMeta(key, Byte.valueOf(value));
   }
 
   /** Adds an entry to the metadata table for the current series. */
   protected void addSeriesMeta(String key, short value) {
-    addSeriesMeta(key, new Short(value));
+    addSeriesMeta(key, Short.valueOf(value));
   }
 
   /** Adds an entry to the metadata table for the current series. */
   protected void addSeriesMeta(String key, int value) {
-    addSeriesMeta(key, new Integer(value));
+    addSeriesMeta(key, Integer.valueOf(value));
   }
 
   /** Adds an entry to the metadata table for the current series. */
   protected void addSeriesMeta(String key, long value) {
-    addSeriesMeta(key, new Long(value));
+    addSeriesMeta(key, Long.valueOf(value));
   }
 
   /** Adds an entry to the metadata table for the current series. */
   protected void addSeriesMeta(String key, float value) {
-    addSeriesMeta(key, new Float(value));
+    addSeriesMeta(key, Float.valueOf(value));
   }
 
   /** Adds an entry to the metadata table for the current series. */
   protected void addSeriesMeta(String key, double value) {
-    addSeriesMeta(key, new Double(value));
+    addSeriesMeta(key, Double.valueOf(value));
   }
 
   /** Adds an entry to the metadata table for the current series. */
@@ -501,6 +658,18 @@ public abstract class FormatReader extends FormatHandler
     addSeriesMeta(key, new Character(value));
   }
 
+  /**
+   * Gets the metadata table for the current series, first making it share
+   * key ids with the other series' tables.
+   */
+  private Hashtable<String, Object> getSeriesMetaTable() {
+    Hashtable<String, Object> meta = core.get(getCoreIndex()).seriesMetadata;
+    if (seriesKeys != null && meta instanceof MetadataTable) {
+      ((MetadataTable) meta).setKeyDictionary(seriesKeys);
+    }
+    return meta;
+  }
+
   /** Gets an entry from the metadata table for the current series. */
   protected Object getSeriesMeta(String key) {
     return core.get(getCoreIndex()).seriesMetadata.get(key);
@@ -519,6 +688,15 @@ public abstract class FormatReader extends FormatHandler
   {
     int c = getRGBChannelCount();
     int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    // contiguous regions are read in one call; map anything else if enabled
+    boolean contiguous = x == 0 && w == getSizeX() && scanlinePad == 0 &&
+      (isInterleaved() || (y == 0 && h == getSizeY()));
+    if (!contiguous &&
+      readMappedPlane(s, x, y, w, h, scanlinePad, ByteBuffer.wrap(buf)))
+    {
+      return buf;
+    }
+
     if (x == 0 && y == 0 && w == getSizeX() && h == getSizeY() &&
       scanlinePad == 0)
     {
@@ -575,11 +753,340 @@ public abstract class FormatReader extends FormatHandler
     return buf;
   }
 
+  /**
+   * Reads a raw plane from disk into the given buffer, starting at the
+   * buffer's position and advancing it past the plane.  If memory-mapped
+   * reads are enabled and the stream reads a local uncompressed file,
+   * the plane is copied straight from the mapped file; otherwise it is
+   * read into a temporary array.
+   */
+  protected ByteBuffer readPlane(RandomAccessInputStream s, int x, int y,
+    int w, int h, int scanlinePad, ByteBuffer buf) throws IOException
+  {
+    if (!readMappedPlane(s, x, y, w, h, scanlinePad, buf)) {
+      byte[] plane = new byte[FormatTools.getPlaneSize(this, w, h)];
+      buf.put(readPlane(s, x, y, w, h, scanlinePad, plane));
+    }
+    return buf;
+  }
+
+  /**
+   * Copies the region of the plane starting at the stream's current position
+   * from a memory mapping of the stream's file to the buffer's position,
+   * leaving the stream where
+   * {@link #readPlane(RandomAccessInputStream, int, int, int, int, int,
+   * byte[])} would have left it.
+   *
+   * Only {@link #in} is mapped, and only in readers that declare
+   * {@link #isMappedReadSupported()}; other streams are always read
+   * directly.
+   *
+   * @return false if mapped reads are disabled or not supported, or the
+   *   stream is not {@link #in} reading an uncompressed local file that
+   *   contains the whole region
+   */
+  private boolean readMappedPlane(RandomAccessInputStream s, int x, int y,
+    int w, int h, int scanlinePad, ByteBuffer buf) throws IOException
+  {
+    if (w <= 0 || h <= 0 || s != in || !isMappedReadSupported() ||
+      !isMappedReadEnabled())
+    {
+      return false;
+    }
+    boolean interleaved = isInterleaved();
+    int c = getRGBChannelCount();
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+
+    // interleaved planes are laid out as a single channel of wider pixels
+    int channels = interleaved ? 1 : c;
+    int pixel = interleaved ? bpp * c : bpp;
+    long rowStride = (long) (getSizeX() + scanlinePad) * pixel;
+    long channelStride = rowStride * getSizeY();
+    long xOffset = (long) x * pixel;
+    int rowLength = w * pixel;
+
+    long start = s.getFilePointer();
+    long end = start + (channels - 1) * channelStride +
+      (y + h - 1) * rowStride + xOffset + rowLength;
+    if (fileMapping == null) fileMapping = new FileMapping();
+    ByteBuffer mapped = fileMapping.map(currentId, s, start, end);
+    if (mapped == null) return false;
+
+    copyRegion(mapped, 0, x, y, w, h, scanlinePad, buf);
+    s.seek(end);
+    return true;
+  }
+
+  /**
+   * Copies a region of an uncompressed plane, laid out as expected by
+   * {@link #readPlane(RandomAccessInputStream, int, int, int, int, int,
+   * byte[])}, to the position of buf.  The plane starts at the given offset
+   * of src, which may be negative if src only holds the bytes of the
+   * region.
+   */
+  private void copyRegion(ByteBuffer src, long planeOffset, int x, int y,
+    int w, int h, int scanlinePad, ByteBuffer buf)
+  {
+    boolean interleaved = isInterleaved();
+    int c = getRGBChannelCount();
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    int channels = interleaved ? 1 : c;
+    int pixel = interleaved ? bpp * c : bpp;
+    long rowStride = (long) (getSizeX() + scanlinePad) * pixel;
+    long channelStride = rowStride * getSizeY();
+    int rowLength = w * pixel;
+
+    if (buf.remaining() < channels * h * rowLength) {
+      throw new BufferOverflowException();
+    }
+    for (int channel=0; channel<channels; channel++) {
+      int rowStart = (int) (planeOffset + channel * channelStride +
+        y * rowStride + (long) x * pixel);
+      if (rowLength == rowStride) {
+        // full-width rows are contiguous
+        copy(src, rowStart, h * rowLength, buf);
+        continue;
+      }
+      for (int row=0; row<h; row++) {
+        copy(src, (int) (rowStart + row * rowStride), rowLength, buf);
+      }
+    }
+  }
+
+  /**
+   * Reads several regions of planes stored uncompressed in {@link #in}.
+   * The regions are sorted by position in the file, and regions that are
+   * no more than {@link #COALESCE_GAP_KEY} bytes apart are read with a
+   * single call.
+   */
+  private byte[][] readRegions(List<TileRequest> tiles, int scanlinePad)
+    throws FormatException, IOException
+  {
+    boolean interleaved = isInterleaved();
+    int c = getRGBChannelCount();
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    int channels = interleaved ? 1 : c;
+    int pixel = interleaved ? bpp * c : bpp;
+    long rowStride = (long) (getSizeX() + scanlinePad) * pixel;
+    long channelStride = rowStride * getSizeY();
+
+    int count = tiles.size();
+    final long[] start = new long[count];
+    long[] end = new long[count];
+    long[] planeOffset = new long[count];
+    byte[][] results = new byte[count][];
+    List<Integer> order = new ArrayList<Integer>();
+    for (int i=0; i<count; i++) {
+      TileRequest t = tiles.get(i);
+      FormatTools.checkPlaneParameters(this, t.no, -1, t.x, t.y, t.w, t.h);
+      results[i] = new byte[FormatTools.getPlaneSize(this, t.w, t.h)];
+      if (t.w == 0 || t.h == 0) continue;
+      planeOffset[i] = getPlaneOffset(t.no);
+      if (planeOffset[i] < 0) {
+        openBytes(t.no, results[i], t.x, t.y, t.w, t.h);
+        continue;
+      }
+      long xOffset = (long) t.x * pixel;
+      start[i] = planeOffset[i] + t.y * rowStride + xOffset;
+      end[i] = planeOffset[i] + (channels - 1) * channelStride +
+        (t.y + t.h - 1) * rowStride + xOffset + t.w * pixel;
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(start[a], start[b]);
+      }
+    });
+
+    int gap = COALESCE_GAP_DEFAULT;
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      gap = ((DynamicMetadataOptions) options).getInteger(
+        COALESCE_GAP_KEY, COALESCE_GAP_DEFAULT);
+    }
+
+    int first = 0;
+    while (first < order.size()) {
+      long readStart = start[order.get(first)];
+      long readEnd = end[order.get(first)];
+      int last = first + 1;
+      while (last < order.size()) {
+        int next = order.get(last);
+        long nextEnd = Math.max(readEnd, end[next]);
+        if (start[next] - readEnd > gap ||
+          nextEnd - readStart > MAX_COALESCED_READ)
+        {
+          break;
+        }
+        readEnd = nextEnd;
+        last++;
+      }
+
+      byte[] data = new byte[(int) (readEnd - readStart)];
+      in.seek(readStart);
+      in.readFully(data);
+      ByteBuffer src = ByteBuffer.wrap(data);
+      for (int i=first; i<last; i++) {
+        int index = order.get(i);
+        TileRequest t = tiles.get(index);
+        copyRegion(src, planeOffset[index] - readStart, t.x, t.y, t.w, t.h,
+          scanlinePad, ByteBuffer.wrap(results[index]));
+      }
+      first = last;
+    }
+    return results;
+  }
+
+  /** Copies len bytes at the given offset of src to the position of dest. */
+  private static void copy(ByteBuffer src, int offset, int len,
+    ByteBuffer dest)
+  {
+    src.limit(offset + len);
+    src.position(offset);
+    dest.put(src);
+    src.limit(src.capacity());
+  }
+
+  /** Returns true if {@link #MAPPED_READ_KEY} is set in the options. */
+  private boolean isMappedReadEnabled() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getBoolean(
+        MAPPED_READ_KEY, MAPPED_READ_DEFAULT);
+    }
+    return MAPPED_READ_DEFAULT;
+  }
+
+  /**
+   * Returns true if {@link #LAZY_ORIGINAL_METADATA_KEY} is set in the
+   * options.
+   */
+  private boolean isLazyOriginalMetadataEnabled() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getBoolean(
+        LAZY_ORIGINAL_METADATA_KEY, LAZY_ORIGINAL_METADATA_DEFAULT);
+    }
+    return LAZY_ORIGINAL_METADATA_DEFAULT;
+  }
+
   /** Return a properly configured loci.formats.meta.FilterMetadata. */
   protected MetadataStore makeFilterMetadata() {
     return new FilterMetadata(getMetadataStore(), isMetadataFiltered());
   }
 
+  /**
+   * Gets the offset in the current file of the first byte of the given
+   * plane in the current series, or -1 if the plane is not stored at a
+   * single known offset (e.g. it is compressed in several blocks, or
+   * stored in another file).  This is used to order reads of several
+   * planes by their position in the file.  The default is -1.
+   */
+  protected long getPlaneOffset(int no) throws FormatException, IOException {
+    return -1;
+  }
+
+  /**
+   * If the planes of the current series are stored uncompressed in
+   * {@link #in}, starting at {@link #getPlaneOffset(int)} and laid out as
+   * expected by {@link #readPlane(RandomAccessInputStream, int, int, int,
+   * int, int, byte[])}, returns the number of padding pixels at the end of
+   * each row; otherwise returns -1.  This allows {@link #openBytes(List)}
+   * to combine the reads of nearby regions.  The default is -1.
+   */
+  protected int getRawScanlinePad() {
+    return -1;
+  }
+
+  /**
+   * Returns true if the stream {@link #in} always reads the current file
+   * (see {@link #getCurrentFile()}), so that
+   * {@link #readPlane(RandomAccessInputStream, int, int, int, int, int,
+   * byte[])} can read it from a memory mapping of that file when
+   * {@link #MAPPED_READ_KEY} is set.  Readers that open {@link #in} on
+   * other files, e.g. one file per plane, must not return true.  The
+   * default is false.
+   */
+  protected boolean isMappedReadSupported() {
+    return false;
+  }
+
+  /**
+   * Returns true if {@link #shallowCopy()} can be used with this reader,
+   * i.e. if reading planes modifies none of the state set up by
+   * {@link #initFile(String)} other than the stream and the series
+   * position.  The default is false.
+   */
+  protected boolean isShallowCopySupported() {
+    return false;
+  }
+
+  /**
+   * Creates a copy of this initialized reader that shares the core metadata,
+   * metadata tables, MetadataStore and all other fields by reference, but
+   * has its own series position and, if this reader's stream is open, its
+   * own stream on the current file.  Lists in the metadata tables are
+   * flattened first, so that the metadata getters of neither reader modify
+   * the shared tables, and their key dictionary is made read-only; the
+   * tables must not be modified once a copy exists.  Subclasses that hold
+   * other per-read state (e.g. additional streams or decoding buffers)
+   * should override this to replace that state in the copy.
+   *
+   * @throws FormatException if this reader does not support shallow copies.
+   */
+  protected FormatReader shallowCopy() throws FormatException, IOException {
+    FormatTools.assertId(currentId, true, 1);
+    if (!isShallowCopySupported()) {
+      throw new FormatException(
+        getClass().getName() + " does not support shallow copies");
+    }
+    flattenHashtables();
+    if (seriesKeys != null) seriesKeys.setReadOnly();
+    FormatReader copy;
+    try {
+      copy = (FormatReader) clone();
+    }
+    catch (CloneNotSupportedException e) {
+      throw new FormatException(e);
+    }
+    copy.fileMapping = null;
+    if (in != null) {
+      copy.in = new RandomAccessInputStream(currentId);
+      copy.in.order(in.isLittleEndian());
+    }
+    return copy;
+  }
+
+  /**
+   * Returns true if this reader can be restored from a
+   * {@link ReaderSnapshot}.  A reader supports snapshots if all of the state
+   * set up by {@link #initFile(String)} is held in the core metadata, the
+   * metadata tables and the MetadataStore, or if any additional state is
+   * saved by {@link #writeSnapshotState(DataOutput)}.  The default is false.
+   */
+  protected boolean isSnapshotSupported() {
+    return false;
+  }
+
+  /**
+   * Writes any state not held in the core metadata, metadata tables or
+   * MetadataStore to a snapshot.  The default implementation writes nothing.
+   */
+  protected void writeSnapshotState(DataOutput out) throws IOException {
+  }
+
+  /**
+   * Reads the state written by {@link #writeSnapshotState(DataOutput)}.
+   * This is called after the core metadata, metadata tables and
+   * MetadataStore have been restored, and before {@link #reopenFile()}.
+   * The default implementation reads nothing.
+   */
+  protected void readSnapshotState(DataInput in)
+    throws FormatException, IOException
+  {
+  }
+
   // -- IFormatReader API methods --
 
   /**
@@ -594,12 +1101,49 @@ public abstract class FormatReader extends FormatHandler
    */
   @Override
   public boolean isThisType(String name, boolean open) {
+    Boolean suffixType = isThisTypeBySuffix(name, open);
+    if (suffixType != null) return suffixType;
+
+    // suffix matching was inconclusive; we need to analyze the file contents
+    try {
+      RandomAccessInputStream stream = new RandomAccessInputStream(name);
+      boolean isThisType = isThisType(stream);
+      stream.close();
+      return isThisType;
+    }
+    catch (IOException exc) {
+      LOGGER.debug("", exc);
+      return false;
+    }
+  }
+
+  /**
+   * Performs the filename suffix part of {@link #isThisType(String, boolean)}.
+   *
+   * @return the result of the type check, or null if the suffix check is
+   *   inconclusive and the file must be opened for further analysis
+   */
+  Boolean isThisTypeBySuffix(String name, boolean open) {
+    return isThisTypeBySuffix(name, open, suffixes,
+      suffixNecessary, suffixSufficient);
+  }
+
+  /**
+   * Performs the filename suffix part of {@link #isThisType(String, boolean)}
+   * for a reader with the given suffixes and suffix flags.
+   *
+   * @return the result of the type check, or null if the suffix check is
+   *   inconclusive and the file must be opened for further analysis
+   */
+  static Boolean isThisTypeBySuffix(String name, boolean open,
+    String[] suffixes, boolean suffixNecessary, boolean suffixSufficient)
+  {
     // if file extension ID is insufficient and we can't open the file, give up
     if (!suffixSufficient && !open) return false;
 
     if (suffixNecessary || suffixSufficient) {
       // it's worth checking the file extension
-      boolean suffixMatch = super.isThisType(name);
+      boolean suffixMatch = checkSuffix(name, suffixes);
 
       // if suffix match is required but it doesn't match, failure
       if (suffixNecessary && !suffixMatch) return false;
@@ -608,18 +1152,8 @@ public abstract class FormatReader extends FormatHandler
       if (suffixMatch && suffixSufficient) return true;
     }
 
-    // suffix matching was inconclusive; we need to analyze the file contents
     if (!open) return false; // not allowed to open any files
-    try {
-      RandomAccessInputStream stream = new RandomAccessInputStream(name);
-      boolean isThisType = isThisType(stream);
-      stream.close();
-      return isThisType;
-    }
-    catch (IOException exc) {
-      LOGGER.debug("", exc);
-      return false;
-    }
+    return null;
   }
 
   /* @see IFormatReader#isThisType(byte[]) */
@@ -874,16 +1408,32 @@ public abstract class FormatReader extends FormatHandler
     int bpp = FormatTools.getBytesPerPixel(getPixelType());
     byte[] newBuffer;
     try {
-      newBuffer = DataTools.allocate(w, h, ch, bpp);
+      if (bufferPool == null) {
+        newBuffer = DataTools.allocate(w, h, ch, bpp);
+      }
+      else {
+        int size = DataTools.safeMultiply32(w, h, ch, bpp);
+        newBuffer = bufferPool.acquire(size);
+      }
     }
     catch (IllegalArgumentException e) {
       throw new FormatException("Image plane too large. Only 2GB of data can " +
         "be extracted at one time. You can workaround the problem by opening " +
-        "the plane in tiles; for further details, see: " +
+        "the plane in tiles or with loci.formats.PlaneBuffer; for further " +
+        "details, see: " +
         "https://docs.openmicroscopy.org/bio-formats/" + FormatTools.VERSION +
         "/about/bug-reporting.html#common-issues-to-check", e);
     }
-    return openBytes(no, newBuffer, x, y, w, h);
+    if (bufferPool == null) return openBytes(no, newBuffer, x, y, w, h);
+    byte[] plane = null;
+    try {
+      plane = openBytes(no, newBuffer, x, y, w, h);
+    }
+    finally {
+      // return the array to the pool unless it is handed to the caller
+      if (plane != newBuffer) bufferPool.release(newBuffer);
+    }
+    return plane;
   }
 
   /* @see IFormatReader#openBytes(int, byte[], int, int, int, int) */
@@ -891,6 +1441,69 @@ public abstract class FormatReader extends FormatHandler
   public abstract byte[] openBytes(int no, byte[] buf, int x, int y,
     int w, int h) throws FormatException, IOException;
 
+  /* @see IFormatReader#openBytes(int, ByteBuffer) */
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf)
+    throws FormatException, IOException
+  {
+    return openBytes(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /**
+   * The default implementation reads the sub-image with
+   * {@link #openBytes(int, byte[], int, int, int, int)}, directly into the
+   * buffer's backing array if the buffer is backed by an array of exactly
+   * the sub-image size, and otherwise into a new array that is then copied
+   * to the buffer.  Readers of uncompressed data can avoid the copy by
+   * overriding this method and using
+   * {@link #readPlane(RandomAccessInputStream, int, int, int, int, int,
+   * ByteBuffer)}.
+   *
+   * @see IFormatReader#openBytes(int, ByteBuffer, int, int, int, int)
+   */
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf, int x, int y, int w,
+    int h) throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf.remaining(), x, y, w, h);
+    int size = FormatTools.getPlaneSize(this, w, h);
+    if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 &&
+      buf.array().length == size)
+    {
+      openBytes(no, buf.array(), x, y, w, h);
+      buf.position(size);
+    }
+    else {
+      buf.put(openBytes(no, x, y, w, h), 0, size);
+    }
+    return buf;
+  }
+
+  /**
+   * If the reader reports an uncompressed layout (see
+   * {@link #getRawScanlinePad()}), the regions are sorted by position in
+   * the file and nearby regions are read with a single call; otherwise the
+   * regions are read one at a time.
+   *
+   * @see IFormatReader#openBytes(List)
+   */
+  @Override
+  public byte[][] openBytes(List<TileRequest> tiles)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(currentId, true, 1);
+    int scanlinePad = getRawScanlinePad();
+    if (scanlinePad >= 0 && in != null) {
+      return readRegions(tiles, scanlinePad);
+    }
+    byte[][] results = new byte[tiles.size()][];
+    for (int i=0; i<results.length; i++) {
+      TileRequest t = tiles.get(i);
+      results[i] = openBytes(t.no, t.x, t.y, t.w, t.h);
+    }
+    return results;
+  }
+
   /* @see IFormatReader#openPlane(int, int, int, int, int int) */
   @Override
   public Object openPlane(int no, int x, int y, int w, int h)
@@ -911,6 +1524,7 @@ public abstract class FormatReader extends FormatHandler
   @Override
   public void close(boolean fileOnly) throws IOException {
     if (in != null) in.close();
+    if (fileMapping != null) fileMapping.close();
     if (!fileOnly) {
       in = null;
       currentId = null;
@@ -1107,7 +1721,7 @@ public abstract class FormatReader extends FormatHandler
   @Override
   public Object getMetadataValue(String field) {
     FormatTools.assertId(currentId, true, 1);
-    flattenHashtables();
+    updateMetadataLists(metadata);
     return getGlobalMeta(field);
   }
 
@@ -1115,7 +1729,7 @@ public abstract class FormatReader extends FormatHandler
   @Override
   public Object getSeriesMetadataValue(String field) {
     FormatTools.assertId(currentId, true, 1);
-    flattenHashtables();
+    updateMetadataLists(core.get(getCoreIndex()).seriesMetadata);
     return getSeriesMeta(field);
   }
 
@@ -1123,7 +1737,7 @@ public abstract class FormatReader extends FormatHandler
   @Override
   public Hashtable<String, Object> getGlobalMetadata() {
     FormatTools.assertId(currentId, true, 1);
-    flattenHashtables();
+    updateMetadataLists(metadata);
     return metadata;
   }
 
@@ -1131,10 +1745,9 @@ public abstract class FormatReader extends FormatHandler
   @Override
   public Hashtable<String, Object> getSeriesMetadata() {
     FormatTools.assertId(currentId, true, 1);
-    if (core.get(getCoreIndex()).seriesMetadata.size() > 0) {
-      flattenHashtables();
-    }
-    return core.get(getCoreIndex()).seriesMetadata;
+    Hashtable<String, Object> meta = core.get(getCoreIndex()).seriesMetadata;
+    updateMetadataLists(meta);
+    return meta;
   }
 
   /* @see IFormatReader#getCoreMetadataList() */
@@ -1244,6 +1857,17 @@ public abstract class FormatReader extends FormatHandler
      return (int) Math.min(maxHeight, getSizeY());
   }
 
+  /**
+   * Clones this reader with {@link #shallowCopy()}; only readers that
+   * declare {@link #isShallowCopySupported()} can be cloned.
+   *
+   * @see IFormatReader#cloneReader()
+   */
+  @Override
+  public IFormatReader cloneReader() throws FormatException, IOException {
+    return shallowCopy();
+  }
+
   // -- Sub-resolution API methods --
 
   @Override
@@ -1352,6 +1976,18 @@ public abstract class FormatReader extends FormatHandler
     flattenedResolutions = flattened;
   }
 
+  /* @see IFormatReader#setBufferPool(BufferPool) */
+  @Override
+  public void setBufferPool(BufferPool pool) {
+    bufferPool = pool;
+  }
+
+  /* @see IFormatReader#getBufferPool() */
+  @Override
+  public BufferPool getBufferPool() {
+    return bufferPool;
+  }
+
   @Override
   public int getCoreIndex() {
     return coreIndex;
@@ -1396,13 +2032,22 @@ public abstract class FormatReader extends FormatHandler
     {
       initFile(id);
 
+      // share key ids between the metadata tables of all series, including
+      // any that were filled without addSeriesMeta
+      if (seriesKeys != null && core != null) {
+        for (CoreMetadata c : core) {
+          if (c != null && c.seriesMetadata instanceof MetadataTable) {
+            ((MetadataTable) c.seriesMetadata).setKeyDictionary(seriesKeys);
+          }
+        }
+      }
+
       MetadataStore store = getMetadataStore();
       if (saveOriginalMetadata) {
         if (store instanceof OMEXMLMetadata) {
           setupService();
-          Hashtable<String, Object> allMetadata =
-            new Hashtable<String, Object>();
-          allMetadata.putAll(metadata);
+          OriginalMetadataPopulator populator = new OriginalMetadataPopulator(
+            service, (OMEXMLMetadata) store, metadata);
 
           for (int series=0; series<getSeriesCount(); series++) {
             String name = "Series " + series;
@@ -1414,11 +2059,17 @@ public abstract class FormatReader extends FormatHandler
             }
             catch (Exception e) { }
             setSeries(series);
-            MetadataTools.merge(getSeriesMetadata(), allMetadata, name + " ");
+            populator.addSeries(name, getSeriesMetadata());
           }
           setSeries(0);
 
-          service.populateOriginalMetadata((OMEXMLMetadata) store, allMetadata);
+          if (store instanceof OMEXMLMetadataImpl &&
+            isLazyOriginalMetadataEnabled())
+          {
+            ((OMEXMLMetadataImpl) store).addOriginalMetadataPopulator(
+              populator);
+          }
+          else populator.run();
         }
       }
 
@@ -1907,4 +2558,51 @@ public abstract class FormatReader extends FormatHandler
     return transform;
   }
 
+  // -- Helper classes --
+
+  /**
+   * Merges the global and series metadata tables, and adds the result to
+   * an OME-XML store as OriginalMetadata annotations.  The tables are held
+   * by reference, so that the merge costs nothing until it is run.
+   */
+  private static class OriginalMetadataPopulator implements Runnable {
+    private final OMEXMLService service;
+    private final OMEXMLMetadata store;
+    private final Hashtable<String, Object> global;
+    private final List<String> prefixes = new ArrayList<String>();
+    private final List<Hashtable<String, Object>> seriesTables =
+      new ArrayList<Hashtable<String, Object>>();
+
+    OriginalMetadataPopulator(OMEXMLService service, OMEXMLMetadata store,
+      Hashtable<String, Object> global)
+    {
+      this.service = service;
+      this.store = store;
+      // lists in the global table are flattened in place when it is next
+      // retrieved, so a table holding any is copied as it is now
+      if (global instanceof MetadataTable &&
+        !((MetadataTable) global).hasListValues())
+      {
+        this.global = global;
+      }
+      else this.global = new Hashtable<String, Object>(global);
+    }
+
+    /** Adds a series table, whose keys are given the series name. */
+    void addSeries(String name, Hashtable<String, Object> table) {
+      prefixes.add(name + " ");
+      seriesTables.add(table);
+    }
+
+    @Override
+    public void run() {
+      Hashtable<String, Object> allMetadata = new Hashtable<String, Object>();
+      allMetadata.putAll(global);
+      for (int i=0; i<seriesTables.size(); i++) {
+        MetadataTools.merge(seriesTables.get(i), allMetadata, prefixes.get(i));
+      }
+      service.populateOriginalMetadata(store, allMetadata);
+    }
+  }
+
 }
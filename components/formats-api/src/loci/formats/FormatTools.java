@@ -1392,6 +1392,10 @@ public final class FormatTools {
    * object; this is taken care of internally.  Additionally, the
    * setMetadataRetrieve(...) method in IFormatWriter should not be called.
    *
+   * Planes are copied with a {@link ConversionPipeline}, so that reading
+   * overlaps writing; use a ConversionPipeline directly to configure the
+   * number of threads or to transform planes.
+   *
    * @param input the pre-initialized IFormatReader used for reading data.
    * @param output the uninitialized IFormatWriter used for writing data.
    * @param outputFile the full path name of the output file to be created.
@@ -1417,17 +1421,7 @@ public final class FormatTools {
     output.setMetadataRetrieve(meta);
     output.setId(outputFile);
 
-    for (int series=0; series<input.getSeriesCount(); series++) {
-      input.setSeries(series);
-      output.setSeries(series);
-
-      byte[] buf = new byte[getPlaneSize(input)];
-
-      for (int image=0; image<input.getImageCount(); image++) {
-        input.openBytes(image, buf);
-        output.saveBytes(image, buf);
-      }
-    }
+    new ConversionPipeline(input, output).run();
 
     input.close();
     output.close();
@@ -33,6 +33,7 @@
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Hashtable;
 import java.util.List;
 
@@ -272,6 +273,57 @@ public interface IFormatReader extends IFormatHandler {
   byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
     throws FormatException, IOException;
 
+  /**
+   * Obtains the specified image plane from the current file into a
+   * pre-allocated heap or direct buffer.
+   *
+   * @param no the image index within the file.
+   * @param buf a buffer with at least
+   *   (sizeX * sizeY * bytesPerPixel * RGB channel count) bytes remaining.
+   * @return the buffer <code>buf</code> for convenience.
+   * @throws FormatException if there was a problem parsing the metadata of the
+   *   file.
+   * @throws IOException if there was a problem reading the file.
+   * @see #openBytes(int, ByteBuffer, int, int, int, int)
+   */
+  ByteBuffer openBytes(int no, ByteBuffer buf)
+    throws FormatException, IOException;
+
+  /**
+   * Obtains a sub-image of the specified image plane into a pre-allocated
+   * heap or direct buffer.  The sub-image is written starting at the
+   * buffer's position, which is advanced past it; the buffer's limit is
+   * not changed.
+   *
+   * @param no the image index within the file.
+   * @param buf a buffer with enough bytes remaining to hold the sub-image.
+   * @param x X coordinate of the upper-left corner of the sub-image
+   * @param y Y coordinate of the upper-left corner of the sub-image
+   * @param w width of the sub-image
+   * @param h height of the sub-image
+   * @return the buffer <code>buf</code> for convenience.
+   * @throws FormatException if there was a problem parsing the metadata of the
+   *   file.
+   * @throws IOException if there was a problem reading the file.
+   */
+  ByteBuffer openBytes(int no, ByteBuffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException;
+
+  /**
+   * Obtains several sub-images of the current series at once.  Readers may
+   * reorder the reads, and combine the reads of nearby regions; the results
+   * are returned in the order of the requests.
+   *
+   * @param tiles the regions to read.
+   * @return one array per request, as returned by
+   *   {@link #openBytes(int, int, int, int, int)}.
+   * @throws FormatException if there was a problem parsing the metadata of the
+   *   file.
+   * @throws IOException if there was a problem reading the file.
+   */
+  byte[][] openBytes(List<TileRequest> tiles)
+    throws FormatException, IOException;
+
   /**
    * Obtains the specified image plane (or sub-image thereof) in the reader's
    * native data structure. For most readers this is a byte array; however,
@@ -569,10 +621,34 @@ public interface IFormatReader extends IFormatHandler {
   /** Set whether or not to flatten resolutions into individual series. */
   void setFlattenedResolutions(boolean flatten);
 
+  /**
+   * Sets the pool from which {@link #openBytes(int)} and
+   * {@link #openBytes(int, int, int, int, int)} obtain the arrays they
+   * return.  Callers may pass those arrays to {@link BufferPool#release}
+   * once they are done with them.  If null (the default), a new array is
+   * allocated for every call.
+   */
+  void setBufferPool(BufferPool pool);
+
+  /** Gets the pool used to allocate planes, or null if none is used. */
+  BufferPool getBufferPool();
+
   /**
    * Reopen any files that were closed, and which are expected to be open
    * while the reader is open.  This assumes that {@link #setId} has been
    * called, but close(false) has not been called.
    */
   void reopenFile() throws IOException;
+
+  /**
+   * Creates a new, fully initialized reader for the current file, without
+   * calling {@link #setId} again.  The clone shares this reader's core
+   * metadata, metadata tables and MetadataStore by reference, but opens its
+   * own file handles and has its own series and resolution, so it can be
+   * used independently of this reader, e.g. from another thread.  This
+   * assumes that {@link #setId} has been called.
+   *
+   * @throws FormatException if the reader does not support cloning.
+   */
+  IFormatReader cloneReader() throws FormatException, IOException;
 }
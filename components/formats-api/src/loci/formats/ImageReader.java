@@ -34,12 +34,25 @@ package loci.formats;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import loci.common.Location;
 import loci.common.RandomAccessInputStream;
@@ -55,6 +68,8 @@ import org.slf4j.LoggerFactory;
  * ImageReader is the master file format reader for all supported formats.
  * It uses one instance of each reader subclass (specified in readers.txt,
  * or other class list source) to identify file formats and read data.
+ * Each reader is constructed the first time it is needed; format detection
+ * uses a description of each reader class that is recorded once per JVM.
  *
  * @author Curtis Rueden ctrueden at wisc.edu
  */
@@ -65,11 +80,18 @@ public class ImageReader implements IFormatReader {
   private static final Logger LOGGER =
     LoggerFactory.getLogger(ImageReader.class);
 
+  /** Suggested size in bytes of the header block prefetched for detection. */
+  public static final int DEFAULT_PREFETCH_SIZE = 65536;
+
   // -- Static fields --
 
   /** Default list of reader classes, for use with noargs constructor. */
   private static ClassList<IFormatReader> defaultClasses;
 
+  /** Descriptions of all reader classes that have been instantiated. */
+  private static final Map<Class<?>, ReaderDescriptor> DESCRIPTORS =
+    Collections.synchronizedMap(new WeakHashMap<Class<?>, ReaderDescriptor>());
+
   // -- Static utility methods --
 
   public static ClassList<IFormatReader> getDefaultReaderClasses() {
@@ -89,9 +111,31 @@ public class ImageReader implements IFormatReader {
 
   // -- Fields --
 
-  /** List of supported file format readers. */
+  /** List of supported file format reader classes. */
+  private List<Class<? extends IFormatReader>> readerClasses;
+
+  /** Descriptions of the supported reader classes. */
+  private ReaderDescriptor[] descriptors;
+
+  /**
+   * List of supported file format readers.  An entry is null until the
+   * corresponding reader is first needed.
+   */
   private IFormatReader[] readers;
 
+  /** Metadata options shared by all readers. */
+  private MetadataOptions metadataOptions;
+
+  // -- Reader settings, applied to each reader when it is constructed --
+
+  private Boolean groupFiles;
+  private Boolean normalized;
+  private Boolean originalMetadataPopulated;
+  private Boolean metadataFiltered;
+  private Boolean flattenedResolutions;
+  private MetadataStore metadataStore;
+  private BufferPool bufferPool;
+
   /**
    * Valid suffixes for this file format.
    * Populated the first time getSuffixes() is called.
@@ -104,6 +148,33 @@ public class ImageReader implements IFormatReader {
   /** Current form index. */
   private int current;
 
+  /**
+   * Indices of readers that can only accept a file with one of their
+   * suffixes, keyed by suffix.  Built once at construction time.
+   */
+  private Map<String, int[]> suffixIndex;
+
+  /**
+   * Indices of readers that are not in the suffix index and so must
+   * always be checked, e.g. readers that inspect file contents.
+   */
+  private BitSet unindexedReaders;
+
+  /**
+   * Number of bytes prefetched from the start of a file when its contents
+   * must be inspected during format detection, or 0 if disabled.
+   */
+  private int prefetchSize = 0;
+
+  /** Cache of previous detection results, or null if not used. */
+  private DetectionCache detectionCache;
+
+  /**
+   * Executor used to inspect file contents for several readers at once,
+   * or null if readers are checked one at a time.
+   */
+  private Executor detectionExecutor;
+
   private boolean allowOpen = true;
 
   // -- Constructors --
@@ -118,27 +189,61 @@ public class ImageReader implements IFormatReader {
 
   /** Constructs a new ImageReader from the given list of reader classes. */
   public ImageReader(ClassList<IFormatReader> classList) {
+    // assign the same options instance to all readers
+    metadataOptions = new DynamicMetadataOptions();
+
     // add readers to the list
+    readerClasses = new ArrayList<Class<? extends IFormatReader>>();
+    List<ReaderDescriptor> descriptorList = new ArrayList<ReaderDescriptor>();
     List<IFormatReader> list = new ArrayList<IFormatReader>();
     Class<? extends IFormatReader>[] c = classList.getClasses();
-    // assign the same options instance to all readers
-    MetadataOptions opt = new DynamicMetadataOptions();
     for (int i=0; i<c.length; i++) {
+      ReaderDescriptor descriptor = DESCRIPTORS.get(c[i]);
       IFormatReader reader = null;
-      try {
-        reader = c[i].newInstance();
-        reader.setMetadataOptions(opt);
-      }
-      catch (IllegalAccessException exc) { }
-      catch (InstantiationException exc) { }
-      if (reader == null) {
-        LOGGER.error("{} cannot be instantiated.", c[i].getName());
-        continue;
+      if (descriptor == null) {
+        // first use of this class; a reader is needed to describe it
+        reader = newReader(c[i]);
+        if (reader == null) continue;
+        descriptor = new ReaderDescriptor(reader);
+        DESCRIPTORS.put(c[i], descriptor);
       }
+      readerClasses.add(c[i]);
+      descriptorList.add(descriptor);
       list.add(reader);
     }
+    descriptors = new ReaderDescriptor[descriptorList.size()];
+    descriptorList.toArray(descriptors);
     readers = new IFormatReader[list.size()];
     list.toArray(readers);
+    buildSuffixIndex();
+  }
+
+  /**
+   * Constructs a clone of the given ImageReader, sharing its reader list
+   * and settings, with the given clone of its current reader.
+   */
+  private ImageReader(ImageReader original, IFormatReader currentReader) {
+    readerClasses = original.readerClasses;
+    descriptors = original.descriptors;
+    readers = new IFormatReader[original.readers.length];
+    readers[original.current] = currentReader;
+    metadataOptions = original.metadataOptions;
+    groupFiles = original.groupFiles;
+    normalized = original.normalized;
+    originalMetadataPopulated = original.originalMetadataPopulated;
+    metadataFiltered = original.metadataFiltered;
+    flattenedResolutions = original.flattenedResolutions;
+    metadataStore = original.metadataStore;
+    bufferPool = original.bufferPool;
+    suffixes = original.suffixes;
+    suffixIndex = original.suffixIndex;
+    unindexedReaders = original.unindexedReaders;
+    prefetchSize = original.prefetchSize;
+    detectionCache = original.detectionCache;
+    detectionExecutor = original.detectionExecutor;
+    allowOpen = original.allowOpen;
+    currentId = original.currentId;
+    current = original.current;
   }
 
   // -- ImageReader API methods --
@@ -151,6 +256,72 @@ public class ImageReader implements IFormatReader {
     this.allowOpen = allowOpen;
   }
 
+  /**
+   * Sets the number of bytes to prefetch from the start of a file when
+   * its contents must be inspected to detect the format.
+   *
+   * If positive, the file is opened once and the header block is read in a
+   * single call; each reader using the default type checking is then given
+   * a read-only stream that serves the header block from memory, and only
+   * reads past the header block go back to the file.  If 0 (the default),
+   * each reader opens the file itself.
+   *
+   * @see #DEFAULT_PREFETCH_SIZE
+   */
+  public void setPrefetchSize(int prefetchSize) {
+    if (prefetchSize < 0) {
+      throw new IllegalArgumentException(
+        "Invalid prefetch size: " + prefetchSize);
+    }
+    this.prefetchSize = prefetchSize;
+  }
+
+  /**
+   * Gets the number of bytes prefetched from the start of a file during
+   * format detection, or 0 if prefetching is disabled.
+   */
+  public int getPrefetchSize() {
+    return prefetchSize;
+  }
+
+  /**
+   * Sets the cache used to remember which reader opens each file.
+   * If non-null, format detection is skipped for any file that is in the
+   * cache and has not been modified since it was cached, and the result of
+   * each new detection is added to the cache.  The cache is only consulted
+   * when file system access is allowed (see {@link #setAllowOpenFiles}).
+   */
+  public void setDetectionCache(DetectionCache cache) {
+    detectionCache = cache;
+  }
+
+  /** Gets the cache used to remember which reader opens each file. */
+  public DetectionCache getDetectionCache() {
+    return detectionCache;
+  }
+
+  /**
+   * Sets the executor used to inspect file contents during format
+   * detection.  If non-null, the content checks of all candidate readers
+   * that cannot be ruled in or out by suffix are run concurrently on the
+   * executor, and the first reader in the reader list that accepts the
+   * file is chosen, as in sequential detection.  The remaining checks are
+   * cancelled once the result is known.
+   *
+   * The executor should be bounded, e.g. one created with
+   * {@link java.util.concurrent.Executors#newFixedThreadPool(int)}; it is
+   * not shut down by this reader.  If null (the default), readers are
+   * checked one at a time.
+   */
+  public void setDetectionExecutor(Executor executor) {
+    detectionExecutor = executor;
+  }
+
+  /** Gets the executor used to inspect file contents during detection. */
+  public Executor getDetectionExecutor() {
+    return detectionExecutor;
+  }
+
   /** Gets a string describing the file format for the given file. */
   public String getFormat(String id) throws FormatException, IOException {
     return getReader(id).getFormat();
@@ -181,14 +352,20 @@ public class ImageReader implements IFormatReader {
       // initialize file
       boolean success = false;
       if (!invalid) {
-        for (int i=0; i<readers.length; i++) {
-          if (readers[i].isThisType(id, allowOpen)) {
-            current = i;
-            currentId = id;
-            success = true;
-            break;
+        boolean cache = detectionCache != null && allowOpen && !fake && !omero;
+        int index = cache ? getCachedReader(id) : -1;
+        if (index < 0) {
+          index = findReader(id, allowOpen);
+          if (cache && index >= 0) {
+            detectionCache.put(id, readerClasses.get(index));
           }
         }
+        if (index >= 0) {
+          getReaderInstance(index);
+          current = index;
+          currentId = id;
+          success = true;
+        }
       }
       if (!success) {
         throw new UnknownFormatException("Unknown file format: " + id);
@@ -197,6 +374,21 @@ public class ImageReader implements IFormatReader {
     return getReader();
   }
 
+  /**
+   * Makes the given reader, which must be one of this ImageReader's readers
+   * and already be initialized, the reader used for the given file.
+   */
+  void setCurrentReader(IFormatReader reader, String id) {
+    for (int i=0; i<readers.length; i++) {
+      if (readers[i] == reader) {
+        current = i;
+        currentId = id;
+        return;
+      }
+    }
+    throw new IllegalArgumentException("Unknown reader: " + reader);
+  }
+
   /** Gets the reader used to open the current file. */
   public IFormatReader getReader() {
     FormatTools.assertId(currentId, true, 2);
@@ -205,16 +397,21 @@ public class ImageReader implements IFormatReader {
 
   /** Gets the file format reader instance matching the given class. */
   public IFormatReader getReader(Class<? extends IFormatReader> c) {
-    for (int i=0; i<readers.length; i++) {
-      if (readers[i].getClass().equals(c)) return readers[i];
+    for (int i=0; i<readerClasses.size(); i++) {
+      if (readerClasses.get(i).equals(c)) return getReaderInstance(i);
     }
     return null;
   }
 
-  /** Gets all constituent file format readers. */
+  /**
+   * Gets all constituent file format readers.
+   * Any readers that have not yet been needed are constructed.
+   */
   public IFormatReader[] getReaders() {
     IFormatReader[] r = new IFormatReader[readers.length];
-    System.arraycopy(readers, 0, r, 0, readers.length);
+    for (int i=0; i<readers.length; i++) {
+      r[i] = getReaderInstance(i);
+    }
     return r;
   }
 
@@ -223,13 +420,13 @@ public class ImageReader implements IFormatReader {
   /* @see loci.formats.IMetadataConfigurable#getSupportedMetadataLevels() */
   @Override
   public Set<MetadataLevel> getSupportedMetadataLevels() {
-    return getReaders()[0].getSupportedMetadataLevels();
+    return new HashSet<MetadataLevel>(descriptors[0].metadataLevels);
   }
 
   /* @see loci.formats.IMetadataConfigurable#getMetadataOptions() */
   @Override
   public MetadataOptions getMetadataOptions() {
-    return getReaders()[0].getMetadataOptions();
+    return metadataOptions;
   }
 
   /**
@@ -237,8 +434,9 @@ public class ImageReader implements IFormatReader {
    */
   @Override
   public void setMetadataOptions(MetadataOptions options) {
+    metadataOptions = options;
     for (IFormatReader reader : readers) {
-      reader.setMetadataOptions(options);
+      if (reader != null) reader.setMetadataOptions(options);
     }
   }
 
@@ -247,17 +445,14 @@ public class ImageReader implements IFormatReader {
   /* @see IFormatReader#isThisType(String, boolean) */
   @Override
   public boolean isThisType(String name, boolean open) {
-    for (int i=0; i<readers.length; i++) {
-      if (readers[i].isThisType(name, open)) return true;
-    }
-    return false;
+    return findReader(name, open) >= 0;
   }
 
   /* @see IFormatReader.isThisType(byte[]) */
   @Override
   public boolean isThisType(byte[] block) {
     for (int i=0; i<readers.length; i++) {
-      if (readers[i].isThisType(block)) return true;
+      if (getReaderInstance(i).isThisType(block)) return true;
     }
     return false;
   }
@@ -266,7 +461,7 @@ public class ImageReader implements IFormatReader {
   @Override
   public boolean isThisType(RandomAccessInputStream stream) throws IOException {
     for (int i=0; i<readers.length; i++) {
-      if (readers[i].isThisType(stream)) return true;
+      if (getReaderInstance(i).isThisType(stream)) return true;
     }
     return false;
   }
@@ -457,6 +652,30 @@ public class ImageReader implements IFormatReader {
     return getReader().openBytes(no, buf, x, y, w, h);
   }
 
+  /* @see IFormatReader#openBytes(int, ByteBuffer) */
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf)
+    throws FormatException, IOException
+  {
+    return getReader().openBytes(no, buf);
+  }
+
+  /* @see IFormatReader#openBytes(int, ByteBuffer, int, int, int, int) */
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf, int x, int y, int w,
+    int h) throws FormatException, IOException
+  {
+    return getReader().openBytes(no, buf, x, y, w, h);
+  }
+
+  /* @see IFormatReader#openBytes(List) */
+  @Override
+  public byte[][] openBytes(List<TileRequest> tiles)
+    throws FormatException, IOException
+  {
+    return getReader().openBytes(tiles);
+  }
+
   /* @see IFormatReader#openPlane(int, int, int, int, int) */
   @Override
   public Object openPlane(int no, int x, int y, int w, int h)
@@ -582,7 +801,9 @@ public class ImageReader implements IFormatReader {
   /* @see IFormatReader#close(boolean) */
   @Override
   public void close(boolean fileOnly) throws IOException {
-    for (int i=0; i<readers.length; i++) readers[i].close(fileOnly);
+    for (IFormatReader reader : readers) {
+      if (reader != null) reader.close(fileOnly);
+    }
     if (!fileOnly) currentId = null;
   }
 
@@ -590,14 +811,17 @@ public class ImageReader implements IFormatReader {
   @Override
   public void setGroupFiles(boolean group) {
     FormatTools.assertId(currentId, false, 2);
-    for (int i=0; i<readers.length; i++) readers[i].setGroupFiles(group);
+    groupFiles = group;
+    for (IFormatReader reader : readers) {
+      if (reader != null) reader.setGroupFiles(group);
+    }
   }
 
   /* @see IFormatReader#isGroupFiles() */
   @Override
   public boolean isGroupFiles() {
     // all readers should have same file grouping setting
-    return readers[0].isGroupFiles();
+    return groupFiles != null ? groupFiles : descriptors[0].groupFiles;
   }
 
   /* @see IFormatReader#fileGroupOption(String) */
@@ -616,29 +840,34 @@ public class ImageReader implements IFormatReader {
   @Override
   public void setNormalized(boolean normalize) {
     FormatTools.assertId(currentId, false, 2);
-    for (int i=0; i<readers.length; i++) readers[i].setNormalized(normalize);
+    normalized = normalize;
+    for (IFormatReader reader : readers) {
+      if (reader != null) reader.setNormalized(normalize);
+    }
   }
 
   /* @see IFormatReader#isNormalized() */
   @Override
   public boolean isNormalized() {
     // NB: all readers should have the same normalization setting
-    return readers[0].isNormalized();
+    return normalized != null ? normalized : descriptors[0].normalized;
   }
 
   /* @see IFormatReader#setOriginalMetadataPopulated(boolean) */
   @Override
   public void setOriginalMetadataPopulated(boolean populate) {
     FormatTools.assertId(currentId, false, 1);
-    for (int i=0; i<readers.length; i++) {
-      readers[i].setOriginalMetadataPopulated(populate);
+    originalMetadataPopulated = populate;
+    for (IFormatReader reader : readers) {
+      if (reader != null) reader.setOriginalMetadataPopulated(populate);
     }
   }
 
   /* @see IFormatReader#isOriginalMetadataPopulated() */
   @Override
   public boolean isOriginalMetadataPopulated() {
-    return readers[0].isOriginalMetadataPopulated();
+    return originalMetadataPopulated != null ? originalMetadataPopulated :
+      descriptors[0].originalMetadataPopulated;
   }
 
   /* @see IFormatReader#getCurrentFile() */
@@ -652,21 +881,28 @@ public class ImageReader implements IFormatReader {
   @Override
   public void setMetadataFiltered(boolean filter) {
     FormatTools.assertId(currentId, false, 2);
-    for (int i=0; i<readers.length; i++) readers[i].setMetadataFiltered(filter);
+    metadataFiltered = filter;
+    for (IFormatReader reader : readers) {
+      if (reader != null) reader.setMetadataFiltered(filter);
+    }
   }
 
   /* @see IFormatReader#isMetadataFiltered() */
   @Override
   public boolean isMetadataFiltered() {
     // NB: all readers should have the same metadata filtering setting
-    return readers[0].isMetadataFiltered();
+    return metadataFiltered != null ? metadataFiltered :
+      descriptors[0].metadataFiltered;
   }
 
   /* @see IFormatReader#setMetadataStore(MetadataStore) */
   @Override
   public void setMetadataStore(MetadataStore store) {
     FormatTools.assertId(currentId, false, 2);
-    for (int i=0; i<readers.length; i++) readers[i].setMetadataStore(store);
+    metadataStore = store;
+    for (IFormatReader reader : readers) {
+      if (reader != null) reader.setMetadataStore(store);
+    }
   }
 
   /* @see IFormatReader#getMetadataStore() */
@@ -783,17 +1019,35 @@ public class ImageReader implements IFormatReader {
   @Override
   public boolean hasFlattenedResolutions() {
     // all readers should have the same flattened setting
-    return readers[0].hasFlattenedResolutions();
+    return flattenedResolutions != null ? flattenedResolutions :
+      descriptors[0].flattenedResolutions;
   }
 
   /* @see IFormatReader#setFlattenedResolutions(boolean) */
   @Override
   public void setFlattenedResolutions(boolean flattened) {
+    flattenedResolutions = flattened;
     for (IFormatReader reader : readers) {
-      reader.setFlattenedResolutions(flattened);
+      if (reader != null) reader.setFlattenedResolutions(flattened);
     }
   }
 
+  /* @see IFormatReader#setBufferPool(BufferPool) */
+  @Override
+  public void setBufferPool(BufferPool pool) {
+    bufferPool = pool;
+    for (IFormatReader reader : readers) {
+      if (reader != null) reader.setBufferPool(pool);
+    }
+  }
+
+  /* @see IFormatReader#getBufferPool() */
+  @Override
+  public BufferPool getBufferPool() {
+    // all readers should have the same buffer pool
+    return bufferPool;
+  }
+
   // -- IFormatHandler API methods --
 
   /* @see IFormatHandler#isThisType(String) */
@@ -813,8 +1067,8 @@ public class ImageReader implements IFormatReader {
   public String[] getSuffixes() {
     if (suffixes == null) {
       HashSet<String> suffixSet = new HashSet<String>();
-      for (int i=0; i<readers.length; i++) {
-        String[] suf = readers[i].getSuffixes();
+      for (int i=0; i<descriptors.length; i++) {
+        String[] suf = descriptors[i].suffixes;
         for (int j=0; j<suf.length; j++) suffixSet.add(suf[j]);
       }
       suffixes = new String[suffixSet.size()];
@@ -845,8 +1099,410 @@ public class ImageReader implements IFormatReader {
     getReader().reopenFile();
   }
 
+  /**
+   * Clones the reader used for the current file.  The clone is an
+   * ImageReader with the same readers and settings as this one.
+   *
+   * @see IFormatReader#cloneReader()
+   */
+  @Override
+  public IFormatReader cloneReader() throws FormatException, IOException {
+    return new ImageReader(this, getReader().cloneReader());
+  }
+
   /* @see IFormatHandler#close() */
   @Override
   public void close() throws IOException { close(false); }
 
+  // -- Helper classes --
+
+  /** Checks whether one reader accepts a file, during format detection. */
+  private static class TypeCheck implements Callable<Boolean> {
+    private final IFormatReader reader;
+    private final String id;
+    private final boolean open;
+    private final PrefetchedHandle prefetch;
+
+    /**
+     * @param prefetch the prefetched start of the file, or null if the
+     *   reader should perform its own type check
+     */
+    TypeCheck(IFormatReader reader, String id, boolean open,
+      PrefetchedHandle prefetch)
+    {
+      this.reader = reader;
+      this.id = id;
+      this.open = open;
+      this.prefetch = prefetch;
+    }
+
+    boolean check() {
+      if (prefetch == null) return reader.isThisType(id, open);
+      return isThisType((FormatReader) reader, id, prefetch);
+    }
+
+    @Override
+    public Boolean call() {
+      return check();
+    }
+  }
+
+  /**
+   * Describes a reader class, so that format detection can rule out
+   * readers without constructing them.
+   */
+  private static class ReaderDescriptor {
+
+    /** Suffixes reported by {@link IFormatHandler#getSuffixes()}. */
+    final String[] suffixes;
+
+    /** Whether the reader uses the default suffix-based type check. */
+    final boolean defaultTypeCheck;
+
+    // state used by the default type check; see FormatReader
+    final String[] typeSuffixes;
+    final boolean suffixNecessary;
+    final boolean suffixSufficient;
+
+    // default settings, reported by ImageReader until they are changed
+    final Set<MetadataLevel> metadataLevels;
+    final boolean groupFiles;
+    final boolean normalized;
+    final boolean originalMetadataPopulated;
+    final boolean metadataFiltered;
+    final boolean flattenedResolutions;
+
+    ReaderDescriptor(IFormatReader reader) {
+      suffixes = reader.getSuffixes().clone();
+      metadataLevels = Collections.unmodifiableSet(
+        new HashSet<MetadataLevel>(reader.getSupportedMetadataLevels()));
+      groupFiles = reader.isGroupFiles();
+      normalized = reader.isNormalized();
+      originalMetadataPopulated = reader.isOriginalMetadataPopulated();
+      metadataFiltered = reader.isMetadataFiltered();
+      flattenedResolutions = reader.hasFlattenedResolutions();
+      if (reader instanceof FormatReader) {
+        FormatReader r = (FormatReader) reader;
+        defaultTypeCheck = usesDefaultTypeCheck(r.getClass());
+        typeSuffixes = r.suffixes.clone();
+        suffixNecessary = r.suffixNecessary;
+        suffixSufficient = r.suffixSufficient;
+      }
+      else {
+        defaultTypeCheck = false;
+        typeSuffixes = new String[0];
+        suffixNecessary = false;
+        suffixSufficient = false;
+      }
+    }
+
+    /* @see FormatReader#isThisTypeBySuffix(String, boolean) */
+    Boolean isThisTypeBySuffix(String name, boolean open) {
+      return FormatReader.isThisTypeBySuffix(name, open, typeSuffixes,
+        suffixNecessary, suffixSufficient);
+    }
+
+    /**
+     * Returns true if the given reader class does not override
+     * {@link FormatReader#isThisType(String, boolean)}.
+     */
+    private static boolean usesDefaultTypeCheck(Class<?> c) {
+      try {
+        Method m = c.getMethod("isThisType", String.class, boolean.class);
+        return m.getDeclaringClass() == FormatReader.class;
+      }
+      catch (NoSuchMethodException e) {
+        return false;
+      }
+    }
+
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Gets the reader at the given index in the reader list,
+   * constructing it if it has not been needed before.
+   */
+  private IFormatReader getReaderInstance(int index) {
+    if (readers[index] == null) {
+      IFormatReader reader = newReader(readerClasses.get(index));
+      if (reader == null) {
+        throw new IllegalStateException(
+          readerClasses.get(index).getName() + " cannot be instantiated.");
+      }
+      readers[index] = reader;
+    }
+    return readers[index];
+  }
+
+  /**
+   * Constructs a reader of the given class, configured with the options
+   * and settings of this ImageReader.
+   *
+   * @return the new reader, or null if the class cannot be instantiated
+   */
+  private IFormatReader newReader(Class<? extends IFormatReader> c) {
+    IFormatReader reader = null;
+    try {
+      reader = c.newInstance();
+    }
+    catch (IllegalAccessException exc) { }
+    catch (InstantiationException exc) { }
+    if (reader == null) {
+      LOGGER.error("{} cannot be instantiated.", c.getName());
+      return null;
+    }
+    reader.setMetadataOptions(metadataOptions);
+    if (groupFiles != null) reader.setGroupFiles(groupFiles);
+    if (normalized != null) reader.setNormalized(normalized);
+    if (originalMetadataPopulated != null) {
+      reader.setOriginalMetadataPopulated(originalMetadataPopulated);
+    }
+    if (metadataFiltered != null) reader.setMetadataFiltered(metadataFiltered);
+    if (flattenedResolutions != null) {
+      reader.setFlattenedResolutions(flattenedResolutions);
+    }
+    if (metadataStore != null) reader.setMetadataStore(metadataStore);
+    if (bufferPool != null) reader.setBufferPool(bufferPool);
+    return reader;
+  }
+
+  /**
+   * Builds the suffix index used to narrow down the readers that are checked
+   * by {@link #getReader(String)}.  A reader is indexed only if it uses the
+   * default {@link FormatReader#isThisType(String, boolean)} logic and
+   * requires a suffix match; such a reader can never accept a file whose
+   * name does not end with one of its suffixes.
+   */
+  private void buildSuffixIndex() {
+    Map<String, List<Integer>> index = new HashMap<String, List<Integer>>();
+    unindexedReaders = new BitSet(descriptors.length);
+    for (int i=0; i<descriptors.length; i++) {
+      if (!descriptors[i].defaultTypeCheck ||
+        !descriptors[i].suffixNecessary)
+      {
+        unindexedReaders.set(i);
+        continue;
+      }
+      for (String suffix : descriptors[i].typeSuffixes) {
+        List<Integer> indices = index.get(suffix);
+        if (indices == null) {
+          indices = new ArrayList<Integer>();
+          index.put(suffix, indices);
+        }
+        // NB: a reader may list the same suffix more than once
+        if (!indices.contains(i)) indices.add(i);
+      }
+    }
+
+    suffixIndex = new HashMap<String, int[]>();
+    for (Map.Entry<String, List<Integer>> entry : index.entrySet()) {
+      List<Integer> indices = entry.getValue();
+      int[] values = new int[indices.size()];
+      for (int i=0; i<values.length; i++) {
+        values[i] = indices.get(i);
+      }
+      suffixIndex.put(entry.getKey(), values);
+    }
+  }
+
+  /**
+   * Gets the index of the reader recorded in the detection cache for the
+   * given file, or -1 if there is no valid entry.
+   */
+  private int getCachedReader(String id) {
+    String readerClass = detectionCache.get(id);
+    if (readerClass == null) return -1;
+    for (int i=0; i<readerClasses.size(); i++) {
+      if (readerClasses.get(i).getName().equals(readerClass)) return i;
+    }
+    // the cached reader is not in this reader's class list
+    return -1;
+  }
+
+  /**
+   * Finds the first reader that accepts the given file.
+   *
+   * @return the index of the matching reader, or -1 if no reader matches
+   */
+  private int findReader(String id, boolean open) {
+    BitSet candidates = getCandidateReaders(id);
+    PrefetchedHandle prefetch = null;
+    boolean prefetchFailed = prefetchSize == 0 || !open;
+
+    // with an executor, checks are queued and their results read in order
+    boolean concurrent = detectionExecutor != null && open;
+    List<FutureTask<Boolean>> checks = new ArrayList<FutureTask<Boolean>>();
+    List<Integer> checkIndices = new ArrayList<Integer>();
+    int match = -1;
+    try {
+      for (int i=candidates.nextSetBit(0); i>=0;
+        i=candidates.nextSetBit(i + 1))
+      {
+        TypeCheck check;
+        if (!descriptors[i].defaultTypeCheck) {
+          check = new TypeCheck(getReaderInstance(i), id, open, null);
+        }
+        else {
+          // check the suffix without constructing the reader
+          Boolean suffixType = descriptors[i].isThisTypeBySuffix(id, open);
+          if (suffixType != null) {
+            if (suffixType) {
+              match = i;
+              break;
+            }
+            continue;
+          }
+
+          // the file contents must be inspected; open the file only once
+          if (prefetch == null && !prefetchFailed) {
+            try {
+              prefetch = new PrefetchedHandle(id, prefetchSize);
+            }
+            catch (IOException e) {
+              LOGGER.debug("Could not prefetch {}", id, e);
+              prefetchFailed = true;
+            }
+          }
+          check = new TypeCheck(getReaderInstance(i), id, open, prefetch);
+        }
+
+        if (!concurrent) {
+          if (check.check()) return i;
+          continue;
+        }
+        FutureTask<Boolean> task = new FutureTask<Boolean>(check);
+        try {
+          detectionExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+          LOGGER.debug("Checking {} in the calling thread", id, e);
+          task.run();
+        }
+        checks.add(task);
+        checkIndices.add(i);
+      }
+      if (concurrent) {
+        int first = getFirstMatch(checks);
+        if (first >= 0) match = checkIndices.get(first);
+      }
+      return match;
+    }
+    finally {
+      if (concurrent) finishChecks(checks);
+      if (prefetch != null) {
+        try {
+          prefetch.close();
+        }
+        catch (IOException e) {
+          LOGGER.debug("Could not close {}", id, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for the given type checks in order, and returns the index of the
+   * first one that accepted the file, or -1 if none did.
+   */
+  private static int getFirstMatch(List<FutureTask<Boolean>> checks) {
+    for (int i=0; i<checks.size(); i++) {
+      try {
+        if (checks.get(i).get()) return i;
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return -1;
+      }
+      catch (ExecutionException e) {
+        // propagate unchecked exceptions, as sequential detection would
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        LOGGER.debug("", cause);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Cancels any type checks that have not started, and waits for those
+   * that are running, so that the prefetched handle can be closed.
+   */
+  private static void finishChecks(List<FutureTask<Boolean>> checks) {
+    for (FutureTask<Boolean> check : checks) {
+      check.cancel(false);
+    }
+    for (FutureTask<Boolean> check : checks) {
+      if (check.isCancelled()) continue;
+      try {
+        check.get();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      catch (ExecutionException e) {
+        LOGGER.debug("", e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Checks whether the given reader accepts a stream that reads from the
+   * given prefetched handle.
+   */
+  private static boolean isThisType(FormatReader reader, String id,
+    PrefetchedHandle prefetch)
+  {
+    try {
+      RandomAccessInputStream stream =
+        new RandomAccessInputStream(prefetch.duplicate(), id);
+      boolean isThisType = reader.isThisType(stream);
+      stream.close();
+      return isThisType;
+    }
+    catch (IOException e) {
+      LOGGER.debug("", e);
+      return false;
+    }
+  }
+
+  /**
+   * Gets the indices of all readers that might accept the given file,
+   * in the same order as the reader list.  Suffixes are matched in the
+   * same way as {@link FormatHandler#checkSuffix(String, String[])},
+   * including any of the {@link FormatHandler#COMPRESSION_SUFFIXES}.
+   */
+  private BitSet getCandidateReaders(String id) {
+    BitSet candidates = (BitSet) unindexedReaders.clone();
+    if (id == null) return candidates;
+    String name = id.toLowerCase();
+    addSuffixCandidates(name, candidates);
+    for (String compression : FormatHandler.COMPRESSION_SUFFIXES) {
+      String s = "." + compression;
+      if (name.endsWith(s)) {
+        addSuffixCandidates(
+          name.substring(0, name.length() - s.length()), candidates);
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Marks each reader with a suffix matching the end of the given
+   * (lowercase) file name as a candidate.
+   */
+  private void addSuffixCandidates(String name, BitSet candidates) {
+    int dot = name.indexOf('.');
+    while (dot >= 0) {
+      int[] indices = suffixIndex.get(name.substring(dot + 1));
+      if (indices != null) {
+        for (int index : indices) candidates.set(index);
+      }
+      dot = name.indexOf('.', dot + 1);
+    }
+  }
+
 }
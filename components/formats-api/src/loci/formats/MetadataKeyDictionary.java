@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+/**
+ * Assigns small integer ids to metadata keys.
+ * <p>
+ * A reader shares one dictionary between the metadata tables of all of its
+ * series (see {@link MetadataTable#setKeyDictionary}), so that each key
+ * string is stored once, and each series table only needs a column of
+ * values indexed by key id.  Ids are assigned in order from 0 and are never
+ * reused.  A dictionary is not thread-safe, unless it has been made
+ * read-only, as it is when a table that uses it is cloned.
+ */
+public final class MetadataKeyDictionary {
+
+  // -- Constants --
+
+  private static final int MIN_CAPACITY = 16;
+
+  // -- Fields --
+
+  /** Open-addressed hash table of keys, and the id of each key. */
+  private String[] table = new String[MIN_CAPACITY];
+  private int[] tableIds = new int[MIN_CAPACITY];
+
+  /** Keys indexed by id. */
+  private String[] keys = new String[MIN_CAPACITY / 2];
+
+  private int size;
+
+  private volatile boolean readOnly;
+
+  // -- MetadataKeyDictionary API methods --
+
+  /**
+   * Gets the id of the given key, adding it if it is not present.
+   *
+   * @throws IllegalStateException if the key is not present and the
+   *   dictionary is read-only.
+   */
+  public int add(String key) {
+    int mask = table.length - 1;
+    int i = hash(key) & mask;
+    String k;
+    while ((k = table[i]) != null) {
+      if (k.equals(key)) return tableIds[i];
+      i = (i + 1) & mask;
+    }
+    if (readOnly) throw new IllegalStateException("Dictionary is read-only");
+    if (size == keys.length) {
+      String[] newKeys = new String[keys.length * 2];
+      System.arraycopy(keys, 0, newKeys, 0, size);
+      keys = newKeys;
+    }
+    int id = size++;
+    keys[id] = key;
+    table[i] = key;
+    tableIds[i] = id;
+    if (size * 3 > table.length * 2) resize();
+    return id;
+  }
+
+  /** Gets the id of the given key, or -1 if it is not present. */
+  public int indexOf(Object key) {
+    if (key == null) throw new NullPointerException();
+    int mask = table.length - 1;
+    int i = hash(key) & mask;
+    String k;
+    while ((k = table[i]) != null) {
+      if (k == key || k.equals(key)) return tableIds[i];
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /** Gets the key with the given id. */
+  public String getKey(int id) {
+    if (id < 0 || id >= size) {
+      throw new IndexOutOfBoundsException("Invalid key id: " + id);
+    }
+    return keys[id];
+  }
+
+  /** Gets the number of keys in the dictionary. */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Prevents keys from being added, so that the dictionary can be read from
+   * several threads.  This cannot be undone; use {@link #copy()} to add
+   * more keys.
+   */
+  public void setReadOnly() {
+    readOnly = true;
+  }
+
+  /** Returns true if keys can no longer be added. */
+  public boolean isReadOnly() {
+    return readOnly;
+  }
+
+  /** Creates a modifiable copy, which assigns the same ids to all keys. */
+  public MetadataKeyDictionary copy() {
+    MetadataKeyDictionary copy = new MetadataKeyDictionary();
+    copy.table = table.clone();
+    copy.tableIds = tableIds.clone();
+    copy.keys = keys.clone();
+    copy.size = size;
+    return copy;
+  }
+
+  // -- Helper methods --
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private void resize() {
+    String[] newTable = new String[table.length * 2];
+    int[] newIds = new int[newTable.length];
+    int mask = newTable.length - 1;
+    for (int id=0; id<size; id++) {
+      int i = hash(keys[id]) & mask;
+      while (newTable[i] != null) i = (i + 1) & mask;
+      newTable[i] = keys[id];
+      newIds[i] = id;
+    }
+    table = newTable;
+    tableIds = newIds;
+  }
+
+}
@@ -0,0 +1,941 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.ObjectStreamException;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Vector;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Compact, unsynchronized table of original metadata.
+ * <p>
+ * MetadataTable extends Hashtable so that it can be used wherever
+ * Bio-Formats has always exposed metadata as a Hashtable, such as
+ * {@link IFormatReader#getGlobalMetadata()} and
+ * {@link CoreMetadata#seriesMetadata}, but it stores its entries in
+ * open-addressed arrays rather than in one Hashtable entry object per key.
+ * Keys are interned, so that tables with the same keys (typically one per
+ * series) share the key strings.  Numeric values are stored unboxed, and
+ * are boxed again when they are read.
+ * <p>
+ * Tables that share most of their keys, such as the series tables of one
+ * reader, can also share a {@link MetadataKeyDictionary}.  Such a table
+ * stores no keys at all, only a column of values indexed by key id.  If the
+ * ids a table uses become too sparse for a column to be compact, the table
+ * goes back to storing its own keys.
+ * <p>
+ * Unlike Hashtable, a MetadataTable is not synchronized.  Iterators and
+ * enumerations work on a snapshot of the keys taken when they are created,
+ * so they never throw ConcurrentModificationException.  The Map methods
+ * that take functions (forEach, replaceAll, compute, computeIfAbsent,
+ * computeIfPresent and merge) are implemented on top of get, put and
+ * remove, as the default methods of Map are, since Hashtable implements
+ * them against its own storage.  Serializing a MetadataTable writes a plain
+ * Hashtable with the same entries.
+ * <p>
+ * A clone shares its key dictionary, if any, with the original table.  The
+ * dictionary is then made read-only (see
+ * {@link MetadataKeyDictionary#setReadOnly()}), and a table that needs to
+ * add a key to it switches to its own copy first, so clones can be read
+ * from other threads while the original is modified.
+ */
+public class MetadataTable extends Hashtable<String, Object> {
+
+  // -- Constants --
+
+  private static final long serialVersionUID = 1L;
+
+  private static final int MIN_CAPACITY = 8;
+
+  /** Value types; OBJECT values are held in the values array. */
+  private static final byte OBJECT = 0;
+  private static final byte BYTE = 1;
+  private static final byte SHORT = 2;
+  private static final byte INT = 3;
+  private static final byte LONG = 4;
+  private static final byte FLOAT = 5;
+  private static final byte DOUBLE = 6;
+
+  // -- Fields --
+
+  /** Keys of each slot, or null if a key dictionary is used. */
+  private String[] keys;
+
+  /**
+   * The key dictionary in use, if any; slot i then holds the value of the
+   * key with id (base + i).
+   */
+  private MetadataKeyDictionary dictionary;
+  private int base;
+
+  /** The last dictionary passed to {@link #setKeyDictionary}. */
+  private MetadataKeyDictionary requestedDictionary;
+
+  private Object[] values;
+
+  /** Types and bits of unboxed values; null until one is stored. */
+  private byte[] types;
+  private long[] bits;
+
+  private int size;
+
+  /** Number of values that are Vectors, i.e. lists to be flattened. */
+  private int listCount;
+
+  // -- Constructors --
+
+  /** Constructs an empty table. */
+  public MetadataTable() {
+    this(MIN_CAPACITY / 2);
+  }
+
+  /** Constructs an empty table with room for the given number of keys. */
+  public MetadataTable(int expectedSize) {
+    // the Hashtable storage is never used, so keep it as small as possible
+    super(1);
+    if (expectedSize < 0) {
+      throw new IllegalArgumentException("Invalid size: " + expectedSize);
+    }
+    int capacity = MIN_CAPACITY;
+    while (capacity < expectedSize * 2) capacity <<= 1;
+    keys = new String[capacity];
+    values = new Object[capacity];
+  }
+
+  /** Constructs a table containing the entries of the given map. */
+  public MetadataTable(Map<String, ?> m) {
+    this(m.size());
+    putAll(m);
+  }
+
+  // -- MetadataTable API methods --
+
+  /**
+   * Stores this table's values in columns indexed by the ids of the given
+   * dictionary, converting any existing entries.  Has no effect if the
+   * dictionary was already set, even if the table has since gone back to
+   * storing its own keys because the ids it uses are too sparse.
+   */
+  public void setKeyDictionary(MetadataKeyDictionary dict) {
+    if (dict == requestedDictionary) return;
+    requestedDictionary = dict;
+    reload(dict);
+  }
+
+  /**
+   * Returns true if any value is a {@link java.util.Vector}, as stored by
+   * {@link FormatReader#addMetaList}, so that the table needs to be
+   * flattened before it is read.  This does not require a scan.
+   */
+  public boolean hasListValues() {
+    return listCount > 0;
+  }
+
+  /**
+   * Gets the dictionary whose ids index this table's values, or null if the
+   * table stores its own keys.
+   */
+  public MetadataKeyDictionary getKeyDictionary() {
+    return dictionary;
+  }
+
+  /** Stores a byte value without boxing it. */
+  public void putByte(String key, byte value) {
+    putBits(key, BYTE, value);
+  }
+
+  /** Stores a short value without boxing it. */
+  public void putShort(String key, short value) {
+    putBits(key, SHORT, value);
+  }
+
+  /** Stores an int value without boxing it. */
+  public void putInt(String key, int value) {
+    putBits(key, INT, value);
+  }
+
+  /** Stores a long value without boxing it. */
+  public void putLong(String key, long value) {
+    putBits(key, LONG, value);
+  }
+
+  /** Stores a float value without boxing it. */
+  public void putFloat(String key, float value) {
+    putBits(key, FLOAT, Float.floatToRawIntBits(value));
+  }
+
+  /** Stores a double value without boxing it. */
+  public void putDouble(String key, double value) {
+    putBits(key, DOUBLE, Double.doubleToRawLongBits(value));
+  }
+
+  // -- Map API methods --
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return indexOf(key) >= 0;
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    if (value == null) throw new NullPointerException();
+    for (int i=0; i<values.length; i++) {
+      if (isOccupied(i) && value.equals(valueAt(i))) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean contains(Object value) {
+    return containsValue(value);
+  }
+
+  @Override
+  public Object get(Object key) {
+    int index = indexOf(key);
+    return index < 0 ? null : valueAt(index);
+  }
+
+  /* @see java.util.Map#getOrDefault(Object, Object) */
+  public Object getOrDefault(Object key, Object defaultValue) {
+    int index = indexOf(key);
+    return index < 0 ? defaultValue : valueAt(index);
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    if (value == null) throw new NullPointerException();
+    int index = insert(key);
+    // a newly inserted slot has no value, so this is null for new keys
+    Object previous = valueAt(index);
+    setValue(index, value);
+    return previous;
+  }
+
+  /* @see java.util.Map#putIfAbsent(Object, Object) */
+  public Object putIfAbsent(String key, Object value) {
+    if (value == null) throw new NullPointerException();
+    int index = indexOf(key);
+    if (index >= 0) return valueAt(index);
+    setValue(insert(key), value);
+    return null;
+  }
+
+  @Override
+  public void putAll(Map<? extends String, ? extends Object> m) {
+    for (Map.Entry<? extends String, ? extends Object> e : m.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  @Override
+  public Object remove(Object key) {
+    int index = indexOf(key);
+    if (index < 0) return null;
+    Object previous = valueAt(index);
+    removeAt(index);
+    return previous;
+  }
+
+  /* @see java.util.Map#remove(Object, Object) */
+  public boolean remove(Object key, Object value) {
+    int index = indexOf(key);
+    if (index < 0 || value == null || !value.equals(valueAt(index))) {
+      return false;
+    }
+    removeAt(index);
+    return true;
+  }
+
+  /* @see java.util.Map#replace(Object, Object) */
+  public Object replace(String key, Object value) {
+    if (value == null) throw new NullPointerException();
+    int index = indexOf(key);
+    if (index < 0) return null;
+    Object previous = valueAt(index);
+    setValue(index, value);
+    return previous;
+  }
+
+  /* @see java.util.Map#replace(Object, Object, Object) */
+  public boolean replace(String key, Object oldValue, Object newValue) {
+    if (newValue == null) throw new NullPointerException();
+    int index = indexOf(key);
+    if (index < 0 || !valueAt(index).equals(oldValue)) return false;
+    setValue(index, newValue);
+    return true;
+  }
+
+  /* @see java.util.Map#forEach(BiConsumer) */
+  public void forEach(BiConsumer<? super String, ? super Object> action) {
+    if (action == null) throw new NullPointerException();
+    for (String key : snapshotKeys()) {
+      Object value = get(key);
+      if (value != null) action.accept(key, value);
+    }
+  }
+
+  /* @see java.util.Map#replaceAll(BiFunction) */
+  public void replaceAll(
+    BiFunction<? super String, ? super Object, ? extends Object> function)
+  {
+    if (function == null) throw new NullPointerException();
+    for (String key : snapshotKeys()) {
+      Object value = get(key);
+      if (value != null) put(key, function.apply(key, value));
+    }
+  }
+
+  /* @see java.util.Map#computeIfAbsent(Object, Function) */
+  public Object computeIfAbsent(String key,
+    Function<? super String, ? extends Object> mappingFunction)
+  {
+    if (mappingFunction == null) throw new NullPointerException();
+    Object value = get(key);
+    if (value == null) {
+      value = mappingFunction.apply(key);
+      if (value != null) put(key, value);
+    }
+    return value;
+  }
+
+  /* @see java.util.Map#computeIfPresent(Object, BiFunction) */
+  public Object computeIfPresent(String key,
+    BiFunction<? super String, ? super Object, ? extends Object>
+    remappingFunction)
+  {
+    if (remappingFunction == null) throw new NullPointerException();
+    Object oldValue = get(key);
+    if (oldValue == null) return null;
+    Object value = remappingFunction.apply(key, oldValue);
+    if (value == null) remove(key);
+    else put(key, value);
+    return value;
+  }
+
+  /* @see java.util.Map#compute(Object, BiFunction) */
+  public Object compute(String key,
+    BiFunction<? super String, ? super Object, ? extends Object>
+    remappingFunction)
+  {
+    if (remappingFunction == null) throw new NullPointerException();
+    Object oldValue = get(key);
+    Object value = remappingFunction.apply(key, oldValue);
+    if (value == null) {
+      if (oldValue != null) remove(key);
+    }
+    else put(key, value);
+    return value;
+  }
+
+  /* @see java.util.Map#merge(Object, Object, BiFunction) */
+  public Object merge(String key, Object value,
+    BiFunction<? super Object, ? super Object, ? extends Object>
+    remappingFunction)
+  {
+    if (value == null || remappingFunction == null) {
+      throw new NullPointerException();
+    }
+    Object oldValue = get(key);
+    Object newValue =
+      oldValue == null ? value : remappingFunction.apply(oldValue, value);
+    if (newValue == null) remove(key);
+    else put(key, newValue);
+    return newValue;
+  }
+
+  @Override
+  public void clear() {
+    if (keys != null) Arrays.fill(keys, null);
+    Arrays.fill(values, null);
+    types = null;
+    bits = null;
+    size = 0;
+    listCount = 0;
+  }
+
+  @Override
+  public Enumeration<String> keys() {
+    return Collections.enumeration(Arrays.asList(snapshotKeys()));
+  }
+
+  @Override
+  public Enumeration<Object> elements() {
+    List<Object> list = new ArrayList<Object>(size);
+    for (int i=0; i<values.length; i++) {
+      if (isOccupied(i)) list.add(valueAt(i));
+    }
+    return Collections.enumeration(list);
+  }
+
+  @Override
+  public Set<String> keySet() {
+    return new AbstractSet<String>() {
+      @Override
+      public Iterator<String> iterator() {
+        return new SnapshotIterator<String>() {
+          @Override
+          String get(String key) {
+            return key;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return containsKey(o);
+      }
+
+      @Override
+      public boolean remove(Object o) {
+        return MetadataTable.this.remove(o) != null;
+      }
+
+      @Override
+      public void clear() {
+        MetadataTable.this.clear();
+      }
+    };
+  }
+
+  @Override
+  public Collection<Object> values() {
+    return new AbstractCollection<Object>() {
+      @Override
+      public Iterator<Object> iterator() {
+        return new SnapshotIterator<Object>() {
+          @Override
+          Object get(String key) {
+            return MetadataTable.this.get(key);
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return containsValue(o);
+      }
+
+      @Override
+      public void clear() {
+        MetadataTable.this.clear();
+      }
+    };
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Object>>() {
+      @Override
+      public Iterator<Map.Entry<String, Object>> iterator() {
+        return new SnapshotIterator<Map.Entry<String, Object>>() {
+          @Override
+          Map.Entry<String, Object> get(String key) {
+            return new Entry(key, MetadataTable.this.get(key));
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        if (!(o instanceof Map.Entry)) return false;
+        Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+        Object value = e.getKey() == null ? null : get(e.getKey());
+        return value != null && value.equals(e.getValue());
+      }
+
+      @Override
+      public boolean remove(Object o) {
+        if (!(o instanceof Map.Entry)) return false;
+        Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+        return MetadataTable.this.remove(e.getKey(), e.getValue());
+      }
+
+      @Override
+      public void clear() {
+        MetadataTable.this.clear();
+      }
+    };
+  }
+
+  // -- Object API methods --
+
+  @Override
+  public Object clone() {
+    MetadataTable copy = (MetadataTable) super.clone();
+    copy.keys = keys == null ? null : keys.clone();
+    copy.values = values.clone();
+    copy.types = types == null ? null : types.clone();
+    copy.bits = bits == null ? null : bits.clone();
+    if (dictionary != null) dictionary.setReadOnly();
+    return copy;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) return true;
+    if (!(o instanceof Map)) return false;
+    Map<?, ?> m = (Map<?, ?>) o;
+    if (m.size() != size) return false;
+    for (int i=0; i<values.length; i++) {
+      if (isOccupied(i) && !valueAt(i).equals(m.get(keyAt(i)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 0;
+    for (int i=0; i<values.length; i++) {
+      if (isOccupied(i)) {
+        Object value = valueAt(i);
+        hash += keyAt(i).hashCode() ^ (value == this ? 0 : value.hashCode());
+      }
+    }
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("{");
+    for (int i=0; i<values.length; i++) {
+      if (!isOccupied(i)) continue;
+      if (sb.length() > 1) sb.append(", ");
+      Object value = valueAt(i);
+      sb.append(keyAt(i)).append('=');
+      sb.append(value == this ? "(this Map)" : value);
+    }
+    return sb.append('}').toString();
+  }
+
+  // -- Serialization --
+
+  /** Serializes the entries as a plain Hashtable. */
+  protected Object writeReplace() throws ObjectStreamException {
+    return new Hashtable<String, Object>(this);
+  }
+
+  // -- Helper methods --
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /** Gets the slot holding the given key, or -1. */
+  private int indexOf(Object key) {
+    if (key == null) throw new NullPointerException();
+    if (dictionary != null) {
+      int id = dictionary.indexOf(key);
+      int index = id - base;
+      return id >= 0 && index >= 0 && index < values.length &&
+        isOccupied(index) ? index : -1;
+    }
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    String k;
+    while ((k = keys[i]) != null) {
+      if (k == key || k.equals(key)) return i;
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Gets the slot for the given key, adding the key if it is not present.
+   * A newly added key's slot has no value until {@link #setValue} or
+   * {@link #putBits} is called.
+   */
+  private int insert(String key) {
+    if (dictionary != null) return insertId(key);
+    int index = indexOf(key);
+    if (index >= 0) return index;
+    if ((size + 1) * 3 > keys.length * 2) resize(keys.length * 2);
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (keys[i] != null) i = (i + 1) & mask;
+    keys[i] = key.intern();
+    size++;
+    return i;
+  }
+
+  private void setValue(int index, Object value) {
+    byte type = unboxedType(value);
+    if (type != OBJECT) {
+      if (types == null) allocateBits();
+      setBits(index, type, bits(type, (Number) value));
+      return;
+    }
+    if (types != null) types[index] = OBJECT;
+    if (values[index] instanceof Vector) listCount--;
+    if (value instanceof Vector) listCount++;
+    values[index] = value;
+  }
+
+  /** Gets the type in which a value can be stored unboxed, or OBJECT. */
+  private static byte unboxedType(Object value) {
+    if (value instanceof Integer) return INT;
+    if (value instanceof Double) return DOUBLE;
+    if (value instanceof Long) return LONG;
+    if (value instanceof Float) return FLOAT;
+    if (value instanceof Short) return SHORT;
+    if (value instanceof Byte) return BYTE;
+    return OBJECT;
+  }
+
+  /** Gets the bits stored for an unboxed value of the given type. */
+  private static long bits(byte type, Number value) {
+    switch (type) {
+      case DOUBLE:
+        return Double.doubleToRawLongBits(value.doubleValue());
+      case FLOAT:
+        return Float.floatToRawIntBits(value.floatValue());
+      default:
+        return value.longValue();
+    }
+  }
+
+  private void putBits(String key, byte type, long value) {
+    int index = insert(key);
+    if (types == null) allocateBits();
+    setBits(index, type, value);
+  }
+
+  private void setBits(int index, byte type, long value) {
+    if (values[index] instanceof Vector) listCount--;
+    values[index] = null;
+    types[index] = type;
+    bits[index] = value;
+  }
+
+  private void allocateBits() {
+    types = new byte[values.length];
+    bits = new long[values.length];
+  }
+
+  /** Gets the value in the given occupied slot, boxing it if necessary. */
+  private Object valueAt(int index) {
+    if (types == null) return values[index];
+    long b = bits[index];
+    switch (types[index]) {
+      case BYTE:
+        return Byte.valueOf((byte) b);
+      case SHORT:
+        return Short.valueOf((short) b);
+      case INT:
+        return Integer.valueOf((int) b);
+      case LONG:
+        return Long.valueOf(b);
+      case FLOAT:
+        return Float.valueOf(Float.intBitsToFloat((int) b));
+      case DOUBLE:
+        return Double.valueOf(Double.longBitsToDouble(b));
+      default:
+        return values[index];
+    }
+  }
+
+  /** Removes the entry in the given slot, shifting back later entries. */
+  private void removeAt(int index) {
+    if (values[index] instanceof Vector) listCount--;
+    if (dictionary != null) {
+      values[index] = null;
+      if (types != null) types[index] = OBJECT;
+      size--;
+      return;
+    }
+    int mask = keys.length - 1;
+    int hole = index;
+    int i = index;
+    while (true) {
+      i = (i + 1) & mask;
+      if (keys[i] == null) break;
+      int home = hash(keys[i]) & mask;
+      // move the entry into the hole unless its home slot lies cyclically
+      // after the hole, i.e. in (hole, i]
+      boolean stays = hole <= i ? (hole < home && home <= i) :
+        (hole < home || home <= i);
+      if (!stays) {
+        moveSlot(i, hole);
+        hole = i;
+      }
+    }
+    keys[hole] = null;
+    values[hole] = null;
+    if (types != null) types[hole] = OBJECT;
+    size--;
+  }
+
+  private void moveSlot(int from, int to) {
+    keys[to] = keys[from];
+    values[to] = values[from];
+    if (types != null) {
+      types[to] = types[from];
+      bits[to] = bits[from];
+    }
+  }
+
+  private void resize(int capacity) {
+    String[] oldKeys = keys;
+    Object[] oldValues = values;
+    byte[] oldTypes = types;
+    long[] oldBits = bits;
+    keys = new String[capacity];
+    values = new Object[capacity];
+    if (oldTypes != null) {
+      types = new byte[capacity];
+      bits = new long[capacity];
+    }
+    int mask = capacity - 1;
+    for (int j=0; j<oldKeys.length; j++) {
+      if (oldKeys[j] == null) continue;
+      int i = hash(oldKeys[j]) & mask;
+      while (keys[i] != null) i = (i + 1) & mask;
+      keys[i] = oldKeys[j];
+      values[i] = oldValues[j];
+      if (oldTypes != null) {
+        types[i] = oldTypes[j];
+        bits[i] = oldBits[j];
+      }
+    }
+  }
+
+  private boolean isOccupied(int index) {
+    if (keys != null) return keys[index] != null;
+    return values[index] != null || (types != null && types[index] != OBJECT);
+  }
+
+  private String keyAt(int index) {
+    return keys != null ? keys[index] : dictionary.getKey(base + index);
+  }
+
+  /**
+   * Gets the slot for the given key in a table that uses a key dictionary,
+   * growing the value columns if needed.  If the columns would become
+   * mostly empty, the table stores its own keys instead.
+   */
+  private int insertId(String key) {
+    if (dictionary.isReadOnly() && dictionary.indexOf(key) < 0) {
+      // the dictionary is shared with a clone; ids stay the same
+      dictionary = dictionary.copy();
+    }
+    int id = dictionary.add(key);
+    int index = id - base;
+    if (index < 0 || index >= values.length) {
+      if (size == 0) {
+        base = id;
+        index = 0;
+      }
+      int low = Math.min(base, id);
+      int high = Math.max(base + values.length, id + 1);
+      int limit = 2 * size + 16;
+      if (size > 0 && high - low > limit) {
+        reload(null);
+        return insert(key);
+      }
+      if (index < 0 || index >= values.length) {
+        // leave room for more ids after the new one
+        int length = Math.max(high - low,
+          Math.min(limit, values.length * 2));
+        growColumns(low, length);
+        index = id - base;
+      }
+    }
+    if (!isOccupied(index)) size++;
+    return index;
+  }
+
+  /** Reallocates the value columns to start at the given key id. */
+  private void growColumns(int newBase, int length) {
+    int offset = base - newBase;
+    Object[] newValues = new Object[length];
+    System.arraycopy(values, 0, newValues, offset, values.length);
+    values = newValues;
+    if (types != null) {
+      byte[] newTypes = new byte[length];
+      long[] newBits = new long[length];
+      System.arraycopy(types, 0, newTypes, offset, types.length);
+      System.arraycopy(bits, 0, newBits, offset, bits.length);
+      types = newTypes;
+      bits = newBits;
+    }
+    base = newBase;
+  }
+
+  /**
+   * Stores all entries again, using the given dictionary, or storing keys
+   * if it is null.
+   */
+  private void reload(MetadataKeyDictionary dict) {
+    int count = size;
+    String[] oldKeys = new String[count];
+    Object[] oldValues = new Object[count];
+    byte[] oldTypes = new byte[count];
+    long[] oldBits = new long[count];
+    int n = 0;
+    for (int i=0; i<values.length; i++) {
+      if (!isOccupied(i)) continue;
+      oldKeys[n] = keyAt(i);
+      oldValues[n] = values[i];
+      if (types != null) {
+        oldTypes[n] = types[i];
+        oldBits[n] = bits[i];
+      }
+      n++;
+    }
+
+    dictionary = dict;
+    base = 0;
+    size = 0;
+    listCount = 0;
+    types = null;
+    bits = null;
+    if (dict == null) {
+      int capacity = MIN_CAPACITY;
+      while (capacity < count * 2) capacity <<= 1;
+      keys = new String[capacity];
+      values = new Object[capacity];
+    }
+    else {
+      keys = null;
+      values = new Object[0];
+    }
+    for (int j=0; j<count; j++) {
+      // insert may switch back to stored keys part way through
+      int index = insert(oldKeys[j]);
+      if (oldTypes[j] == OBJECT) setValue(index, oldValues[j]);
+      else {
+        if (types == null) allocateBits();
+        setBits(index, oldTypes[j], oldBits[j]);
+      }
+    }
+  }
+
+  private String[] snapshotKeys() {
+    String[] snapshot = new String[size];
+    int n = 0;
+    for (int i=0; i<values.length; i++) {
+      if (isOccupied(i)) snapshot[n++] = keyAt(i);
+    }
+    return snapshot;
+  }
+
+  // -- Helper classes --
+
+  /** Iterates over the keys present when it was created. */
+  private abstract class SnapshotIterator<T> implements Iterator<T> {
+    private final String[] snapshot = snapshotKeys();
+    private int next;
+    private String current;
+
+    @Override
+    public boolean hasNext() {
+      return next < snapshot.length;
+    }
+
+    @Override
+    public T next() {
+      if (next >= snapshot.length) throw new NoSuchElementException();
+      current = snapshot[next++];
+      return get(current);
+    }
+
+    @Override
+    public void remove() {
+      if (current == null) throw new IllegalStateException();
+      MetadataTable.this.remove(current);
+      current = null;
+    }
+
+    abstract T get(String key);
+  }
+
+  /** Map entry whose setValue writes through to the table. */
+  private final class Entry extends AbstractMap.SimpleEntry<String, Object> {
+    private static final long serialVersionUID = 1L;
+
+    Entry(String key, Object value) {
+      super(key, value);
+    }
+
+    @Override
+    public Object setValue(Object value) {
+      put(getKey(), value);
+      return super.setValue(value);
+    }
+  }
+
+}
@@ -0,0 +1,529 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Second tier of a {@link TileCache}, holding tiles evicted from the heap
+ * outside of the Java heap.
+ * <p>
+ * Tiles are first kept in direct buffers, up to a memory budget.  When the
+ * memory budget is exceeded, the least recently used tiles are spilled to
+ * a scratch file, up to a disk budget; tiles that do not fit on disk are
+ * dropped.  Unused regions of the scratch file are merged with their
+ * neighbours and reused for tiles of any size.  A CRC32 checksum is stored with each tile and verified
+ * whenever it is read back, and corrupt tiles are discarded.
+ * <p>
+ * To keep a single scan over a large plane from replacing frequently used
+ * tiles, admission follows the TinyLFU policy: every lookup in the owning
+ * TileCache is recorded in a compact frequency sketch, and once the memory
+ * tier is full a new tile is only admitted if it has been requested more
+ * often than the tile it would displace.
+ *
+ * @see TileCache#setSecondTier(OffHeapTileCache)
+ */
+public class OffHeapTileCache implements Closeable {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(OffHeapTileCache.class);
+
+  /** Orders unused regions, as {length, offset}, by length then offset. */
+  private static final Comparator<long[]> BY_LENGTH =
+    new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        if (a[0] != b[0]) return a[0] < b[0] ? -1 : 1;
+        return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+      }
+    };
+
+  // -- Fields --
+
+  private final long maxMemoryBytes;
+  private final long maxDiskBytes;
+  private final File directory;
+
+  /** Tiles held in direct buffers, in least recently used order. */
+  private final LinkedHashMap<TileCache.Key, Entry> memory =
+    new LinkedHashMap<TileCache.Key, Entry>(16, 0.75f, true);
+
+  /** Tiles held in the scratch file, in least recently used order. */
+  private final LinkedHashMap<TileCache.Key, Entry> disk =
+    new LinkedHashMap<TileCache.Key, Entry>(16, 0.75f, true);
+
+  /**
+   * Lengths of unused regions of the scratch file below scratchEnd, by
+   * offset.  Adjacent regions are always merged.
+   */
+  private final TreeMap<Long, Long> freeByOffset = new TreeMap<Long, Long>();
+
+  /** The same unused regions, as {length, offset}, for best-fit reuse. */
+  private final TreeSet<long[]> freeByLength = new TreeSet<long[]>(BY_LENGTH);
+
+  private final FrequencySketch sketch = new FrequencySketch(1 << 14);
+
+  private File scratchFile;
+  private FileChannel scratch;
+  private long scratchEnd;
+
+  private long memorySize;
+  private long diskSize;
+
+  private long memoryHits;
+  private long diskHits;
+  private long misses;
+  private long rejected;
+  private long spilled;
+  private long corrupted;
+
+  // -- Constructors --
+
+  /** Constructs a cache that holds tiles in memory only. */
+  public OffHeapTileCache(long maxMemoryBytes) {
+    this(maxMemoryBytes, 0, null);
+  }
+
+  /**
+   * Constructs a cache that holds up to maxMemoryBytes of tiles in direct
+   * buffers, and spills up to maxDiskBytes to a scratch file created in the
+   * given directory (or the default temporary directory if null).  The
+   * scratch file is created when it is first needed, and deleted by
+   * {@link #close()}.
+   */
+  public OffHeapTileCache(long maxMemoryBytes, long maxDiskBytes,
+    File directory)
+  {
+    if (maxMemoryBytes < 0 || maxDiskBytes < 0) {
+      throw new IllegalArgumentException("Invalid byte budget");
+    }
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.maxDiskBytes = maxDiskBytes;
+    this.directory = directory;
+  }
+
+  // -- OffHeapTileCache API methods --
+
+  /** Records a request for the given tile in the frequency sketch. */
+  public void recordAccess(TileCache.Key key) {
+    sketch.increment(key.hashCode());
+  }
+
+  /**
+   * Gets a copy of the given tile, or null if it is not cached or its
+   * checksum does not match.
+   */
+  public synchronized byte[] get(TileCache.Key key) {
+    Entry entry = memory.get(key);
+    if (entry != null) {
+      byte[] tile = new byte[entry.length];
+      ByteBuffer data = entry.data.duplicate();
+      data.clear();
+      data.get(tile);
+      if (verify(entry, tile)) {
+        memoryHits++;
+        return tile;
+      }
+      memory.remove(key);
+      memorySize -= entry.length;
+      misses++;
+      return null;
+    }
+
+    entry = disk.get(key);
+    if (entry != null) {
+      byte[] tile = new byte[entry.length];
+      try {
+        readFully(tile, entry.offset);
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not read {} from {}", key, scratchFile, e);
+        tile = null;
+      }
+      if (tile != null && verify(entry, tile)) {
+        diskHits++;
+        return tile;
+      }
+      removeFromDisk(key);
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Offers a tile evicted from the heap tier.  The tile is admitted to the
+   * memory tier if there is room, or if it is requested more often than the
+   * tiles it displaces, which are spilled to disk.  Otherwise it is dropped.
+   */
+  public synchronized void offer(TileCache.Key key, byte[] tile) {
+    remove(key);
+    if (tile.length > maxMemoryBytes) {
+      rejected++;
+      return;
+    }
+    int frequency = sketch.frequency(key.hashCode());
+    Iterator<Entry> entries = memory.values().iterator();
+    while (memorySize + tile.length > maxMemoryBytes) {
+      Entry victim = entries.next();
+      if (frequency <= sketch.frequency(victim.key.hashCode())) {
+        rejected++;
+        return;
+      }
+      entries.remove();
+      memorySize -= victim.length;
+      spill(victim);
+    }
+
+    ByteBuffer data = ByteBuffer.allocateDirect(tile.length);
+    data.put(tile);
+    Entry entry = new Entry(key, tile.length, checksum(tile));
+    entry.data = data;
+    memory.put(key, entry);
+    memorySize += tile.length;
+  }
+
+  /** Removes all tiles of the given file. */
+  public synchronized void invalidate(String file) {
+    Iterator<Entry> entries = memory.values().iterator();
+    while (entries.hasNext()) {
+      Entry entry = entries.next();
+      if (file == null || file.equals(entry.key.getFile())) {
+        memorySize -= entry.length;
+        entries.remove();
+      }
+    }
+    entries = disk.values().iterator();
+    while (entries.hasNext()) {
+      Entry entry = entries.next();
+      if (file == null || file.equals(entry.key.getFile())) {
+        freeSlot(entry);
+        entries.remove();
+      }
+    }
+  }
+
+  /** Removes all tiles. */
+  public void clear() {
+    invalidate(null);
+  }
+
+  /** Removes all tiles and deletes the scratch file. */
+  @Override
+  public synchronized void close() throws IOException {
+    clear();
+    freeByOffset.clear();
+    freeByLength.clear();
+    scratchEnd = 0;
+    if (scratch != null) {
+      scratch.close();
+      scratch = null;
+      if (!scratchFile.delete()) {
+        LOGGER.debug("Could not delete {}", scratchFile);
+      }
+      scratchFile = null;
+    }
+  }
+
+  /** Gets the number of bytes held in direct buffers. */
+  public synchronized long getMemorySize() {
+    return memorySize;
+  }
+
+  /** Gets the number of bytes held in the scratch file. */
+  public synchronized long getDiskSize() {
+    return diskSize;
+  }
+
+  /** Gets the number of lookups served from direct buffers. */
+  public synchronized long getMemoryHitCount() {
+    return memoryHits;
+  }
+
+  /** Gets the number of lookups served from the scratch file. */
+  public synchronized long getDiskHitCount() {
+    return diskHits;
+  }
+
+  /** Gets the number of lookups that did not find a valid tile. */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /** Gets the number of offered tiles that were not admitted. */
+  public synchronized long getRejectedCount() {
+    return rejected;
+  }
+
+  /** Gets the number of tiles spilled to the scratch file. */
+  public synchronized long getSpillCount() {
+    return spilled;
+  }
+
+  /** Gets the number of tiles discarded because of a checksum mismatch. */
+  public synchronized long getCorruptionCount() {
+    return corrupted;
+  }
+
+  // -- Helper methods --
+
+  private boolean verify(Entry entry, byte[] tile) {
+    if (checksum(tile) == entry.checksum) return true;
+    LOGGER.warn("Discarding corrupt cached tile {}", entry.key);
+    corrupted++;
+    return false;
+  }
+
+  private static long checksum(byte[] tile) {
+    CRC32 crc = new CRC32();
+    crc.update(tile, 0, tile.length);
+    return crc.getValue();
+  }
+
+  /** Removes the given tile from both tiers. */
+  private void remove(TileCache.Key key) {
+    Entry entry = memory.remove(key);
+    if (entry != null) memorySize -= entry.length;
+    removeFromDisk(key);
+  }
+
+  private void removeFromDisk(TileCache.Key key) {
+    Entry entry = disk.remove(key);
+    if (entry != null) freeSlot(entry);
+  }
+
+  private void freeSlot(Entry entry) {
+    diskSize -= entry.length;
+    releaseSlot(entry.offset, entry.length);
+  }
+
+  /**
+   * Moves a tile from the memory tier to the scratch file, if possible.
+   * Least recently used tiles are dropped from the scratch file only until
+   * there is room for the new tile.
+   */
+  private void spill(Entry entry) {
+    // with every other tile dropped, the scratch file is empty
+    if (entry.length > maxDiskBytes) return;
+    long offset = allocateSlot(entry.length);
+    Iterator<Entry> victims = disk.values().iterator();
+    while (offset < 0 && victims.hasNext()) {
+      Entry victim = victims.next();
+      victims.remove();
+      freeSlot(victim);
+      offset = allocateSlot(entry.length);
+    }
+    if (offset < 0) return;
+
+    ByteBuffer data = entry.data.duplicate();
+    data.clear();
+    try {
+      openScratch();
+      while (data.hasRemaining()) {
+        scratch.write(data, offset + data.position());
+      }
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not spill {} to {}", entry.key, scratchFile, e);
+      releaseSlot(offset, entry.length);
+      return;
+    }
+    entry.data = null;
+    entry.offset = offset;
+    disk.put(entry.key, entry);
+    diskSize += entry.length;
+    spilled++;
+  }
+
+  /**
+   * Gets the offset of an unused region of the scratch file with the given
+   * length, or -1 if there is none and the file cannot grow.  The smallest
+   * unused region that is large enough is split, if there is one.
+   */
+  private long allocateSlot(int length) {
+    long[] fit = freeByLength.ceiling(new long[] {length, 0});
+    if (fit != null) {
+      freeByLength.remove(fit);
+      freeByOffset.remove(fit[1]);
+      if (fit[0] > length) addFree(fit[1] + length, fit[0] - length);
+      return fit[1];
+    }
+    if (scratchEnd + length > maxDiskBytes) return -1;
+    long offset = scratchEnd;
+    scratchEnd += length;
+    return offset;
+  }
+
+  /**
+   * Marks a region of the scratch file as unused, merging it with the
+   * unused regions on either side.  A region that reaches the end of the
+   * used part of the file shrinks it instead.
+   */
+  private void releaseSlot(long offset, long length) {
+    Map.Entry<Long, Long> before = freeByOffset.floorEntry(offset);
+    if (before != null && before.getKey() + before.getValue() == offset) {
+      removeFree(before.getKey(), before.getValue());
+      offset = before.getKey();
+      length += before.getValue();
+    }
+    Long after = freeByOffset.get(offset + length);
+    if (after != null) {
+      removeFree(offset + length, after);
+      length += after;
+    }
+    if (offset + length == scratchEnd) scratchEnd = offset;
+    else addFree(offset, length);
+  }
+
+  private void addFree(long offset, long length) {
+    freeByOffset.put(offset, length);
+    freeByLength.add(new long[] {length, offset});
+  }
+
+  private void removeFree(long offset, long length) {
+    freeByOffset.remove(offset);
+    freeByLength.remove(new long[] {length, offset});
+  }
+
+  private void openScratch() throws IOException {
+    if (scratch != null) return;
+    scratchFile = File.createTempFile("tile-cache", ".bin", directory);
+    scratchFile.deleteOnExit();
+    scratch = new RandomAccessFile(scratchFile, "rw").getChannel();
+  }
+
+  private void readFully(byte[] tile, long offset) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(tile);
+    while (buf.hasRemaining()) {
+      if (scratch.read(buf, offset + buf.position()) < 0) {
+        throw new IOException("Unexpected end of " + scratchFile);
+      }
+    }
+  }
+
+  // -- Helper classes --
+
+  /** A cached tile, held either in a direct buffer or the scratch file. */
+  private static final class Entry {
+    final TileCache.Key key;
+    final int length;
+    final long checksum;
+    ByteBuffer data;
+    long offset = -1;
+
+    Entry(TileCache.Key key, int length, long checksum) {
+      this.key = key;
+      this.length = length;
+      this.checksum = checksum;
+    }
+  }
+
+  /**
+   * Count-min sketch of recent request frequencies, with four counters per
+   * key capped at 15.  All counters are halved periodically, so that the
+   * sketch reflects recent rather than all-time popularity.
+   */
+  private static final class FrequencySketch {
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS =
+      {0x97cb3127, 0xb8e3ab7d, 0x2f9a6d1b, 0x6a09e667};
+
+    private final AtomicIntegerArray counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int width) {
+      counters = new AtomicIntegerArray(width);
+      mask = width - 1;
+      sampleSize = 10 * width;
+    }
+
+    void increment(int hash) {
+      boolean added = false;
+      for (int seed : SEEDS) {
+        int index = index(hash, seed);
+        int count = counters.get(index);
+        while (count < MAX_COUNT &&
+          !counters.compareAndSet(index, count, count + 1))
+        {
+          count = counters.get(index);
+        }
+        added |= count < MAX_COUNT;
+      }
+      if (added) {
+        synchronized (this) {
+          if (++additions >= sampleSize) reset();
+        }
+      }
+    }
+
+    int frequency(int hash) {
+      int frequency = MAX_COUNT;
+      for (int seed : SEEDS) {
+        frequency = Math.min(frequency, counters.get(index(hash, seed)));
+      }
+      return frequency;
+    }
+
+    private void reset() {
+      for (int i=0; i<counters.length(); i++) {
+        counters.set(i, counters.get(i) >>> 1);
+      }
+      additions /= 2;
+    }
+
+    private int index(int hash, int seed) {
+      int h = (hash ^ seed) * 0x9e3779b9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+  }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A plane (or sub-image) whose bytes are held in several arrays, so that
+ * planes larger than 2 GB can be read.  Bytes are addressed with a long
+ * index, in the same order as they would be returned by
+ * {@link IFormatReader#openBytes(int, int, int, int, int)}.
+ * <p>
+ * The plane is read with one openBytes call per strip of full-width rows;
+ * each strip is stored in its own array.  For planes that are not
+ * interleaved, each strip holds the strip's rows of every channel, so
+ * indices are translated from the channel-major layout of the whole plane.
+ */
+public class PlaneBuffer {
+
+  // -- Constants --
+
+  /** Default maximum size of each array: 64 MB. */
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  // -- Fields --
+
+  /** One array per strip of rows. */
+  private final byte[][] chunks;
+
+  /** Number of rows in every strip except possibly the last. */
+  private final int rowsPerChunk;
+
+  /** Number of rows in the plane. */
+  private final int height;
+
+  /** Number of bytes in one row of one channel. */
+  private final int rowLength;
+
+  /** Number of separately stored channels; 1 if interleaved. */
+  private final int channels;
+
+  /** Number of bytes in one channel of the plane. */
+  private final long channelLength;
+
+  // -- Constructor --
+
+  private PlaneBuffer(byte[][] chunks, int rowsPerChunk, int height,
+    int rowLength, int channels)
+  {
+    this.chunks = chunks;
+    this.rowsPerChunk = rowsPerChunk;
+    this.height = height;
+    this.rowLength = rowLength;
+    this.channels = channels;
+    this.channelLength = (long) rowLength * height;
+  }
+
+  // -- Static factory methods --
+
+  /** Reads the given plane of the reader's current series. */
+  public static PlaneBuffer open(IFormatReader reader, int no)
+    throws FormatException, IOException
+  {
+    return open(reader, no, 0, 0, reader.getSizeX(), reader.getSizeY());
+  }
+
+  /** Reads a sub-image of the given plane of the reader's current series. */
+  public static PlaneBuffer open(IFormatReader reader, int no, int x, int y,
+    int w, int h) throws FormatException, IOException
+  {
+    return open(reader, no, x, y, w, h, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Reads a sub-image of the given plane of the reader's current series,
+   * storing at most chunkSize bytes in each array.
+   *
+   * @throws FormatException if a single row is larger than chunkSize
+   */
+  public static PlaneBuffer open(IFormatReader reader, int no, int x, int y,
+    int w, int h, int chunkSize) throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(reader, no, -1, x, y, w, h);
+    int c = reader.getRGBChannelCount();
+    int bpp = FormatTools.getBytesPerPixel(reader.getPixelType());
+    boolean interleaved = reader.isInterleaved();
+    int channels = interleaved ? 1 : c;
+    long rowLength = (long) w * bpp * (interleaved ? c : 1);
+    long rowBytes = rowLength * channels;
+    if (rowBytes > chunkSize) {
+      throw new FormatException("Rows of " + rowBytes +
+        " bytes do not fit in chunks of " + chunkSize + " bytes");
+    }
+
+    int rowsPerChunk = (int) Math.min(h, Math.max(1, chunkSize / rowBytes));
+    int chunkCount = (h + rowsPerChunk - 1) / rowsPerChunk;
+    byte[][] chunks = new byte[chunkCount][];
+    for (int i=0; i<chunkCount; i++) {
+      int row = i * rowsPerChunk;
+      int rows = Math.min(rowsPerChunk, h - row);
+      chunks[i] = new byte[(int) (rows * rowBytes)];
+      reader.openBytes(no, chunks[i], x, y + row, w, rows);
+    }
+    return new PlaneBuffer(chunks, rowsPerChunk, h, (int) rowLength,
+      channels);
+  }
+
+  // -- PlaneBuffer API methods --
+
+  /** Gets the number of bytes in the plane. */
+  public long length() {
+    return channelLength * channels;
+  }
+
+  /** Gets the number of arrays in which the plane is stored. */
+  public int getChunkCount() {
+    return chunks.length;
+  }
+
+  /** Gets the byte at the given index. */
+  public byte get(long index) {
+    checkRange(index, 1);
+    long channel = index / channelLength;
+    long offset = index % channelLength;
+    int row = (int) (offset / rowLength);
+    int chunk = row / rowsPerChunk;
+    return chunks[chunk][chunkOffset(chunk, (int) channel, row,
+      (int) (offset % rowLength))];
+  }
+
+  /**
+   * Copies len bytes starting at the given index into dest, starting at
+   * dest[off].
+   */
+  public void get(long index, byte[] dest, int off, int len) {
+    checkRange(index, len);
+    if (off < 0 || len < 0 || off > dest.length - len) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      long channel = index / channelLength;
+      long offset = index % channelLength;
+      int row = (int) (offset / rowLength);
+      int col = (int) (offset % rowLength);
+      int chunk = row / rowsPerChunk;
+
+      // the rest of this channel's rows in the chunk are contiguous
+      int lastRow = Math.min((chunk + 1) * rowsPerChunk, height);
+      int count = (int) Math.min(len, (long) (lastRow - row) * rowLength - col);
+      System.arraycopy(chunks[chunk], chunkOffset(chunk, (int) channel, row,
+        col), dest, off, count);
+      index += count;
+      off += count;
+      len -= count;
+    }
+  }
+
+  /** Writes the whole plane to the given stream, in index order. */
+  public void writeTo(OutputStream out) throws IOException {
+    if (channels == 1) {
+      for (byte[] chunk : chunks) {
+        out.write(chunk);
+      }
+      return;
+    }
+    for (int channel=0; channel<channels; channel++) {
+      for (int chunk=0; chunk<chunks.length; chunk++) {
+        int row = chunk * rowsPerChunk;
+        int rows = Math.min(rowsPerChunk, height - row);
+        out.write(chunks[chunk], chunkOffset(chunk, channel, row, 0),
+          rows * rowLength);
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Gets the offset within a chunk of the given row, channel and column. */
+  private int chunkOffset(int chunk, int channel, int row, int col) {
+    int firstRow = chunk * rowsPerChunk;
+    int rows = Math.min(rowsPerChunk, height - firstRow);
+    return (channel * rows + row - firstRow) * rowLength + col;
+  }
+
+  private void checkRange(long index, long len) {
+    if (index < 0 || len < 0 || index > length() - len) {
+      throw new IndexOutOfBoundsException("Index: " + index +
+        ", length: " + len + ", plane length: " + length());
+    }
+  }
+
+}
@@ -0,0 +1,441 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import loci.common.IRandomAccess;
+import loci.common.Location;
+
+/**
+ * Read-only handle that serves the first block of a file from memory.
+ * The file is opened once and its header block is read in a single call;
+ * reads beyond the header block fall through to the underlying handle.
+ *
+ * Used by {@link ImageReader} so that every reader that needs to inspect
+ * the contents of a file during format detection can share one open file.
+ * {@link #duplicate()} creates additional views that share the header
+ * block and underlying handle, but have an independent file pointer and
+ * byte order.  Closing a duplicate has no effect; closing the original
+ * handle closes the underlying file.
+ */
+public class PrefetchedHandle implements IRandomAccess {
+
+  // -- Fields --
+
+  /** Prefetched bytes from the start of the file. */
+  private final byte[] header;
+
+  /** Handle for the whole file, used for reads past the header block. */
+  private final IRandomAccess source;
+
+  /** Length of the file. */
+  private final long length;
+
+  /** Whether or not closing this handle closes the underlying file. */
+  private final boolean owner;
+
+  /** Current file pointer. */
+  private long position;
+
+  /** Current byte order. */
+  private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+  /** Scratch buffer for decoding primitive values. */
+  private final byte[] scratch = new byte[8];
+
+  // -- Constructors --
+
+  /**
+   * Opens the given file and reads up to the given number of bytes
+   * from the start of the file.
+   */
+  public PrefetchedHandle(String id, int headerSize) throws IOException {
+    source = Location.getHandle(id);
+    try {
+      length = source.length();
+      header = new byte[(int) Math.min(headerSize, length)];
+      source.seek(0);
+      source.readFully(header);
+    }
+    catch (IOException e) {
+      source.close();
+      throw e;
+    }
+    owner = true;
+  }
+
+  private PrefetchedHandle(PrefetchedHandle parent) {
+    header = parent.header;
+    source = parent.source;
+    length = parent.length;
+    owner = false;
+  }
+
+  // -- PrefetchedHandle API methods --
+
+  /**
+   * Creates a view of this handle with its own file pointer and byte order.
+   * The returned handle does not close the underlying file when closed.
+   */
+  public PrefetchedHandle duplicate() {
+    return new PrefetchedHandle(this);
+  }
+
+  /** Gets the number of bytes that are served from memory. */
+  public int getHeaderLength() {
+    return header.length;
+  }
+
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess#close() */
+  @Override
+  public void close() throws IOException {
+    if (owner) source.close();
+  }
+
+  /* @see IRandomAccess#getFilePointer() */
+  @Override
+  public long getFilePointer() {
+    return position;
+  }
+
+  /* @see IRandomAccess#length() */
+  @Override
+  public long length() {
+    return length;
+  }
+
+  /* @see IRandomAccess#getOrder() */
+  @Override
+  public ByteOrder getOrder() {
+    return order;
+  }
+
+  /* @see IRandomAccess#setOrder(ByteOrder) */
+  @Override
+  public void setOrder(ByteOrder order) {
+    this.order = order;
+  }
+
+  /* @see IRandomAccess#read(byte[]) */
+  @Override
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  /* @see IRandomAccess#read(byte[], int, int) */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (position >= length) return -1;
+    int n = (int) Math.min(len, length - position);
+    readFully(b, off, n);
+    return n;
+  }
+
+  /* @see IRandomAccess#read(ByteBuffer) */
+  @Override
+  public int read(ByteBuffer buf) throws IOException {
+    return read(buf, 0, buf.capacity());
+  }
+
+  /* @see IRandomAccess#read(ByteBuffer, int, int) */
+  @Override
+  public int read(ByteBuffer buf, int off, int len) throws IOException {
+    byte[] b = new byte[len];
+    int n = read(b, 0, len);
+    if (n > 0) {
+      buf.position(off);
+      buf.put(b, 0, n);
+    }
+    return n;
+  }
+
+  /* @see IRandomAccess#seek(long) */
+  @Override
+  public void seek(long pos) {
+    position = pos;
+  }
+
+  /* @see IRandomAccess#write(ByteBuffer) */
+  @Override
+  public void write(ByteBuffer buf) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see IRandomAccess#write(ByteBuffer, int, int) */
+  @Override
+  public void write(ByteBuffer buf, int off, int len) throws IOException {
+    throw readOnly();
+  }
+
+  // -- DataInput API methods --
+
+  /* @see java.io.DataInput#readFully(byte[]) */
+  @Override
+  public void readFully(byte[] b) throws IOException {
+    readFully(b, 0, b.length);
+  }
+
+  /* @see java.io.DataInput#readFully(byte[], int, int) */
+  @Override
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    if (position + len > length) {
+      throw new EOFException("Attempting to read beyond end of file.");
+    }
+    int cached = 0;
+    if (position < header.length) {
+      cached = (int) Math.min(len, header.length - position);
+      System.arraycopy(header, (int) position, b, off, cached);
+    }
+    if (cached < len) {
+      // NB: duplicates share the underlying handle
+      synchronized (source) {
+        source.seek(position + cached);
+        source.readFully(b, off + cached, len - cached);
+      }
+    }
+    position += len;
+  }
+
+  /* @see java.io.DataInput#skipBytes(int) */
+  @Override
+  public int skipBytes(int n) {
+    if (n <= 0) return 0;
+    int skipped = (int) Math.min(n, Math.max(0, length - position));
+    position += skipped;
+    return skipped;
+  }
+
+  /* @see java.io.DataInput#readBoolean() */
+  @Override
+  public boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+
+  /* @see java.io.DataInput#readByte() */
+  @Override
+  public byte readByte() throws IOException {
+    if (position < header.length) {
+      return header[(int) position++];
+    }
+    readFully(scratch, 0, 1);
+    return scratch[0];
+  }
+
+  /* @see java.io.DataInput#readUnsignedByte() */
+  @Override
+  public int readUnsignedByte() throws IOException {
+    return readByte() & 0xff;
+  }
+
+  /* @see java.io.DataInput#readShort() */
+  @Override
+  public short readShort() throws IOException {
+    return readPrimitive(2).getShort();
+  }
+
+  /* @see java.io.DataInput#readUnsignedShort() */
+  @Override
+  public int readUnsignedShort() throws IOException {
+    return readShort() & 0xffff;
+  }
+
+  /* @see java.io.DataInput#readChar() */
+  @Override
+  public char readChar() throws IOException {
+    return readPrimitive(2).getChar();
+  }
+
+  /* @see java.io.DataInput#readInt() */
+  @Override
+  public int readInt() throws IOException {
+    return readPrimitive(4).getInt();
+  }
+
+  /* @see java.io.DataInput#readLong() */
+  @Override
+  public long readLong() throws IOException {
+    return readPrimitive(8).getLong();
+  }
+
+  /* @see java.io.DataInput#readFloat() */
+  @Override
+  public float readFloat() throws IOException {
+    return readPrimitive(4).getFloat();
+  }
+
+  /* @see java.io.DataInput#readDouble() */
+  @Override
+  public double readDouble() throws IOException {
+    return readPrimitive(8).getDouble();
+  }
+
+  /* @see java.io.DataInput#readLine() */
+  @Override
+  public String readLine() throws IOException {
+    if (position >= length) return null;
+    StringBuilder line = new StringBuilder();
+    while (position < length) {
+      int c = readUnsignedByte();
+      if (c == '\n') break;
+      if (c == '\r') {
+        if (position < length && peek() == '\n') position++;
+        break;
+      }
+      line.append((char) c);
+    }
+    return line.toString();
+  }
+
+  /* @see java.io.DataInput#readUTF() */
+  @Override
+  public String readUTF() throws IOException {
+    return DataInputStream.readUTF(this);
+  }
+
+  // -- DataOutput API methods --
+
+  /* @see java.io.DataOutput#write(byte[]) */
+  @Override
+  public void write(byte[] b) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#write(byte[], int, int) */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#write(int) */
+  @Override
+  public void write(int b) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#writeBoolean(boolean) */
+  @Override
+  public void writeBoolean(boolean v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#writeByte(int) */
+  @Override
+  public void writeByte(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#writeBytes(String) */
+  @Override
+  public void writeBytes(String s) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#writeChar(int) */
+  @Override
+  public void writeChar(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#writeChars(String) */
+  @Override
+  public void writeChars(String s) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#writeDouble(double) */
+  @Override
+  public void writeDouble(double v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#writeFloat(float) */
+  @Override
+  public void writeFloat(float v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#writeInt(int) */
+  @Override
+  public void writeInt(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#writeLong(long) */
+  @Override
+  public void writeLong(long v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#writeShort(int) */
+  @Override
+  public void writeShort(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput#writeUTF(String) */
+  @Override
+  public void writeUTF(String str) throws IOException {
+    throw readOnly();
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Reads the given number of bytes into the scratch buffer and returns
+   * a buffer for decoding them in the current byte order.
+   */
+  private ByteBuffer readPrimitive(int size) throws IOException {
+    readFully(scratch, 0, size);
+    return ByteBuffer.wrap(scratch, 0, size).order(order);
+  }
+
+  /** Returns the next byte without advancing the file pointer. */
+  private int peek() throws IOException {
+    int b = readUnsignedByte();
+    position--;
+    return b;
+  }
+
+  private IOException readOnly() {
+    return new IOException("This handle is read-only");
+  }
+
+}
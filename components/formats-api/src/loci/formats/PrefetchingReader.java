@@ -0,0 +1,568 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reader wrapper that detects sequential access and reads ahead.
+ * <p>
+ * When consecutive requests read the same region of consecutive planes, or
+ * adjacent tiles of the same plane in raster order, the next planes or
+ * tiles are read on background threads and kept until they are requested.
+ * At most {@link #getDepth()} regions are read ahead, and at most
+ * {@link #getMaxBytes()} bytes are held by read-ahead regions at any time.
+ * <p>
+ * Background reads use clones of the wrapped reader (see
+ * {@link ConcurrentReader}), so the wrapped reader itself is only used by
+ * the calling thread.  If the wrapped reader cannot be cloned, requests are
+ * passed through unchanged.  Read-ahead regions are keyed by file, core
+ * index (series and resolution), plane and region, so switching series or
+ * resolution never returns stale data; regions that are no longer on the
+ * predicted path are discarded.  Like other readers, a PrefetchingReader is
+ * not thread-safe.
+ */
+public class PrefetchingReader extends ReaderWrapper {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(PrefetchingReader.class);
+
+  /** Default number of planes or tiles to read ahead. */
+  public static final int DEFAULT_DEPTH = 4;
+
+  /** Default limit on the memory held by read-ahead regions: 64 MB. */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  // -- Fields --
+
+  private final Executor executor;
+  private final int depth;
+  private final long maxBytes;
+
+  /** Executor created when none was given; shut down by {@link #close()}. */
+  private ExecutorService ownExecutor;
+
+  /** Source of per-thread clones for background reads. */
+  private ConcurrentReader concurrent;
+
+  /** True if the current file's reader cannot be cloned. */
+  private boolean unsupported;
+
+  /** Read-ahead regions, in the order in which they were requested. */
+  private final Map<TileCache.Key, Prefetch> prefetched =
+    new LinkedHashMap<TileCache.Key, Prefetch>();
+
+  private long prefetchedBytes;
+
+  /** The previous request, used to detect sequential access. */
+  private TileCache.Key last;
+
+  private long hitCount, missCount, prefetchCount, discardCount;
+
+  /** Guards {@link #running}. */
+  private final Object runLock = new Object();
+
+  /** Number of read-ahead regions being read right now. */
+  private int running;
+
+  // -- Constructors --
+
+  /** Constructs a prefetching reader around a new image reader. */
+  public PrefetchingReader() {
+    this(new ImageReader());
+  }
+
+  /**
+   * Constructs a prefetching reader around the given reader, with the
+   * default depth and memory limit, reading ahead on a single background
+   * thread.
+   */
+  public PrefetchingReader(IFormatReader r) {
+    this(r, null, DEFAULT_DEPTH, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Constructs a prefetching reader around the given reader.
+   *
+   * @param r the reader to wrap
+   * @param executor the executor that runs background reads, or null to
+   *   use a single background thread owned by this reader; an executor
+   *   that is given is never shut down by this reader
+   * @param depth the maximum number of planes or tiles to read ahead
+   * @param maxBytes the maximum number of bytes held by read-ahead regions
+   */
+  public PrefetchingReader(IFormatReader r, Executor executor, int depth,
+    long maxBytes)
+  {
+    super(r);
+    if (depth < 0) {
+      throw new IllegalArgumentException("Invalid depth: " + depth);
+    }
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Invalid memory limit: " + maxBytes);
+    }
+    this.executor = executor;
+    this.depth = depth;
+    this.maxBytes = maxBytes;
+  }
+
+  // -- PrefetchingReader API methods --
+
+  /** Gets the maximum number of planes or tiles read ahead. */
+  public int getDepth() {
+    return depth;
+  }
+
+  /** Gets the maximum number of bytes held by read-ahead regions. */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** Gets the number of bytes currently held by read-ahead regions. */
+  public long getPrefetchedBytes() {
+    return prefetchedBytes;
+  }
+
+  /** Gets the number of requests served from read-ahead regions. */
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  /** Gets the number of requests read from the wrapped reader. */
+  public long getMissCount() {
+    return missCount;
+  }
+
+  /** Gets the number of regions read ahead so far. */
+  public long getPrefetchCount() {
+    return prefetchCount;
+  }
+
+  /** Gets the number of read-ahead regions discarded without being used. */
+  public long getDiscardCount() {
+    return discardCount;
+  }
+
+  /** Discards all read-ahead regions, and forgets the previous request. */
+  public void reset() {
+    for (Prefetch p : prefetched.values()) {
+      p.cancel(false);
+      discardCount++;
+    }
+    prefetched.clear();
+    prefetchedBytes = 0;
+    last = null;
+  }
+
+  // -- IFormatReader API methods --
+
+  @Override
+  public byte[] openBytes(int no) throws FormatException, IOException {
+    return openBytes(no, 0, 0, getSizeX(), getSizeY());
+  }
+
+  @Override
+  public byte[] openBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    byte[] tile = takePrefetched(no, x, y, w, h);
+    if (tile == null) {
+      tile = reader.openBytes(no, x, y, w, h);
+    }
+    prefetch(no, x, y, w, h);
+    return tile;
+  }
+
+  @Override
+  public byte[] openBytes(int no, byte[] buf)
+    throws FormatException, IOException
+  {
+    return openBytes(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  @Override
+  public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    byte[] tile = takePrefetched(no, x, y, w, h);
+    if (tile != null && tile.length <= buf.length) {
+      System.arraycopy(tile, 0, buf, 0, tile.length);
+    }
+    else {
+      buf = reader.openBytes(no, buf, x, y, w, h);
+    }
+    prefetch(no, x, y, w, h);
+    return buf;
+  }
+
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf)
+    throws FormatException, IOException
+  {
+    return openBytes(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf, int x, int y, int w,
+    int h) throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf.remaining(), x, y, w, h);
+    byte[] tile = takePrefetched(no, x, y, w, h);
+    if (tile != null) {
+      buf.put(tile, 0, FormatTools.getPlaneSize(this, w, h));
+    }
+    else {
+      reader.openBytes(no, buf, x, y, w, h);
+    }
+    prefetch(no, x, y, w, h);
+    return buf;
+  }
+
+  @Override
+  public void setId(String id) throws FormatException, IOException {
+    closeClones();
+    reader.setId(id);
+  }
+
+  @Override
+  public void close(boolean fileOnly) throws IOException {
+    closeClones();
+    reader.close(fileOnly);
+  }
+
+  @Override
+  public void close() throws IOException {
+    closeClones();
+    if (ownExecutor != null) {
+      ownExecutor.shutdownNow();
+      ownExecutor = null;
+    }
+    reader.close();
+  }
+
+  /**
+   * Clones the wrapped reader; the clone reads ahead with the same
+   * executor, depth and memory limit, but keeps its own read-ahead regions.
+   */
+  @Override
+  public IFormatReader cloneReader() throws FormatException, IOException {
+    return new PrefetchingReader(getReader().cloneReader(), executor, depth,
+      maxBytes);
+  }
+
+  // -- Helper methods --
+
+  private TileCache.Key getKey(int no, int x, int y, int w, int h) {
+    String file = getCurrentFile();
+    if (file == null) return null;
+    return new TileCache.Key(file, getCoreIndex(), no, x, y, w, h,
+      isNormalized());
+  }
+
+  /**
+   * Removes and returns the read-ahead region for the given request, or
+   * null if it was not read ahead or its read failed.
+   */
+  private byte[] takePrefetched(int no, int x, int y, int w, int h)
+    throws IOException
+  {
+    TileCache.Key key = getKey(no, x, y, w, h);
+    Prefetch p = key == null ? null : prefetched.remove(key);
+    if (p == null) {
+      missCount++;
+      return null;
+    }
+    prefetchedBytes -= p.size;
+    try {
+      byte[] tile = p.get();
+      hitCount++;
+      return tile;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for plane " + no, e);
+    }
+    catch (ExecutionException e) {
+      // read it again on the calling thread, so that the wrapped reader
+      // reports the problem as usual
+      LOGGER.debug("Read-ahead of plane {} failed", no, e.getCause());
+      missCount++;
+      return null;
+    }
+  }
+
+  /**
+   * Records the given request and, if it continues a sequential pattern,
+   * reads ahead along that pattern.  Read-ahead regions that are not on
+   * the predicted path are discarded.
+   */
+  private void prefetch(int no, int x, int y, int w, int h) {
+    TileCache.Key key = getKey(no, x, y, w, h);
+    TileCache.Key previous = last;
+    last = key;
+    if (key == null || depth == 0) return;
+
+    List<TileCache.Key> next = predict(previous, key);
+    if (next.isEmpty() && prefetched.isEmpty()) return;
+
+    // discard regions that are no longer expected
+    for (Iterator<Map.Entry<TileCache.Key, Prefetch>> it =
+      prefetched.entrySet().iterator(); it.hasNext();)
+    {
+      Map.Entry<TileCache.Key, Prefetch> entry = it.next();
+      if (!next.contains(entry.getKey())) {
+        entry.getValue().cancel(false);
+        prefetchedBytes -= entry.getValue().size;
+        discardCount++;
+        it.remove();
+      }
+    }
+
+    if (next.isEmpty() || !initClones()) return;
+    for (TileCache.Key k : next) {
+      if (prefetched.containsKey(k)) continue;
+      long size;
+      try {
+        size = FormatTools.getPlaneSize(this, k.getWidth(), k.getHeight());
+      }
+      catch (IllegalArgumentException e) {
+        return;
+      }
+      if (prefetchedBytes + size > maxBytes) return;
+      Prefetch p = new Prefetch(getCoreIndex(), k, size);
+      try {
+        getExecutor().execute(p);
+      }
+      catch (RejectedExecutionException e) {
+        LOGGER.debug("Read-ahead rejected by executor", e);
+        return;
+      }
+      prefetched.put(k, p);
+      prefetchedBytes += size;
+      prefetchCount++;
+    }
+  }
+
+  /**
+   * Predicts the regions that follow the current request, given the
+   * previous one.  Two patterns are recognized: the same region of
+   * consecutive planes, and adjacent tiles of one plane in raster order.
+   */
+  private List<TileCache.Key> predict(TileCache.Key previous,
+    TileCache.Key current)
+  {
+    List<TileCache.Key> next = new ArrayList<TileCache.Key>();
+    if (previous == null || !previous.getFile().equals(current.getFile()) ||
+      previous.getCoreIndex() != current.getCoreIndex() ||
+      previous.isNormalized() != current.isNormalized())
+    {
+      return next;
+    }
+    int no = current.getPlane();
+    int x = current.getX(), y = current.getY();
+    int w = current.getWidth(), h = current.getHeight();
+
+    if (no == previous.getPlane() + 1 && x == previous.getX() &&
+      y == previous.getY() && w == previous.getWidth() &&
+      h == previous.getHeight())
+    {
+      int count = getImageCount();
+      for (int i=1; i<=depth && no + i < count; i++) {
+        next.add(getKey(no + i, x, y, w, h));
+      }
+      return next;
+    }
+
+    if (no != previous.getPlane()) return next;
+    boolean sameRow = y == previous.getY() && h == previous.getHeight() &&
+      x == previous.getX() + previous.getWidth();
+    boolean nextRow = x == 0 && y == previous.getY() + previous.getHeight();
+    if (!sameRow && !nextRow) return next;
+
+    // tiles at the end of a row, or in the last row, may be smaller
+    int tileWidth = Math.max(w, previous.getWidth());
+    int tileHeight = Math.max(h, previous.getHeight());
+    int sizeX = getSizeX(), sizeY = getSizeY();
+    int tx = x + w, ty = y;
+    while (next.size() < depth) {
+      if (tx >= sizeX) {
+        tx = 0;
+        ty += h;
+      }
+      if (ty >= sizeY) break;
+      next.add(getKey(no, tx, ty, Math.min(tileWidth, sizeX - tx),
+        Math.min(tileHeight, sizeY - ty)));
+      tx += tileWidth;
+    }
+    return next;
+  }
+
+  /**
+   * Prepares the clones used for background reads, returning false if the
+   * wrapped reader cannot be cloned.
+   */
+  private boolean initClones() {
+    if (concurrent != null) return true;
+    if (unsupported) return false;
+    try {
+      concurrent = new ConcurrentReader(reader);
+      return true;
+    }
+    catch (FormatException e) {
+      LOGGER.debug("Read-ahead disabled", e);
+      unsupported = true;
+      return false;
+    }
+  }
+
+  /**
+   * Discards all read-ahead regions, waits for the ones that are being
+   * read, and closes the clones.
+   */
+  private void closeClones() throws IOException {
+    reset();
+    unsupported = false;
+    if (concurrent != null) {
+      awaitRunning();
+      concurrent.close();
+      concurrent = null;
+    }
+  }
+
+  /**
+   * Waits until no read-ahead region is being read.  Regions that were
+   * cancelled before they started are never read.
+   */
+  private void awaitRunning() {
+    boolean interrupted = false;
+    synchronized (runLock) {
+      while (running > 0) {
+        try {
+          runLock.wait();
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private Executor getExecutor() {
+    if (executor != null) return executor;
+    if (ownExecutor == null) {
+      ownExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "PrefetchingReader");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return ownExecutor;
+  }
+
+  // -- Helper classes --
+
+  /**
+   * A region being read on a background thread, using the clones that
+   * were current when it was created.
+   */
+  private class Prefetch extends FutureTask<byte[]> {
+    private final long size;
+
+    Prefetch(final int coreIndex, final TileCache.Key key, long size) {
+      super(new ReadRegion(concurrent, coreIndex, key));
+      this.size = size;
+    }
+
+    @Override
+    public void run() {
+      synchronized (runLock) {
+        if (isCancelled()) return;
+        running++;
+      }
+      try {
+        super.run();
+      }
+      finally {
+        synchronized (runLock) {
+          running--;
+          runLock.notifyAll();
+        }
+      }
+    }
+  }
+
+  /** Reads one region from the given clones. */
+  private static class ReadRegion implements Callable<byte[]> {
+    private final ConcurrentReader concurrent;
+    private final int coreIndex;
+    private final TileCache.Key key;
+
+    ReadRegion(ConcurrentReader concurrent, int coreIndex,
+      TileCache.Key key)
+    {
+      this.concurrent = concurrent;
+      this.coreIndex = coreIndex;
+      this.key = key;
+    }
+
+    @Override
+    public byte[] call() throws FormatException, IOException {
+      return concurrent.openBytes(coreIndex, key.getPlane(), key.getX(),
+        key.getY(), key.getWidth(), key.getHeight());
+    }
+  }
+
+}
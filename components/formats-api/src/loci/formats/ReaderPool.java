@@ -0,0 +1,646 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread-safe pool of initialized readers, leased by dataset id.
+ * <p>
+ * {@link #lease(String)} returns an idle reader for the given dataset if
+ * there is one, and otherwise creates a reader: by
+ * {@link IFormatReader#cloneReader() cloning} the dataset's template if
+ * possible, or else with {@link #createReader()} and
+ * {@link IFormatReader#setId(String)}.  The template is a clone, with its
+ * files closed, of the first reader initialized for a dataset; it is taken
+ * before that reader is leased and is itself never leased, so that no
+ * reader is cloned while another thread is reading with it.  Leased
+ * readers must be returned with {@link #release(IFormatReader)}.
+ * <p>
+ * The pool caps the number of readers with open files.  When the cap is
+ * reached, idle readers have their files closed with
+ * {@link IFormatReader#close(boolean) close(true)}, keeping their metadata
+ * so that they can be reopened cheaply; if every reader is leased,
+ * {@link #lease(String)} waits for one to be released.  Idle readers also
+ * have their files closed once they have been idle for longer than the
+ * idle timeout.  The pool also caps the estimated size of the metadata of
+ * all datasets it holds, and fully closes the least recently used idle
+ * readers when that is exceeded.
+ */
+public class ReaderPool implements Closeable {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ReaderPool.class);
+
+  /** Default maximum number of readers with open files. */
+  public static final int DEFAULT_MAX_OPEN_READERS = 64;
+
+  /** Default maximum estimated metadata size: 256 MB. */
+  public static final long DEFAULT_MAX_METADATA_BYTES = 256L * 1024 * 1024;
+
+  /** Default idle time after which a reader's files are closed: 60 s. */
+  public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+  // -- Fields --
+
+  private final Class<? extends IFormatReader> readerClass;
+  private final int maxOpenReaders;
+  private final long maxMetadataBytes;
+  private final long idleTimeout;
+
+  /** Datasets with at least one reader, keyed by id. */
+  private final Map<String, Dataset> datasets = new HashMap<String, Dataset>();
+
+  /** Idle readers, least recently released first. */
+  private final LinkedHashSet<PooledReader> idle =
+    new LinkedHashSet<PooledReader>();
+
+  /** Leased readers. */
+  private final Map<IFormatReader, PooledReader> leased =
+    new IdentityHashMap<IFormatReader, PooledReader>();
+
+  /** Number of readers with open files, including readers being opened. */
+  private int openReaders;
+
+  private long metadataBytes;
+  private boolean closed;
+
+  private long leaseCount;
+  private long timeoutCount;
+  private long totalWaitNanos;
+  private long maxWaitNanos;
+  private long createCount;
+  private long cloneCount;
+
+  // -- Constructors --
+
+  /** Constructs a pool of {@link ImageReader}s with the default limits. */
+  public ReaderPool() {
+    this(ImageReader.class);
+  }
+
+  /** Constructs a pool of readers of the given class. */
+  public ReaderPool(Class<? extends IFormatReader> readerClass) {
+    this(readerClass, DEFAULT_MAX_OPEN_READERS, DEFAULT_MAX_METADATA_BYTES,
+      DEFAULT_IDLE_TIMEOUT);
+  }
+
+  /**
+   * Constructs a pool of readers of the given class.
+   *
+   * @param maxOpenReaders maximum number of readers with open files
+   * @param maxMetadataBytes maximum estimated size of the metadata held
+   * @param idleTimeout time in milliseconds after which the files of an
+   *   idle reader are closed, or 0 to keep them open
+   */
+  public ReaderPool(Class<? extends IFormatReader> readerClass,
+    int maxOpenReaders, long maxMetadataBytes, long idleTimeout)
+  {
+    if (maxOpenReaders < 1) {
+      throw new IllegalArgumentException(
+        "Invalid number of open readers: " + maxOpenReaders);
+    }
+    this.readerClass = readerClass;
+    this.maxOpenReaders = maxOpenReaders;
+    this.maxMetadataBytes = maxMetadataBytes;
+    this.idleTimeout = idleTimeout;
+  }
+
+  // -- ReaderPool API methods --
+
+  /**
+   * Leases an initialized reader for the given dataset, waiting as long as
+   * needed for a reader to become available.
+   */
+  public IFormatReader lease(String id)
+    throws FormatException, IOException, InterruptedException
+  {
+    return lease(id, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Leases an initialized reader for the given dataset, waiting at most the
+   * given time for a reader to become available.
+   *
+   * @return the reader, set to the first series, or null if the timeout
+   *   elapsed.
+   */
+  public IFormatReader lease(String id, long timeout, TimeUnit unit)
+    throws FormatException, IOException, InterruptedException
+  {
+    long start = System.nanoTime();
+    long remaining = unit.toNanos(timeout);
+    PooledReader pooled = null;
+    Dataset reserved = null;
+    IFormatReader template = null;
+    boolean makeTemplate = false;
+    boolean reopen = false;
+
+    synchronized (this) {
+      while (true) {
+        if (closed) throw new IllegalStateException("Pool is closed");
+        closeExpired();
+        pooled = findIdle(id);
+        if (pooled != null && pooled.open) {
+          idle.remove(pooled);
+          break;
+        }
+        if (openReaders < maxOpenReaders || closeIdleFiles()) {
+          openReaders++;
+          if (pooled != null) {
+            idle.remove(pooled);
+            pooled.open = true;
+            reopen = true;
+          }
+          else {
+            // the pending reader keeps the dataset, and its template, open
+            reserved = datasets.get(id);
+            if (reserved != null) {
+              reserved.readers++;
+              template = reserved.template;
+            }
+            makeTemplate = reserved == null ||
+              (template == null && reserved.cloneable);
+          }
+          break;
+        }
+        pooled = null;
+        if (remaining <= 0) {
+          timeoutCount++;
+          return null;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        remaining = unit.toNanos(timeout) - (System.nanoTime() - start);
+      }
+      if (pooled != null) leased.put(pooled.reader, pooled);
+    }
+
+    IFormatReader reader = null;
+    IFormatReader newTemplate = null;
+    if (reopen) {
+      try {
+        pooled.reader.reopenFile();
+      }
+      catch (IOException | RuntimeException e) {
+        synchronized (this) {
+          leased.remove(pooled.reader);
+          remove(pooled);
+          notifyAll();
+        }
+        closeQuietly(pooled.reader, false);
+        throw e;
+      }
+    }
+    else if (pooled == null) {
+      try {
+        reader = openReader(id, template);
+      }
+      finally {
+        if (reader == null) {
+          synchronized (this) {
+            openReaders--;
+            if (reserved != null) removeDatasetReader(id);
+            notifyAll();
+          }
+        }
+      }
+      if (makeTemplate) newTemplate = createTemplate(reader);
+    }
+
+    synchronized (this) {
+      if (pooled == null) {
+        pooled = new PooledReader(id, reader);
+        Dataset dataset = reserved;
+        if (dataset == null) {
+          dataset = datasets.get(id);
+          if (dataset == null) {
+            dataset = new Dataset(estimateMetadataBytes(reader));
+            datasets.put(id, dataset);
+            metadataBytes += dataset.metadataBytes;
+          }
+          dataset.readers++;
+        }
+        if (makeTemplate && dataset.template == null) {
+          dataset.template = newTemplate;
+          dataset.cloneable = newTemplate != null;
+          newTemplate = null;
+        }
+        leased.put(reader, pooled);
+        closeOverBudget();
+      }
+      long wait = System.nanoTime() - start;
+      leaseCount++;
+      totalWaitNanos += wait;
+      maxWaitNanos = Math.max(maxWaitNanos, wait);
+    }
+    if (newTemplate != null) closeQuietly(newTemplate, false);
+    pooled.reader.setCoreIndex(0);
+    return pooled.reader;
+  }
+
+  /**
+   * Returns a leased reader to the pool.  If the pool has been closed, the
+   * reader is closed instead.
+   */
+  public void release(IFormatReader reader) throws IOException {
+    PooledReader pooled;
+    synchronized (this) {
+      pooled = leased.remove(reader);
+      if (pooled == null) {
+        throw new IllegalArgumentException("Reader is not leased: " + reader);
+      }
+      if (!closed) {
+        pooled.idleSince = System.currentTimeMillis();
+        idle.add(pooled);
+        closeOverBudget();
+        notifyAll();
+        return;
+      }
+      remove(pooled);
+    }
+    reader.close();
+  }
+
+  /**
+   * Closes the files of readers that have been idle for longer than the
+   * idle timeout.  This also happens whenever a reader is leased.
+   */
+  public synchronized void evictIdle() {
+    closeExpired();
+  }
+
+  /** Fully closes all idle readers. */
+  public void clear() {
+    List<PooledReader> toClose = new ArrayList<PooledReader>();
+    synchronized (this) {
+      toClose.addAll(idle);
+      idle.clear();
+      for (PooledReader pooled : toClose) {
+        remove(pooled);
+      }
+      notifyAll();
+    }
+    for (PooledReader pooled : toClose) {
+      closeQuietly(pooled.reader, false);
+    }
+  }
+
+  /**
+   * Fully closes all idle readers.  Readers that are still leased are
+   * closed when they are released.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    clear();
+  }
+
+  /** Gets the number of readers with open files. */
+  public synchronized int getOpenReaderCount() {
+    return openReaders;
+  }
+
+  /** Gets the number of idle readers. */
+  public synchronized int getIdleReaderCount() {
+    return idle.size();
+  }
+
+  /** Gets the number of leased readers. */
+  public synchronized int getLeasedReaderCount() {
+    return leased.size();
+  }
+
+  /** Gets the estimated size of the metadata held by the pool. */
+  public synchronized long getMetadataBytes() {
+    return metadataBytes;
+  }
+
+  /** Gets the number of successful leases. */
+  public synchronized long getLeaseCount() {
+    return leaseCount;
+  }
+
+  /** Gets the number of leases that timed out. */
+  public synchronized long getTimeoutCount() {
+    return timeoutCount;
+  }
+
+  /**
+   * Gets the total time spent in successful calls to
+   * {@link #lease(String)}, including waiting for a reader and initializing
+   * new readers, in nanoseconds.
+   */
+  public synchronized long getTotalWaitNanos() {
+    return totalWaitNanos;
+  }
+
+  /** Gets the longest time spent in a successful lease, in nanoseconds. */
+  public synchronized long getMaxWaitNanos() {
+    return maxWaitNanos;
+  }
+
+  /** Gets the average time spent in a successful lease, in nanoseconds. */
+  public synchronized long getAverageWaitNanos() {
+    return leaseCount == 0 ? 0 : totalWaitNanos / leaseCount;
+  }
+
+  /** Gets the number of readers initialized with setId. */
+  public synchronized long getCreateCount() {
+    return createCount;
+  }
+
+  /** Gets the number of readers created by cloning another reader. */
+  public synchronized long getCloneCount() {
+    return cloneCount;
+  }
+
+  /**
+   * Estimates the heap size of the core metadata and metadata tables of an
+   * initialized reader.  The estimate only accounts for strings, boxed
+   * values and hash table entries, and does not include the MetadataStore.
+   */
+  public static long estimateMetadataBytes(IFormatReader reader) {
+    long bytes = estimateTableBytes(reader.getGlobalMetadata());
+    for (CoreMetadata core : reader.getCoreMetadataList()) {
+      if (core == null) continue;
+      bytes += 256 + estimateTableBytes(core.seriesMetadata);
+    }
+    return bytes;
+  }
+
+  // -- Internal ReaderPool API methods --
+
+  /**
+   * Constructs a new, uninitialized reader.  Subclasses can override this
+   * to configure readers, e.g. with a MetadataStore or metadata options.
+   */
+  protected IFormatReader createReader() throws FormatException {
+    try {
+      return readerClass.getDeclaredConstructor().newInstance();
+    }
+    catch (InstantiationException e) {
+      throw new FormatException(e);
+    }
+    catch (IllegalAccessException e) {
+      throw new FormatException(e);
+    }
+    catch (NoSuchMethodException e) {
+      throw new FormatException(e);
+    }
+    catch (InvocationTargetException e) {
+      throw new FormatException(e);
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Creates a reader, cloning the template if possible.  The template's
+   * files are only open while it is being cloned, and only one thread at a
+   * time clones it.
+   */
+  private IFormatReader openReader(String id, IFormatReader template)
+    throws FormatException, IOException
+  {
+    if (template != null) {
+      try {
+        IFormatReader reader;
+        synchronized (template) {
+          template.reopenFile();
+          try {
+            reader = template.cloneReader();
+          }
+          finally {
+            closeQuietly(template, true);
+          }
+        }
+        synchronized (this) {
+          cloneCount++;
+        }
+        return reader;
+      }
+      catch (FormatException | IOException | RuntimeException e) {
+        // e.g. the reader does not support cloning
+        LOGGER.trace("Could not clone reader for {}", id, e);
+      }
+    }
+    IFormatReader reader = createReader();
+    try {
+      reader.setId(id);
+    }
+    catch (FormatException | IOException | RuntimeException e) {
+      closeQuietly(reader, false);
+      throw e;
+    }
+    synchronized (this) {
+      createCount++;
+    }
+    return reader;
+  }
+
+  /**
+   * Gets an idle reader for the given dataset, preferring one with open
+   * files, or null if there is none.
+   */
+  private PooledReader findIdle(String id) {
+    PooledReader match = null;
+    for (PooledReader pooled : idle) {
+      if (pooled.id.equals(id)) {
+        match = pooled;
+        if (pooled.open) break;
+      }
+    }
+    return match;
+  }
+
+  /**
+   * Clones a newly initialized reader, which no other thread can see yet,
+   * and closes the clone's files.  Returns null if the reader cannot be
+   * cloned.
+   */
+  private static IFormatReader createTemplate(IFormatReader reader) {
+    try {
+      IFormatReader template = reader.cloneReader();
+      closeQuietly(template, true);
+      return template;
+    }
+    catch (FormatException | IOException | RuntimeException e) {
+      LOGGER.trace("Could not clone reader for {}",
+        reader.getCurrentFile(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Closes the files of the least recently used idle reader with open
+   * files, and returns true if there was one.
+   */
+  private boolean closeIdleFiles() {
+    for (PooledReader pooled : idle) {
+      if (pooled.open) {
+        closeFiles(pooled);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void closeExpired() {
+    if (idleTimeout <= 0) return;
+    long now = System.currentTimeMillis();
+    for (PooledReader pooled : idle) {
+      if (now - pooled.idleSince < idleTimeout) break;
+      if (pooled.open) closeFiles(pooled);
+    }
+  }
+
+  private void closeFiles(PooledReader pooled) {
+    pooled.open = false;
+    openReaders--;
+    closeQuietly(pooled.reader, true);
+  }
+
+  /**
+   * Fully closes least recently used idle readers until the metadata is
+   * within budget.
+   */
+  private void closeOverBudget() {
+    Iterator<PooledReader> readers = idle.iterator();
+    while (metadataBytes > maxMetadataBytes && readers.hasNext()) {
+      PooledReader pooled = readers.next();
+      readers.remove();
+      remove(pooled);
+      closeQuietly(pooled.reader, false);
+    }
+  }
+
+  /** Removes a reader that is neither idle nor leased from the counts. */
+  private void remove(PooledReader pooled) {
+    if (pooled.open) {
+      pooled.open = false;
+      openReaders--;
+    }
+    removeDatasetReader(pooled.id);
+  }
+
+  /**
+   * Removes one reader, or pending reader, from a dataset's count, and
+   * forgets the dataset and closes its template if it was the last one.
+   */
+  private void removeDatasetReader(String id) {
+    Dataset dataset = datasets.get(id);
+    if (dataset != null && --dataset.readers == 0) {
+      datasets.remove(id);
+      metadataBytes -= dataset.metadataBytes;
+      if (dataset.template != null) closeQuietly(dataset.template, false);
+    }
+  }
+
+  private static void closeQuietly(IFormatReader reader, boolean fileOnly) {
+    try {
+      reader.close(fileOnly);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not close {}", reader.getCurrentFile(), e);
+    }
+  }
+
+  private static long estimateTableBytes(Map<String, Object> table) {
+    if (table == null) return 0;
+    long bytes = 64;
+    for (Map.Entry<String, Object> entry : table.entrySet()) {
+      bytes += 48 + 40 + 2L * entry.getKey().length();
+      Object value = entry.getValue();
+      if (value instanceof String) {
+        bytes += 40 + 2L * ((String) value).length();
+      }
+      else bytes += 16;
+    }
+    return bytes;
+  }
+
+  // -- Helper classes --
+
+  /** A reader owned by the pool. */
+  private static final class PooledReader {
+    final String id;
+    final IFormatReader reader;
+    boolean open = true;
+    long idleSince;
+
+    PooledReader(String id, IFormatReader reader) {
+      this.id = id;
+      this.reader = reader;
+    }
+  }
+
+  /**
+   * Metadata accounting and template for one dataset.  Readers of a dataset
+   * usually share their metadata (see {@link IFormatReader#cloneReader()}),
+   * so it is counted once per dataset.
+   */
+  private static final class Dataset {
+    final long metadataBytes;
+
+    /** Number of readers, including those being created. */
+    int readers;
+
+    /** Reader that is cloned but never leased, or null. */
+    IFormatReader template;
+
+    /** False if taking a template failed. */
+    boolean cloneable = true;
+
+    Dataset(long metadataBytes) {
+      this.metadataBytes = metadataBytes;
+    }
+  }
+
+}
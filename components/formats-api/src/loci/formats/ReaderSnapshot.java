@@ -0,0 +1,769 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import loci.common.Constants;
+import loci.common.Location;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.meta.DummyMetadata;
+import loci.formats.meta.MetadataRetrieve;
+import loci.formats.meta.MetadataStore;
+import loci.formats.services.OMEXMLService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the state of an initialized reader to a compact binary file, and
+ * restores it later without calling {@link IFormatReader#setId(String)}.
+ * <p>
+ * A snapshot holds the core metadata, the global and series metadata
+ * tables, the MetadataStore (as OME-XML) and the size and modification time
+ * of each used file.  A snapshot is only restored if the reader class, the
+ * file name and the reader settings (normalization, metadata filtering,
+ * grouping, etc.) match, and none of the used files have changed.
+ * <p>
+ * Only readers that declare {@link FormatReader#isSnapshotSupported()} can
+ * be saved and restored, either directly or through an {@link ImageReader}
+ * or {@link ReaderWrapper}s that do not keep state of their own.
+ * Typical use:
+ * <pre>
+ * ReaderSnapshot.setId(reader, id, id + ".snapshot");
+ * </pre>
+ */
+public final class ReaderSnapshot {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ReaderSnapshot.class);
+
+  /** Identifies a snapshot file: "BFRS". */
+  private static final int MAGIC = 0x42465253;
+
+  /** Version of the snapshot format. */
+  private static final int VERSION = 2;
+
+  // -- Value tags --
+
+  private static final byte STRING = 0;
+  private static final byte INTEGER = 1;
+  private static final byte LONG = 2;
+  private static final byte DOUBLE = 3;
+  private static final byte FLOAT = 4;
+  private static final byte BOOLEAN = 5;
+  private static final byte SHORT = 6;
+  private static final byte BYTE = 7;
+  private static final byte CHARACTER = 8;
+  private static final byte LIST = 9;
+
+  // -- Constructor --
+
+  private ReaderSnapshot() { }
+
+  // -- Static utility methods --
+
+  /**
+   * Restores the given reader from the snapshot if it is valid, and
+   * otherwise initializes it with {@link IFormatReader#setId(String)} and
+   * saves a new snapshot.  Failure to save the snapshot is logged, but not
+   * thrown.
+   */
+  public static void setId(IFormatReader reader, String id, String snapshot)
+    throws FormatException, IOException
+  {
+    if (restore(reader, id, snapshot)) return;
+    reader.setId(id);
+    if (isSupported(reader)) {
+      try {
+        save(reader, snapshot);
+      }
+      catch (IOException e) {
+        LOGGER.warn("Could not save snapshot {}", snapshot, e);
+      }
+    }
+  }
+
+  /** Returns true if the given initialized reader can be saved. */
+  public static boolean isSupported(IFormatReader reader) {
+    FormatReader r = getFormatReader(reader);
+    return r != null && r.isSnapshotSupported();
+  }
+
+  /**
+   * Saves the state of the given initialized reader.  The snapshot is
+   * written to a temporary file which is then renamed, so that concurrent
+   * readers of the snapshot never see a partially written file.
+   *
+   * @throws FormatException if the reader does not support snapshots.
+   */
+  public static void save(IFormatReader reader, String snapshot)
+    throws FormatException, IOException
+  {
+    FormatReader r = getFormatReader(reader);
+    if (r == null || !r.isSnapshotSupported()) {
+      throw new FormatException(
+        "Reader does not support snapshots: " + reader.getClass().getName());
+    }
+    FormatTools.assertId(r.getCurrentFile(), true, 1);
+
+    File file = new File(snapshot);
+    File tmp = File.createTempFile(file.getName(), ".tmp",
+      file.getAbsoluteFile().getParentFile());
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new GZIPOutputStream(new FileOutputStream(tmp))));
+    try {
+      write(r, out);
+    }
+    catch (IOException e) {
+      out.close();
+      tmp.delete();
+      throw e;
+    }
+    out.close();
+    if (!tmp.renameTo(file)) {
+      file.delete();
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("Could not write " + snapshot);
+      }
+    }
+  }
+
+  /**
+   * Restores the given reader from the snapshot, as if it had been
+   * initialized with {@link IFormatReader#setId(String)}.
+   *
+   * @return true if the reader was restored, or false if the snapshot does
+   *   not exist, cannot be read, or does not match the reader or the current
+   *   state of the used files; in that case the reader is left unchanged.
+   *   If the reader's own state in the snapshot cannot be read, the reader
+   *   is closed and false is returned.
+   */
+  public static boolean restore(IFormatReader reader, String id,
+    String snapshot) throws FormatException, IOException
+  {
+    File file = new File(snapshot);
+    if (!file.exists()) return false;
+
+    State state = null;
+    try {
+      state = read(new DataInputStream(
+        new ByteArrayInputStream(decompress(file))));
+    }
+    catch (IOException | RuntimeException e) {
+      LOGGER.debug("Could not read snapshot {}", snapshot, e);
+    }
+
+    if (state == null ||
+      !state.id.equals(new Location(id).getAbsolutePath()) ||
+      !isCurrent(state))
+    {
+      LOGGER.debug("Snapshot {} is out of date", snapshot);
+      return false;
+    }
+    return apply(reader, id, state);
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Gets the FormatReader that holds the state of the given reader, or null
+   * if there is none.
+   */
+  private static FormatReader getFormatReader(IFormatReader reader) {
+    while (reader instanceof ReaderWrapper || reader instanceof ImageReader) {
+      if (reader instanceof ImageReader) {
+        reader = ((ImageReader) reader).getReader();
+      }
+      else reader = ((ReaderWrapper) reader).getReader();
+    }
+    return reader instanceof FormatReader ? (FormatReader) reader : null;
+  }
+
+  /** Returns true if none of the used files have changed. */
+  private static boolean isCurrent(State state) {
+    for (int i=0; i<state.usedFiles.length; i++) {
+      Location file = new Location(state.usedFiles[i]);
+      if (file.length() != state.fileLengths[i] ||
+        file.lastModified() != state.lastModified[i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String getSettings(FormatReader r) {
+    return r.isNormalized() + "," + r.isOriginalMetadataPopulated() + "," +
+      r.isMetadataFiltered() + "," + r.hasFlattenedResolutions() + "," +
+      r.isGroupFiles() + "," + r.getMetadataOptions().getMetadataLevel();
+  }
+
+  /**
+   * Reads and decompresses the whole snapshot, so that every count and
+   * length in it can be checked against the number of bytes that remain.
+   * The decompressed size may not exceed the size recorded in the GZIP
+   * trailer.
+   */
+  private static byte[] decompress(File file) throws IOException {
+    long expected;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() < 4) throw new IOException("Truncated snapshot");
+      raf.seek(raf.length() - 4);
+      // ISIZE, stored little-endian
+      expected = Integer.reverseBytes(raf.readInt()) & 0xffffffffL;
+    }
+    finally {
+      raf.close();
+    }
+    if (expected > Integer.MAX_VALUE - 8) {
+      throw new IOException("Snapshot too large: " + expected);
+    }
+
+    InputStream in = new GZIPInputStream(
+      new BufferedInputStream(new FileInputStream(file)));
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(
+        (int) Math.min(expected, 1024 * 1024));
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        if (out.size() + n > expected) {
+          throw new IOException("Snapshot larger than recorded size");
+        }
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads a count of items that each take at least the given number of
+   * bytes, and checks it against the number of bytes that remain.
+   */
+  private static int readCount(DataInputStream in, int minItemSize)
+    throws IOException
+  {
+    return readCount(in, minItemSize, false);
+  }
+
+  /**
+   * Reads a count of items that each take at least the given number of
+   * bytes, and checks it against the number of bytes that remain.  If
+   * nullable is set, -1 is also accepted and returned.
+   */
+  private static int readCount(DataInputStream in, int minItemSize,
+    boolean nullable) throws IOException
+  {
+    int count = in.readInt();
+    if (nullable && count == -1) return count;
+    if (count < 0 || count > in.available() / minItemSize) {
+      throw new IOException("Invalid count: " + count);
+    }
+    return count;
+  }
+
+  private static OMEXMLService getService() throws FormatException {
+    try {
+      return new ServiceFactory().getInstance(OMEXMLService.class);
+    }
+    catch (DependencyException e) {
+      throw new FormatException("OMEXMLService not available", e);
+    }
+  }
+
+  private static boolean apply(IFormatReader reader, String id, State state)
+    throws FormatException, IOException
+  {
+    if (reader instanceof ReaderWrapper) {
+      return apply(((ReaderWrapper) reader).getReader(), id, state);
+    }
+    if (reader instanceof ImageReader) {
+      ImageReader imageReader = (ImageReader) reader;
+      IFormatReader r = null;
+      try {
+        r = imageReader.getReader(
+          Class.forName(state.readerClass).asSubclass(IFormatReader.class));
+      }
+      catch (ClassNotFoundException e) {
+        return false;
+      }
+      if (r == null || !apply(r, id, state)) return false;
+      imageReader.setCurrentReader(r, id);
+      return true;
+    }
+
+    if (!(reader instanceof FormatReader) ||
+      !reader.getClass().getName().equals(state.readerClass))
+    {
+      return false;
+    }
+    FormatReader r = (FormatReader) reader;
+    MetadataStore store = r.getMetadataStore();
+    boolean populateStore = !(store instanceof DummyMetadata);
+    if (!r.isSnapshotSupported() || !getSettings(r).equals(state.settings) ||
+      (populateStore && state.xml == null))
+    {
+      return false;
+    }
+
+    r.close();
+    try {
+      r.currentId = id;
+      r.core = state.core;
+      r.metadata = state.metadata;
+      r.coreIndex = 0;
+      r.series = 0;
+      r.resolution = 0;
+      store.createRoot();
+      if (populateStore) {
+        try {
+          getService().convertMetadata(state.xml, store);
+        }
+        catch (ServiceException e) {
+          throw new FormatException("Could not restore metadata", e);
+        }
+      }
+      try {
+        r.readSnapshotState(
+          new DataInputStream(new ByteArrayInputStream(state.readerState)));
+      }
+      catch (IOException | RuntimeException e) {
+        LOGGER.debug("Could not read reader state from snapshot", e);
+        r.close();
+        return false;
+      }
+      r.reopenFile();
+    }
+    catch (FormatException | IOException | RuntimeException e) {
+      r.close();
+      throw e;
+    }
+    return true;
+  }
+
+  private static void write(FormatReader r, DataOutputStream out)
+    throws FormatException, IOException
+  {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    writeString(out, r.getClass().getName());
+    writeString(out, new Location(r.getCurrentFile()).getAbsolutePath());
+    writeString(out, getSettings(r));
+
+    String[] usedFiles = r.getUsedFiles();
+    if (usedFiles == null) usedFiles = new String[0];
+    out.writeInt(usedFiles.length);
+    for (String usedFile : usedFiles) {
+      Location file = new Location(usedFile);
+      writeString(out, usedFile);
+      out.writeLong(file.length());
+      out.writeLong(file.lastModified());
+    }
+
+    out.writeInt(r.core.size());
+    for (CoreMetadata m : r.core) {
+      out.writeBoolean(m != null);
+      if (m != null) writeCore(out, m);
+    }
+    writeTable(out, r.metadata);
+
+    MetadataStore store = r.getMetadataStore();
+    String xml = null;
+    if (store instanceof MetadataRetrieve &&
+      !(store instanceof DummyMetadata))
+    {
+      try {
+        xml = getService().getOMEXML((MetadataRetrieve) store);
+      }
+      catch (ServiceException e) {
+        throw new FormatException("Could not save metadata", e);
+      }
+    }
+    writeString(out, xml);
+
+    ByteArrayOutputStream readerState = new ByteArrayOutputStream();
+    DataOutputStream stateOut = new DataOutputStream(readerState);
+    r.writeSnapshotState(stateOut);
+    stateOut.flush();
+    out.writeInt(readerState.size());
+    readerState.writeTo(out);
+  }
+
+  /**
+   * Reads a snapshot from a stream over its decompressed bytes, or returns
+   * null if it is not a valid snapshot.
+   *
+   * @throws IOException if the snapshot is truncated or corrupt.
+   */
+  private static State read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+    State state = new State();
+    state.readerClass = readString(in);
+    state.id = readString(in);
+    state.settings = readString(in);
+    if (state.readerClass == null || state.id == null ||
+      state.settings == null)
+    {
+      return null;
+    }
+
+    // name length, file length and modification time
+    int fileCount = readCount(in, 20);
+    state.usedFiles = new String[fileCount];
+    state.fileLengths = new long[fileCount];
+    state.lastModified = new long[fileCount];
+    for (int i=0; i<fileCount; i++) {
+      state.usedFiles[i] = readString(in);
+      state.fileLengths[i] = in.readLong();
+      state.lastModified[i] = in.readLong();
+    }
+
+    int coreCount = readCount(in, 1);
+    state.core = new ArrayList<CoreMetadata>(coreCount);
+    for (int i=0; i<coreCount; i++) {
+      state.core.add(in.readBoolean() ? readCore(in) : null);
+    }
+    state.metadata = readTable(in);
+    state.xml = readString(in);
+    state.readerState = new byte[readCount(in, 1)];
+    in.readFully(state.readerState);
+    if (in.available() > 0) throw new IOException("Trailing data");
+    return state;
+  }
+
+  private static void writeCore(DataOutput out, CoreMetadata m)
+    throws IOException
+  {
+    out.writeInt(m.sizeX);
+    out.writeInt(m.sizeY);
+    out.writeInt(m.sizeZ);
+    out.writeInt(m.sizeC);
+    out.writeInt(m.sizeT);
+    out.writeInt(m.thumbSizeX);
+    out.writeInt(m.thumbSizeY);
+    out.writeInt(m.pixelType);
+    out.writeInt(m.bitsPerPixel);
+    out.writeInt(m.imageCount);
+    writeModulo(out, m.moduloZ);
+    writeModulo(out, m.moduloC);
+    writeModulo(out, m.moduloT);
+    writeString(out, m.dimensionOrder);
+    out.writeBoolean(m.orderCertain);
+    out.writeBoolean(m.rgb);
+    out.writeBoolean(m.littleEndian);
+    out.writeBoolean(m.interleaved);
+    out.writeBoolean(m.indexed);
+    out.writeBoolean(m.falseColor);
+    out.writeBoolean(m.metadataComplete);
+    writeTable(out, m.seriesMetadata);
+    out.writeBoolean(m.thumbnail);
+    out.writeInt(m.resolutionCount);
+  }
+
+  private static CoreMetadata readCore(DataInputStream in)
+    throws IOException
+  {
+    CoreMetadata m = new CoreMetadata();
+    m.sizeX = in.readInt();
+    m.sizeY = in.readInt();
+    m.sizeZ = in.readInt();
+    m.sizeC = in.readInt();
+    m.sizeT = in.readInt();
+    m.thumbSizeX = in.readInt();
+    m.thumbSizeY = in.readInt();
+    m.pixelType = in.readInt();
+    m.bitsPerPixel = in.readInt();
+    m.imageCount = in.readInt();
+    m.moduloZ = readModulo(in);
+    m.moduloC = readModulo(in);
+    m.moduloT = readModulo(in);
+    m.dimensionOrder = readString(in);
+    m.orderCertain = in.readBoolean();
+    m.rgb = in.readBoolean();
+    m.littleEndian = in.readBoolean();
+    m.interleaved = in.readBoolean();
+    m.indexed = in.readBoolean();
+    m.falseColor = in.readBoolean();
+    m.metadataComplete = in.readBoolean();
+    m.seriesMetadata = readTable(in);
+    m.thumbnail = in.readBoolean();
+    m.resolutionCount = in.readInt();
+    return m;
+  }
+
+  private static void writeModulo(DataOutput out, Modulo m)
+    throws IOException
+  {
+    writeString(out, m.parentDimension);
+    out.writeDouble(m.start);
+    out.writeDouble(m.step);
+    out.writeDouble(m.end);
+    writeString(out, m.parentType);
+    writeString(out, m.type);
+    writeString(out, m.typeDescription);
+    writeString(out, m.unit);
+    out.writeInt(m.labels == null ? -1 : m.labels.length);
+    if (m.labels != null) {
+      for (String label : m.labels) {
+        writeString(out, label);
+      }
+    }
+  }
+
+  private static Modulo readModulo(DataInputStream in) throws IOException {
+    Modulo m = new Modulo(readString(in));
+    m.start = in.readDouble();
+    m.step = in.readDouble();
+    m.end = in.readDouble();
+    m.parentType = readString(in);
+    m.type = readString(in);
+    m.typeDescription = readString(in);
+    m.unit = readString(in);
+    int labelCount = readCount(in, 4, true);
+    if (labelCount >= 0) {
+      m.labels = new String[labelCount];
+      for (int i=0; i<labelCount; i++) {
+        m.labels[i] = readString(in);
+      }
+    }
+    return m;
+  }
+
+  /**
+   * Writes a metadata table.  Lists that have not been flattened yet are
+   * written as lists, so that the restored reader flattens them in the same
+   * way.
+   */
+  private static void writeTable(DataOutput out,
+    Hashtable<String, Object> table) throws IOException
+  {
+    if (table == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(table.size());
+    for (Map.Entry<String, Object> entry : table.entrySet()) {
+      writeString(out, entry.getKey());
+      writeValue(out, entry.getValue(), true);
+    }
+  }
+
+  /**
+   * Writes a metadata value.  Values of types other than String, Character,
+   * Boolean and the primitive wrappers are written as strings, as are lists
+   * within lists.
+   */
+  private static void writeValue(DataOutput out, Object value,
+    boolean allowList) throws IOException
+  {
+    if (value instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer) value);
+    }
+    else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    }
+    else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    }
+    else if (value instanceof Float) {
+      out.writeByte(FLOAT);
+      out.writeFloat((Float) value);
+    }
+    else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    }
+    else if (value instanceof Short) {
+      out.writeByte(SHORT);
+      out.writeShort((Short) value);
+    }
+    else if (value instanceof Byte) {
+      out.writeByte(BYTE);
+      out.writeByte((Byte) value);
+    }
+    else if (value instanceof Character) {
+      out.writeByte(CHARACTER);
+      out.writeChar((Character) value);
+    }
+    else if (allowList && value instanceof Vector) {
+      Vector<?> list = (Vector<?>) value;
+      out.writeByte(LIST);
+      out.writeInt(list.size());
+      for (Object item : list) {
+        writeValue(out, item, false);
+      }
+    }
+    else {
+      out.writeByte(STRING);
+      writeString(out, value.toString());
+    }
+  }
+
+  private static Hashtable<String, Object> readTable(DataInputStream in)
+    throws IOException
+  {
+    // key length and value tag
+    int size = readCount(in, 5, true);
+    if (size < 0) return null;
+    Hashtable<String, Object> table = new MetadataTable(size);
+    for (int i=0; i<size; i++) {
+      String key = readString(in);
+      if (key == null) throw new IOException("Missing key");
+      table.put(key, readValue(in, true));
+    }
+    return table;
+  }
+
+  /**
+   * Reads a metadata value.  Lists may only hold other values, not further
+   * lists.
+   */
+  private static Object readValue(DataInputStream in, boolean allowList)
+    throws IOException
+  {
+    byte tag = in.readByte();
+    Object value;
+    switch (tag) {
+      case INTEGER:
+        value = in.readInt();
+        break;
+      case LONG:
+        value = in.readLong();
+        break;
+      case DOUBLE:
+        value = in.readDouble();
+        break;
+      case FLOAT:
+        value = in.readFloat();
+        break;
+      case BOOLEAN:
+        value = in.readBoolean();
+        break;
+      case SHORT:
+        value = in.readShort();
+        break;
+      case BYTE:
+        value = in.readByte();
+        break;
+      case CHARACTER:
+        value = in.readChar();
+        break;
+      case STRING:
+        value = readString(in);
+        if (value == null) throw new IOException("Missing value");
+        break;
+      case LIST:
+        if (!allowList) throw new IOException("Nested list");
+        int count = readCount(in, 1);
+        Vector<Object> list = new Vector<Object>(count);
+        for (int i=0; i<count; i++) {
+          list.add(readValue(in, false));
+        }
+        value = list;
+        break;
+      default:
+        throw new IOException("Invalid value type: " + tag);
+    }
+    return value;
+  }
+
+  /** Writes a possibly null string of any length as UTF-8. */
+  private static void writeString(DataOutput out, String s)
+    throws IOException
+  {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] b = s.getBytes(Constants.ENCODING);
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = readCount(in, 1, true);
+    if (length < 0) return null;
+    byte[] b = new byte[length];
+    in.readFully(b);
+    return new String(b, Constants.ENCODING);
+  }
+
+  // -- Helper classes --
+
+  /** Contents of a snapshot file. */
+  private static final class State {
+    String readerClass;
+    String id;
+    String settings;
+    String[] usedFiles;
+    long[] fileLengths;
+    long[] lastModified;
+    List<CoreMetadata> core;
+    Hashtable<String, Object> metadata;
+    String xml;
+    byte[] readerState;
+  }
+
+}
@@ -34,6 +34,7 @@ package loci.formats;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
@@ -348,6 +349,52 @@ public abstract class ReaderWrapper implements IFormatReader {
     return reader.openBytes(no, buf, x, y, w, h);
   }
 
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf)
+    throws FormatException, IOException
+  {
+    return openBytes(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /**
+   * The default implementation reads the sub-image with this wrapper's
+   * {@link #openBytes(int, int, int, int, int)}, so that wrappers that
+   * change the pixels or the plane numbering apply to buffers too, and
+   * copies it to the buffer.  Wrappers that pass the pixels through
+   * unchanged can override this method to read directly into the buffer.
+   *
+   * @see IFormatReader#openBytes(int, ByteBuffer, int, int, int, int)
+   */
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf, int x, int y, int w,
+    int h) throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf.remaining(), x, y, w, h);
+    buf.put(openBytes(no, x, y, w, h));
+    return buf;
+  }
+
+  /**
+   * The default implementation reads each region with this wrapper's
+   * {@link #openBytes(int, int, int, int, int)}, so that wrappers that
+   * change the pixels or the plane numbering apply to batches too.
+   * Wrappers that pass the pixels through unchanged can override this
+   * method to forward the batch to the wrapped reader.
+   *
+   * @see IFormatReader#openBytes(List)
+   */
+  @Override
+  public byte[][] openBytes(List<TileRequest> tiles)
+    throws FormatException, IOException
+  {
+    byte[][] results = new byte[tiles.size()][];
+    for (int i=0; i<results.length; i++) {
+      TileRequest t = tiles.get(i);
+      results[i] = openBytes(t.no, t.x, t.y, t.w, t.h);
+    }
+    return results;
+  }
+
   @Override
   public Object openPlane(int no, int x, int y, int w, int h)
     throws FormatException, IOException
@@ -623,6 +670,31 @@ public abstract class ReaderWrapper implements IFormatReader {
     reader.setFlattenedResolutions(flattened);
   }
 
+  @Override
+  public void setBufferPool(BufferPool pool) {
+    reader.setBufferPool(pool);
+  }
+
+  @Override
+  public BufferPool getBufferPool() {
+    return reader.getBufferPool();
+  }
+
+  /**
+   * Wrappers are not cloned by default, since much of their state is built
+   * by {@link #setId} or by their own setters, and would be missing from a
+   * wrapper constructed around a clone of the wrapped reader.  Wrappers
+   * that can be cloned safely should override this method.
+   *
+   * @throws FormatException always.
+   * @see IFormatReader#cloneReader()
+   */
+  @Override
+  public IFormatReader cloneReader() throws FormatException, IOException {
+    throw new FormatException("cloning not supported by " +
+      getClass().getName());
+  }
+
   // -- IFormatHandler API methods --
 
   @Override
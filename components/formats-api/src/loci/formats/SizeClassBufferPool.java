@@ -0,0 +1,173 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link BufferPool} that keeps released arrays in one bucket per array
+ * length, up to a total byte budget.
+ * <p>
+ * Arrays are bucketed by exact length rather than rounded up to a larger
+ * size class, since callers of openBytes rely on the length of the
+ * returned array.  In practice a reader serves a small number of distinct
+ * plane and tile sizes, so the number of buckets stays small.  When a
+ * released array does not fit in the budget, arrays are discarded from the
+ * least recently used buckets to make room.
+ */
+public class SizeClassBufferPool implements BufferPool {
+
+  // -- Constants --
+
+  /** Default byte budget: 64 MB. */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  // -- Fields --
+
+  /** Maximum total size of the retained arrays. */
+  private final long maxBytes;
+
+  /** Released arrays, by length, in least recently used order. */
+  private final LinkedHashMap<Integer, ArrayDeque<byte[]>> buckets =
+    new LinkedHashMap<Integer, ArrayDeque<byte[]>>(16, 0.75f, true);
+
+  private long retainedBytes;
+  private long hits;
+  private long misses;
+
+  // -- Constructors --
+
+  /** Constructs a pool with a budget of {@link #DEFAULT_MAX_BYTES}. */
+  public SizeClassBufferPool() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Constructs a pool that retains at most the given number of bytes.
+   * @throws IllegalArgumentException if maxBytes is negative
+   */
+  public SizeClassBufferPool(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Invalid byte budget: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  // -- SizeClassBufferPool API methods --
+
+  /** Gets the maximum total size of the retained arrays. */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  // -- BufferPool API methods --
+
+  @Override
+  public byte[] acquire(int length) {
+    byte[] buf = null;
+    synchronized (this) {
+      ArrayDeque<byte[]> bucket = buckets.get(length);
+      if (bucket != null) {
+        buf = bucket.pollLast();
+        if (bucket.isEmpty()) buckets.remove(length);
+      }
+      if (buf == null) {
+        misses++;
+      }
+      else {
+        hits++;
+        retainedBytes -= length;
+      }
+    }
+    if (buf == null) return new byte[length];
+    Arrays.fill(buf, (byte) 0);
+    return buf;
+  }
+
+  @Override
+  public synchronized void release(byte[] buf) {
+    if (buf == null || buf.length > maxBytes) return;
+    // make room by discarding the least recently used arrays
+    Iterator<Map.Entry<Integer, ArrayDeque<byte[]>>> entries =
+      buckets.entrySet().iterator();
+    while (retainedBytes + buf.length > maxBytes && entries.hasNext()) {
+      Map.Entry<Integer, ArrayDeque<byte[]>> entry = entries.next();
+      ArrayDeque<byte[]> bucket = entry.getValue();
+      while (!bucket.isEmpty() && retainedBytes + buf.length > maxBytes) {
+        bucket.pollFirst();
+        retainedBytes -= entry.getKey();
+      }
+      if (bucket.isEmpty()) entries.remove();
+    }
+
+    ArrayDeque<byte[]> bucket = buckets.get(buf.length);
+    if (bucket == null) {
+      bucket = new ArrayDeque<byte[]>();
+      buckets.put(buf.length, bucket);
+    }
+    bucket.addLast(buf);
+    retainedBytes += buf.length;
+  }
+
+  @Override
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  @Override
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  @Override
+  public synchronized double getHitRate() {
+    long total = hits + misses;
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  @Override
+  public synchronized long getRetainedBytes() {
+    return retainedBytes;
+  }
+
+  @Override
+  public synchronized void clear() {
+    buckets.clear();
+    retainedBytes = 0;
+  }
+
+}
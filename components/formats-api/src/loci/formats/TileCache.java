@@ -0,0 +1,382 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe cache of decoded tiles, with a total byte budget and least
+ * recently used eviction.
+ * <p>
+ * Entries are spread over a fixed number of independently locked stripes,
+ * each with an equal share of the budget, so that concurrent callers
+ * working on different tiles do not contend for a single lock.  One cache
+ * may be shared by several {@link CachingReader}s, e.g. one per thread.
+ * <p>
+ * An {@link OffHeapTileCache} may be attached as a second tier, which then
+ * receives the tiles evicted from this cache and is consulted on a miss.
+ */
+public class TileCache {
+
+  // -- Constants --
+
+  /** Default byte budget: 256 MB. */
+  public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+  /** Default number of stripes. */
+  public static final int DEFAULT_STRIPES = 16;
+
+  // -- Fields --
+
+  private final Stripe[] stripes;
+  private final long maxBytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  private volatile OffHeapTileCache secondTier;
+
+  // -- Constructors --
+
+  /** Constructs a cache with a budget of {@link #DEFAULT_MAX_BYTES}. */
+  public TileCache() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /** Constructs a cache that holds at most the given number of bytes. */
+  public TileCache(long maxBytes) {
+    this(maxBytes, DEFAULT_STRIPES);
+  }
+
+  /**
+   * Constructs a cache that holds at most the given number of bytes, split
+   * evenly over the given number of stripes.  A tile larger than one
+   * stripe's share of the budget is never cached.
+   */
+  public TileCache(long maxBytes, int stripeCount) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Invalid byte budget: " + maxBytes);
+    }
+    if (stripeCount < 1) {
+      throw new IllegalArgumentException(
+        "Invalid number of stripes: " + stripeCount);
+    }
+    this.maxBytes = maxBytes;
+    stripes = new Stripe[stripeCount];
+    for (int i=0; i<stripeCount; i++) {
+      stripes[i] = new Stripe(maxBytes / stripeCount);
+    }
+  }
+
+  // -- TileCache API methods --
+
+  /**
+   * Gets the cached tile for the given key, or null if it is not cached.
+   * The returned array must not be modified.
+   */
+  public byte[] get(Key key) {
+    OffHeapTileCache tier = secondTier;
+    if (tier != null) tier.recordAccess(key);
+    byte[] tile = stripe(key).get(key);
+    if (tile == null && tier != null) {
+      tile = tier.get(key);
+      if (tile != null) put(key, tile);
+    }
+    if (tile == null) misses.incrementAndGet();
+    else hits.incrementAndGet();
+    return tile;
+  }
+
+  /**
+   * Caches the given tile, evicting least recently used tiles as needed.
+   * The array must not be modified after it is cached.
+   */
+  public void put(Key key, byte[] tile) {
+    OffHeapTileCache tier = secondTier;
+    if (tier == null) {
+      evictions.addAndGet(stripe(key).put(key, tile, null));
+      return;
+    }
+    List<Map.Entry<Key, byte[]>> evicted =
+      new ArrayList<Map.Entry<Key, byte[]>>();
+    evictions.addAndGet(stripe(key).put(key, tile, evicted));
+    for (Map.Entry<Key, byte[]> entry : evicted) {
+      tier.offer(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /** Removes all tiles of the given file. */
+  public void invalidate(String file) {
+    for (Stripe stripe : stripes) {
+      stripe.invalidate(file);
+    }
+    OffHeapTileCache tier = secondTier;
+    if (tier != null) tier.invalidate(file);
+  }
+
+  /** Removes all tiles. */
+  public void clear() {
+    invalidate(null);
+  }
+
+  /**
+   * Attaches a second tier that receives evicted tiles, or detaches the
+   * current one if null.  The second tier is not closed when detached.
+   */
+  public void setSecondTier(OffHeapTileCache tier) {
+    secondTier = tier;
+  }
+
+  /** Gets the second tier, or null if there is none. */
+  public OffHeapTileCache getSecondTier() {
+    return secondTier;
+  }
+
+  /** Gets the maximum number of bytes held by the cache. */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** Gets the number of bytes currently held by the cache. */
+  public long getSize() {
+    long size = 0;
+    for (Stripe stripe : stripes) {
+      size += stripe.getSize();
+    }
+    return size;
+  }
+
+  /** Gets the number of tiles currently held by the cache. */
+  public int getEntryCount() {
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      count += stripe.getEntryCount();
+    }
+    return count;
+  }
+
+  /**
+   * Gets the number of lookups that found a cached tile, including those
+   * served by the second tier.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Gets the number of lookups that did not find a cached tile. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** Gets the number of tiles evicted to stay within the byte budget. */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  // -- Helper methods --
+
+  private Stripe stripe(Key key) {
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    return stripes[(hash & 0x7fffffff) % stripes.length];
+  }
+
+  // -- Helper classes --
+
+  /**
+   * Identifies a tile: the file, core index (series and resolution), plane
+   * index and region, and whether the data was normalized.
+   */
+  public static final class Key {
+    private final String file;
+    private final int coreIndex;
+    private final int no;
+    private final int x, y, w, h;
+    private final boolean normalized;
+    private final int hash;
+
+    public Key(String file, int coreIndex, int no, int x, int y, int w, int h,
+      boolean normalized)
+    {
+      this.file = file;
+      this.coreIndex = coreIndex;
+      this.no = no;
+      this.x = x;
+      this.y = y;
+      this.w = w;
+      this.h = h;
+      this.normalized = normalized;
+      int result = file.hashCode();
+      result = 31 * result + coreIndex;
+      result = 31 * result + no;
+      result = 31 * result + x;
+      result = 31 * result + y;
+      result = 31 * result + w;
+      result = 31 * result + h;
+      hash = 31 * result + (normalized ? 1 : 0);
+    }
+
+    /** Gets the file to which the tile belongs. */
+    public String getFile() {
+      return file;
+    }
+
+    /** Gets the core index (series and resolution) of the tile. */
+    public int getCoreIndex() {
+      return coreIndex;
+    }
+
+    /** Gets the plane index of the tile. */
+    public int getPlane() {
+      return no;
+    }
+
+    /** Gets the X coordinate of the tile's upper-left corner. */
+    public int getX() {
+      return x;
+    }
+
+    /** Gets the Y coordinate of the tile's upper-left corner. */
+    public int getY() {
+      return y;
+    }
+
+    /** Gets the width of the tile. */
+    public int getWidth() {
+      return w;
+    }
+
+    /** Gets the height of the tile. */
+    public int getHeight() {
+      return h;
+    }
+
+    /** Returns true if the tile was read with normalization enabled. */
+    public boolean isNormalized() {
+      return normalized;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key k = (Key) o;
+      return hash == k.hash && coreIndex == k.coreIndex && no == k.no &&
+        x == k.x && y == k.y && w == k.w && h == k.h &&
+        normalized == k.normalized && file.equals(k.file);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public String toString() {
+      return file + "[core=" + coreIndex + ", no=" + no + ", x=" + x +
+        ", y=" + y + ", w=" + w + ", h=" + h + "]";
+    }
+  }
+
+  /** One independently locked share of the cache. */
+  private static final class Stripe {
+    private final long maxBytes;
+    private final LinkedHashMap<Key, byte[]> tiles =
+      new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+    private long size;
+
+    Stripe(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized byte[] get(Key key) {
+      return tiles.get(key);
+    }
+
+    /**
+     * Adds a tile, and returns the number of tiles evicted.  The evicted
+     * tiles are added to the given list, if it is not null.
+     */
+    synchronized int put(Key key, byte[] tile,
+      List<Map.Entry<Key, byte[]>> evictedTiles)
+    {
+      if (tile.length > maxBytes) return 0;
+      byte[] old = tiles.put(key, tile);
+      if (old != null) size -= old.length;
+      size += tile.length;
+
+      int evicted = 0;
+      Iterator<Map.Entry<Key, byte[]>> entries = tiles.entrySet().iterator();
+      while (size > maxBytes && entries.hasNext()) {
+        Map.Entry<Key, byte[]> entry = entries.next();
+        if (entry.getKey().equals(key)) continue;
+        size -= entry.getValue().length;
+        if (evictedTiles != null) {
+          evictedTiles.add(new SimpleImmutableEntry<Key, byte[]>(
+            entry.getKey(), entry.getValue()));
+        }
+        entries.remove();
+        evicted++;
+      }
+      return evicted;
+    }
+
+    /** Removes the tiles of the given file, or all tiles if null. */
+    synchronized void invalidate(String file) {
+      Iterator<Map.Entry<Key, byte[]>> entries = tiles.entrySet().iterator();
+      while (entries.hasNext()) {
+        Map.Entry<Key, byte[]> entry = entries.next();
+        if (file == null || file.equals(entry.getKey().getFile())) {
+          size -= entry.getValue().length;
+          entries.remove();
+        }
+      }
+    }
+
+    synchronized long getSize() {
+      return size;
+    }
+
+    synchronized int getEntryCount() {
+      return tiles.size();
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+/**
+ * A region of one image plane in the current series, for use with
+ * {@link IFormatReader#openBytes(java.util.List)}.
+ */
+public final class TileRequest {
+
+  // -- Fields --
+
+  /** The image index within the file. */
+  public final int no;
+
+  /** X coordinate of the upper-left corner of the region. */
+  public final int x;
+
+  /** Y coordinate of the upper-left corner of the region. */
+  public final int y;
+
+  /** Width of the region. */
+  public final int w;
+
+  /** Height of the region. */
+  public final int h;
+
+  // -- Constructor --
+
+  public TileRequest(int no, int x, int y, int w, int h) {
+    this.no = no;
+    this.x = x;
+    this.y = y;
+    this.w = w;
+    this.h = h;
+  }
+
+  // -- Object methods --
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof TileRequest)) return false;
+    TileRequest t = (TileRequest) o;
+    return no == t.no && x == t.x && y == t.y && w == t.w && h == t.h;
+  }
+
+  @Override
+  public int hashCode() {
+    return (((no * 31 + x) * 31 + y) * 31 + w) * 31 + h;
+  }
+
+  @Override
+  public String toString() {
+    return "no=" + no + ", x=" + x + ", y=" + y + ", w=" + w + ", h=" + h;
+  }
+
+}
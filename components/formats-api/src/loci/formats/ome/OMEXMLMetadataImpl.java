@@ -32,7 +32,144 @@
 
 package loci.formats.ome;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import ome.xml.meta.MetadataRoot;
+
 /**
+ * OME-XML metadata store, which may defer the population of its
+ * OriginalMetadata annotations until they are first needed.
+ * <p>
+ * Populators added with {@link #addOriginalMetadataPopulator(Runnable)} are
+ * run once, in order, the first time the XML annotations are read, the root
+ * is retrieved or the XML is dumped.  Replacing the root discards them.
  */
 public class OMEXMLMetadataImpl extends ome.xml.meta.OMEXMLMetadataImpl implements OMEXMLMetadata {
+
+  // -- Fields --
+
+  /**
+   * Deferred population of the OriginalMetadata annotations, or null if
+   * none is pending.  Not initialized here, as the superclass constructor
+   * already calls {@link #createRoot()}.
+   */
+  private List<Runnable> originalMetadataPopulators;
+
+  // -- OMEXMLMetadataImpl API methods --
+
+  /**
+   * Adds a task that adds OriginalMetadata annotations to this store when
+   * they are first needed.  Tasks are run in the order they were added.
+   */
+  public void addOriginalMetadataPopulator(Runnable populator) {
+    if (populator == null) {
+      throw new IllegalArgumentException("Populator cannot be null");
+    }
+    if (originalMetadataPopulators == null) {
+      originalMetadataPopulators = new ArrayList<Runnable>();
+    }
+    originalMetadataPopulators.add(populator);
+  }
+
+  /** Returns true if any OriginalMetadata annotations are still pending. */
+  public boolean isOriginalMetadataPending() {
+    return originalMetadataPopulators != null;
+  }
+
+  /**
+   * Adds any pending OriginalMetadata annotations to this store.  Calling
+   * this more than once has no further effect.
+   */
+  public void populateOriginalMetadata() {
+    List<Runnable> populators = originalMetadataPopulators;
+    if (populators == null) return;
+    // cleared first, as the populators themselves read and set the root
+    originalMetadataPopulators = null;
+    for (Runnable populator : populators) {
+      populator.run();
+    }
+  }
+
+  // -- MetadataStore API methods --
+
+  @Override
+  public void createRoot() {
+    originalMetadataPopulators = null;
+    super.createRoot();
+  }
+
+  @Override
+  public void setRoot(MetadataRoot root) {
+    originalMetadataPopulators = null;
+    super.setRoot(root);
+  }
+
+  // -- MetadataRetrieve API methods --
+
+  @Override
+  public MetadataRoot getRoot() {
+    populateOriginalMetadata();
+    return super.getRoot();
+  }
+
+  @Override
+  public int getXMLAnnotationCount() {
+    populateOriginalMetadata();
+    return super.getXMLAnnotationCount();
+  }
+
+  @Override
+  public int getXMLAnnotationAnnotationCount(int xmlAnnotationIndex) {
+    populateOriginalMetadata();
+    return super.getXMLAnnotationAnnotationCount(xmlAnnotationIndex);
+  }
+
+  @Override
+  public String getXMLAnnotationAnnotationRef(int xmlAnnotationIndex,
+    int annotationRefIndex)
+  {
+    populateOriginalMetadata();
+    return super.getXMLAnnotationAnnotationRef(xmlAnnotationIndex,
+      annotationRefIndex);
+  }
+
+  @Override
+  public String getXMLAnnotationAnnotator(int xmlAnnotationIndex) {
+    populateOriginalMetadata();
+    return super.getXMLAnnotationAnnotator(xmlAnnotationIndex);
+  }
+
+  @Override
+  public String getXMLAnnotationDescription(int xmlAnnotationIndex) {
+    populateOriginalMetadata();
+    return super.getXMLAnnotationDescription(xmlAnnotationIndex);
+  }
+
+  @Override
+  public String getXMLAnnotationID(int xmlAnnotationIndex) {
+    populateOriginalMetadata();
+    return super.getXMLAnnotationID(xmlAnnotationIndex);
+  }
+
+  @Override
+  public String getXMLAnnotationNamespace(int xmlAnnotationIndex) {
+    populateOriginalMetadata();
+    return super.getXMLAnnotationNamespace(xmlAnnotationIndex);
+  }
+
+  @Override
+  public String getXMLAnnotationValue(int xmlAnnotationIndex) {
+    populateOriginalMetadata();
+    return super.getXMLAnnotationValue(xmlAnnotationIndex);
+  }
+
+  // -- OMEXMLMetadata API methods --
+
+  @Override
+  public String dumpXML() {
+    populateOriginalMetadata();
+    return super.dumpXML();
+  }
+
 }
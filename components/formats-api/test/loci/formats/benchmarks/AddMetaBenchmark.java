@@ -0,0 +1,126 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.benchmarks;
+
+import java.util.Hashtable;
+import java.util.Random;
+
+import loci.formats.utests.FormatReaderTest;
+
+/**
+ * Compares the filtering done by FormatReader.addMeta with the original
+ * sanitize-and-replaceAll implementation, for typical mixes of metadata
+ * keys and values.
+ *
+ * Usage: java loci.formats.benchmarks.AddMetaBenchmark [iterations]
+ */
+public class AddMetaBenchmark {
+
+  private static final int ENTRIES = 50000;
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    String[][] mixes = {
+      // label, fraction of string values with markup, with control chars
+      {"plain", "0", "0"},
+      {"some markup", "0.05", "0"},
+      {"some control", "0", "0.05"},
+      {"heavy markup", "0.5", "0.1"},
+    };
+    for (String[] mix : mixes) {
+      Object[][] entries = createEntries(Double.parseDouble(mix[1]),
+        Double.parseDouble(mix[2]));
+      for (int i=0; i<iterations; i++) {
+        // the last iteration is reported; earlier ones warm up
+        long legacyTime = runLegacy(entries);
+        long currentTime = runCurrent(entries);
+        if (i == iterations - 1) {
+          System.out.printf("%s: original %.1f ns/entry, current %.1f " +
+            "ns/entry%n", mix[0], (double) legacyTime / ENTRIES,
+            (double) currentTime / ENTRIES);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates keys shaped like those of a typical reader ("Channel 3 Gain",
+   * "Stage|X position") with a mix of numeric and string values.
+   */
+  private static Object[][] createEntries(double markup, double control) {
+    Random random = new Random(ENTRIES);
+    String[] words = {"Channel", "Exposure", "Gain", "Stage", "Objective",
+      "Laser", "Wavelength", "Detector", "Offset", "Position"};
+    Object[][] entries = new Object[ENTRIES][];
+    for (int i=0; i<ENTRIES; i++) {
+      String key = words[random.nextInt(words.length)] + " " + (i % 100) +
+        (random.nextBoolean() ? "|" : " ") +
+        words[random.nextInt(words.length)];
+      Object value;
+      int kind = random.nextInt(3);
+      if (kind == 0) value = random.nextInt(4096);
+      else if (kind == 1) value = random.nextDouble() * 100;
+      else {
+        String s = words[random.nextInt(words.length)] + " value " + i;
+        double r = random.nextDouble();
+        if (r < markup) s = "<b>" + s + "</b> &amp; more";
+        else if (r < markup + control) s = s + "\u0000\u0001";
+        value = s;
+      }
+      entries[i] = new Object[] {key, value};
+    }
+    return entries;
+  }
+
+  private static long runLegacy(Object[][] entries) {
+    Hashtable<String, Object> table = new Hashtable<String, Object>();
+    long start = System.nanoTime();
+    for (Object[] entry : entries) {
+      Object[] filtered =
+        FormatReaderTest.legacyFilter((String) entry[0], entry[1]);
+      if (filtered != null) table.put((String) filtered[0], filtered[1]);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long runCurrent(Object[][] entries) {
+    FormatReaderTest.MetadataReader reader =
+      new FormatReaderTest.MetadataReader();
+    long start = System.nanoTime();
+    for (Object[] entry : entries) {
+      reader.add((String) entry[0], entry[1]);
+    }
+    return System.nanoTime() - start;
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.benchmarks;
+
+import java.io.IOException;
+
+import loci.formats.ClassList;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+
+/**
+ * Measures the cost of constructing {@link ImageReader} instances, with
+ * readers constructed lazily (the default) and eagerly (as they were before
+ * lazy instantiation was introduced).
+ *
+ * Usage: java loci.formats.benchmarks.ImageReaderBenchmark [count]
+ */
+public class ImageReaderBenchmark {
+
+  private static final int DEFAULT_COUNT = 200;
+
+  public static void main(String[] args) throws IOException {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_COUNT;
+    ClassList<IFormatReader> classes = ImageReader.getDefaultReaderClasses();
+    System.out.println("Reader classes: " + classes.getClasses().length);
+
+    // the first construction describes each reader class; exclude it
+    new ImageReader(classes).getReaders();
+
+    run("lazy", classes, count, false);
+    run("eager", classes, count, true);
+  }
+
+  private static void run(String label, ClassList<IFormatReader> classes,
+    int count, boolean eager)
+  {
+    ImageReader[] retained = new ImageReader[count];
+    long baseline = usedMemory();
+    long start = System.nanoTime();
+    for (int i=0; i<count; i++) {
+      retained[i] = new ImageReader(classes);
+      if (eager) retained[i].getReaders();
+    }
+    long elapsed = System.nanoTime() - start;
+    long heap = usedMemory() - baseline;
+    System.out.printf("%s: %.3f ms/construction, %d bytes retained each%n",
+      label, elapsed / 1e6 / count, heap / count);
+    if (retained[count - 1] == null) throw new IllegalStateException();
+  }
+
+  private static long usedMemory() {
+    Runtime r = Runtime.getRuntime();
+    for (int i=0; i<3; i++) {
+      System.gc();
+    }
+    return r.totalMemory() - r.freeMemory();
+  }
+
+}
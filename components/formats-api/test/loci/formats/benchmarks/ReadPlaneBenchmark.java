@@ -0,0 +1,109 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.benchmarks;
+
+import java.io.IOException;
+
+import loci.formats.FormatException;
+import loci.formats.FormatReader;
+import loci.formats.FormatTools;
+import loci.formats.in.DynamicMetadataOptions;
+import loci.formats.utests.RawPlaneReader;
+
+/**
+ * Compares {@link FormatReader#openBytes(int, int, int, int, int)} with and
+ * without memory-mapped reads, for full-plane, full-width strip and tile
+ * reads of an uncompressed file.
+ *
+ * Usage: java loci.formats.benchmarks.ReadPlaneBenchmark [iterations]
+ */
+public class ReadPlaneBenchmark {
+
+  private static final int SIZE = 4096;
+  private static final int STRIP_HEIGHT = 64;
+  private static final int TILE_SIZE = 256;
+
+  public static void main(String[] args) throws FormatException, IOException {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    for (boolean interleaved : new boolean[] {false, true}) {
+      RawPlaneReader plain = new RawPlaneReader(SIZE, SIZE, 3,
+        FormatTools.UINT16, interleaved, 0, 1);
+      RawPlaneReader mapped = new RawPlaneReader(SIZE, SIZE, 3,
+        FormatTools.UINT16, interleaved, 0, 1);
+      DynamicMetadataOptions options = new DynamicMetadataOptions();
+      options.setBoolean(FormatReader.MAPPED_READ_KEY, true);
+      mapped.setMetadataOptions(options);
+
+      String id = plain.writeFile();
+      plain.setId(id);
+      mapped.setId(id);
+      String layout = interleaved ? "interleaved" : "planar";
+      for (int i=0; i<iterations; i++) {
+        // the last iteration is reported; earlier ones warm up
+        boolean report = i == iterations - 1;
+        run(layout + " plane", plain, mapped, SIZE, SIZE, report);
+        run(layout + " strip", plain, mapped, SIZE, STRIP_HEIGHT, report);
+        run(layout + " tile", plain, mapped, TILE_SIZE, TILE_SIZE, report);
+      }
+      plain.close();
+      mapped.close();
+    }
+  }
+
+  /** Reads the whole plane in regions of the given size with each reader. */
+  private static void run(String label, RawPlaneReader plain,
+    RawPlaneReader mapped, int w, int h, boolean report)
+    throws FormatException, IOException
+  {
+    long plainTime = readAll(plain, w, h);
+    long mappedTime = readAll(mapped, w, h);
+    if (report) {
+      System.out.printf("%s (%dx%d): stream %.1f ms, mapped %.1f ms%n",
+        label, w, h, plainTime / 1e6, mappedTime / 1e6);
+    }
+  }
+
+  private static long readAll(RawPlaneReader reader, int w, int h)
+    throws FormatException, IOException
+  {
+    byte[] buf = new byte[w * h * 3 * 2];
+    long start = System.nanoTime();
+    for (int y=0; y<SIZE; y+=h) {
+      for (int x=0; x<SIZE; x+=w) {
+        reader.openBytes(0, buf, x, y, w, h);
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+}
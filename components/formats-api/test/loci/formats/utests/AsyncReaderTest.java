@@ -0,0 +1,293 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import loci.formats.AsyncReader;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.AsyncReader}.
+ */
+public class AsyncReaderTest {
+
+  private RawPlaneReader reader;
+
+  /** Reader that records the planes it reads, in all of its clones. */
+  public static class RecordingReader extends RawPlaneReader {
+    final List<Integer> planes =
+      Collections.synchronizedList(new ArrayList<Integer>());
+    private final boolean cloneable;
+
+    public RecordingReader(boolean cloneable) {
+      super(16, 16, 1, FormatTools.UINT8, false, 0, 8);
+      this.cloneable = cloneable;
+    }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+      throws FormatException, IOException
+    {
+      planes.add(no);
+      return super.openBytes(no, buf, x, y, w, h);
+    }
+
+    @Override
+    protected boolean isShallowCopySupported() {
+      return cloneable;
+    }
+  }
+
+  /** Executor that runs tasks only when asked to. */
+  private static class ManualExecutor implements Executor {
+    final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.poll().run();
+      }
+    }
+  }
+
+  /** Executor that rejects tasks once asked to. */
+  private static class RejectingExecutor extends ManualExecutor {
+    volatile boolean reject;
+
+    @Override
+    public void execute(Runnable task) {
+      if (reject) throw new RejectedExecutionException();
+      super.execute(task);
+    }
+  }
+
+  /** Reader that blocks in openBytes, in all of its clones, until released. */
+  public static class BlockingReader extends RawPlaneReader {
+    private final CountDownLatch started;
+    private final CountDownLatch release;
+
+    public BlockingReader(CountDownLatch started, CountDownLatch release) {
+      super(16, 16, 1, FormatTools.UINT8, false, 0, 8);
+      this.started = started;
+      this.release = release;
+    }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+      throws FormatException, IOException
+    {
+      started.countDown();
+      try {
+        release.await();
+      }
+      catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      return super.openBytes(no, buf, x, y, w, h);
+    }
+
+    @Override
+    protected boolean isShallowCopySupported() {
+      return true;
+    }
+  }
+
+  private RecordingReader open(boolean cloneable)
+    throws FormatException, IOException
+  {
+    RecordingReader r = new RecordingReader(cloneable);
+    r.setId(r.writeFile());
+    reader = r;
+    return r;
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    String file = reader.getCurrentFile();
+    reader.close();
+    new File(file).delete();
+  }
+
+  private void checkResults(boolean cloneable) throws Exception {
+    RecordingReader r = open(cloneable);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    AsyncReader async = new AsyncReader(r, executor, 3);
+    try {
+      List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+      for (int no=0; no<r.getImageCount(); no++) {
+        results.add(async.openBytesAsync(no, 4, 4, 8, 8));
+      }
+      results.add(async.openBytesAsync(5));
+      // wait for every read before using the reader on this thread
+      List<byte[]> planes = new ArrayList<byte[]>();
+      for (Future<byte[]> result : results) {
+        planes.add(result.get());
+      }
+      for (int no=0; no<r.getImageCount(); no++) {
+        assertTrue(Arrays.equals(r.openBytes(no, 4, 4, 8, 8), planes.get(no)));
+      }
+      assertTrue(Arrays.equals(r.openBytes(5), planes.get(8)));
+    }
+    finally {
+      async.close();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testClonedReads() throws Exception {
+    checkResults(true);
+  }
+
+  @Test
+  public void testSerializedReads() throws Exception {
+    checkResults(false);
+  }
+
+  @Test
+  public void testOffsetOrder() throws Exception {
+    RecordingReader r = open(true);
+    ManualExecutor executor = new ManualExecutor();
+    AsyncReader async = new AsyncReader(r, executor, 1);
+    List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    for (int no : new int[] {5, 2, 7, 0, 3}) {
+      results.add(async.openBytesAsync(no));
+    }
+    assertEquals(1, async.getInFlightCount());
+    assertEquals(4, async.getPendingCount());
+    executor.runAll();
+    for (Future<byte[]> result : results) {
+      assertTrue(result.isDone());
+    }
+    assertEquals(Arrays.asList(5, 0, 2, 3, 7), r.planes);
+    async.close();
+  }
+
+  @Test
+  public void testCloseCancelsPending() throws Exception {
+    RecordingReader r = open(true);
+    ManualExecutor executor = new ManualExecutor();
+    AsyncReader async = new AsyncReader(r, executor, 2);
+    Future<byte[]> first = async.openBytesAsync(0);
+    async.openBytesAsync(1);
+    Future<byte[]> third = async.openBytesAsync(2);
+    assertEquals(2, async.getInFlightCount());
+    async.close();
+    assertTrue(first.isCancelled());
+    assertTrue(third.isCancelled());
+    // tasks that start after close must not touch the closed clones
+    executor.runAll();
+    assertTrue(r.planes.isEmpty());
+    assertEquals(0, async.getInFlightCount());
+  }
+
+  @Test
+  public void testCloseWaitsForReads() throws Exception {
+    RecordingReader r = open(true);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final BlockingReader blocking = new BlockingReader(started, release);
+    blocking.setId(r.getCurrentFile());
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    final AsyncReader async = new AsyncReader(blocking, executor, 1);
+    try {
+      Future<byte[]> result = async.openBytesAsync(0);
+      started.await();
+      Thread closer = new Thread() {
+        @Override
+        public void run() {
+          try {
+            async.close();
+          }
+          catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      closer.start();
+      closer.join(200);
+      assertTrue(closer.isAlive());
+      release.countDown();
+      closer.join();
+      assertTrue(result.isDone());
+    }
+    finally {
+      release.countDown();
+      executor.shutdown();
+      blocking.close();
+    }
+  }
+
+  @Test
+  public void testRejectedReadsDoNotRecurse() throws Exception {
+    RecordingReader r = open(false);
+    RejectingExecutor executor = new RejectingExecutor();
+    AsyncReader async = new AsyncReader(r, executor, 1);
+    List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    for (int i=0; i<20000; i++) {
+      results.add(async.openBytesAsync(i % r.getImageCount(), 0, 0, 1, 1));
+    }
+    assertEquals(1, executor.tasks.size());
+    executor.reject = true;
+    executor.runAll();
+    for (Future<byte[]> result : results) {
+      assertTrue(result.isDone());
+    }
+    assertEquals(20000, r.planes.size());
+    async.close();
+  }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loci.formats.CachingReader;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.TileCache;
+import loci.formats.TileRequest;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.CachingReader} and
+ * {@link loci.formats.TileCache}.
+ */
+public class CachingReaderTest {
+
+  private RawPlaneReader raw;
+  private CachingReader reader;
+
+  @BeforeMethod
+  public void setUp() throws FormatException, IOException {
+    raw = new RawPlaneReader(32, 32, 1, FormatTools.UINT8, false, 0, 3);
+    reader = new CachingReader(raw, new TileCache(4096, 1));
+    reader.setId(raw.writeFile());
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    reader.close();
+  }
+
+  @Test
+  public void testHit() throws FormatException, IOException {
+    byte[] first = reader.openBytes(1, 0, 0, 16, 16);
+    byte[] second = reader.openBytes(1, new byte[256], 0, 0, 16, 16);
+    assertTrue(Arrays.equals(first, second));
+    assertTrue(Arrays.equals(first, raw.openBytes(1, 0, 0, 16, 16)));
+
+    TileCache cache = reader.getTileCache();
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(256, cache.getSize());
+
+    // modifying a returned array does not affect the cache
+    first[0]++;
+    assertFalse(Arrays.equals(first, reader.openBytes(1, 0, 0, 16, 16)));
+  }
+
+  @Test
+  public void testDistinctKeys() throws FormatException, IOException {
+    byte[] a = reader.openBytes(0, 0, 0, 16, 16);
+    byte[] b = reader.openBytes(1, 0, 0, 16, 16);
+    byte[] c = reader.openBytes(1, 16, 0, 16, 16);
+    assertFalse(Arrays.equals(a, b));
+    assertFalse(Arrays.equals(b, c));
+    assertEquals(3, reader.getTileCache().getMissCount());
+    assertEquals(3, reader.getTileCache().getEntryCount());
+  }
+
+  @Test
+  public void testEviction() throws FormatException, IOException {
+    TileCache cache = reader.getTileCache();
+    for (int no=0; no<3; no++) {
+      reader.openBytes(no);
+    }
+    reader.openBytes(0);
+    reader.openBytes(0, 0, 0, 16, 32);
+    assertEquals(3584, cache.getSize());
+    assertEquals(0, cache.getEvictionCount());
+
+    // plane 1 is the least recently used
+    reader.openBytes(0, 0, 0, 32, 24);
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(3328, cache.getSize());
+    long hits = cache.getHitCount();
+    reader.openBytes(0);
+    assertEquals(hits + 1, cache.getHitCount());
+    reader.openBytes(1);
+    assertEquals(hits + 1, cache.getHitCount());
+  }
+
+  @Test
+  public void testBatch() throws FormatException, IOException {
+    byte[] cached = reader.openBytes(0, 0, 0, 16, 16);
+    List<TileRequest> tiles = new ArrayList<TileRequest>();
+    tiles.add(new TileRequest(0, 16, 0, 16, 16));
+    tiles.add(new TileRequest(0, 0, 0, 16, 16));
+    byte[][] results = reader.openBytes(tiles);
+    assertTrue(Arrays.equals(cached, results[1]));
+    assertTrue(Arrays.equals(raw.openBytes(0, 16, 0, 16, 16), results[0]));
+
+    TileCache cache = reader.getTileCache();
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(2, cache.getEntryCount());
+  }
+
+  @Test
+  public void testCloneSharesCache() throws FormatException, IOException {
+    byte[] tile = reader.openBytes(2, 8, 8, 16, 16);
+    CachingReader clone = (CachingReader) reader.cloneReader();
+    try {
+      assertTrue(clone.getTileCache() == reader.getTileCache());
+      assertTrue(Arrays.equals(tile, clone.openBytes(2, 8, 8, 16, 16)));
+      assertEquals(1, clone.getTileCache().getHitCount());
+    }
+    finally {
+      clone.close();
+    }
+  }
+
+  @Test
+  public void testCoreIndexKeyAndInvalidate() {
+    TileCache.Key a = new TileCache.Key("f", 0, 0, 0, 0, 8, 8, false);
+    TileCache.Key b = new TileCache.Key("f", 1, 0, 0, 0, 8, 8, false);
+    TileCache cache = new TileCache();
+    cache.put(a, new byte[64]);
+    assertEquals(null, cache.get(b));
+    cache.invalidate("f");
+    assertEquals(null, cache.get(a));
+    assertEquals(0, cache.getSize());
+  }
+
+}
@@ -46,6 +46,7 @@ import java.util.List;
 import java.util.HashMap;
 
 import loci.formats.ClassList;
+import loci.formats.ClassListIndex;
 
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertFalse;
@@ -120,6 +121,47 @@ public class ClassListTest {
     assertEquals(c.getClasses().length, 2);
   }
 
+  @Test
+  public void testIndex() throws IOException {
+    configFile = writeConfigFile("java.util.ArrayList\n" +
+      "missing.ExternalList[type=external]\n" +
+      "java.util.AbstractList[a=b] # comment");
+    ClassListIndex.compile(configFile);
+    File index = new File(configFile + ClassListIndex.SUFFIX);
+    index.deleteOnExit();
+
+    // make the text differ from the index, without making it newer
+    File text = new File(configFile);
+    long modified = index.lastModified();
+    BufferedWriter bw = new BufferedWriter(new FileWriter(text));
+    bw.write("java.util.ArrayList");
+    bw.close();
+    text.setLastModified(modified - 10000);
+
+    c = new ClassList<Iterable>(configFile, Iterable.class, null);
+    assertEquals(c.getClasses().length, 2);
+    assertEquals(c.getClasses()[0], ArrayList.class);
+    assertEquals(c.getClasses()[1], AbstractList.class);
+    assertEquals(c.getOptions().get("java.util.AbstractList.a"), "b");
+  }
+
+  @Test
+  public void testIndexOverriddenByNewerText() throws IOException {
+    configFile = writeConfigFile("java.util.ArrayList\njava.util.AbstractList");
+    ClassListIndex.compile(configFile);
+    File index = new File(configFile + ClassListIndex.SUFFIX);
+    index.deleteOnExit();
+    index.setLastModified(new File(configFile).lastModified() - 10000);
+
+    BufferedWriter bw = new BufferedWriter(new FileWriter(configFile));
+    bw.write("java.util.ArrayList");
+    bw.close();
+
+    c = new ClassList<Iterable>(configFile, Iterable.class, null);
+    assertEquals(c.getClasses().length, 1);
+    assertEquals(c.getClasses()[0], ArrayList.class);
+  }
+
   @Test
   public void testAddClass() {
     c = new ClassList<Iterable>(Iterable.class);
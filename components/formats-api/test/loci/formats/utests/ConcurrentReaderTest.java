@@ -0,0 +1,187 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import loci.formats.ConcurrentReader;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ReaderWrapper;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.ConcurrentReader}.
+ */
+public class ConcurrentReaderTest {
+
+  private static final int THREADS = 4;
+
+  /** Wrapper that does not override cloneReader. */
+  public static class PlainWrapper extends ReaderWrapper {
+    public PlainWrapper(IFormatReader r) { super(r); }
+  }
+
+  private RawPlaneReader reader;
+  private ConcurrentReader concurrent;
+
+  @BeforeMethod
+  public void setUp() throws FormatException, IOException {
+    reader = new RawPlaneReader(64, 64, 1, FormatTools.UINT16, false, 0, 8);
+    reader.setId(reader.writeFile());
+    concurrent = new ConcurrentReader(reader);
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    concurrent.close();
+    String file = reader.getCurrentFile();
+    reader.close();
+    new File(file).delete();
+  }
+
+  @Test
+  public void testCopyPerThread() throws Exception {
+    final IFormatReader copy = concurrent.getReader();
+    assertSame(copy, concurrent.getReader());
+    assertNotSame(reader, copy);
+    assertEquals(reader.getCurrentFile(), copy.getCurrentFile());
+    assertSame(reader.getGlobalMetadata(), copy.getGlobalMetadata());
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      IFormatReader other = executor.submit(new Callable<IFormatReader>() {
+        @Override
+        public IFormatReader call() throws Exception {
+          return concurrent.getReader();
+        }
+      }).get();
+      assertNotSame(copy, other);
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertEquals(2, concurrent.getCopyCount());
+  }
+
+  @Test
+  public void testParallelReads() throws Exception {
+    final int tile = 16;
+    final int tileCount = reader.getImageCount() * 16;
+    List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+    for (int t=0; t<THREADS; t++) {
+      final int offset = t;
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          RawPlaneReader expected =
+            new RawPlaneReader(64, 64, 1, FormatTools.UINT16, false, 0, 8);
+          expected.setId(reader.getCurrentFile());
+          try {
+            for (int i=0; i<tileCount; i++) {
+              int index = (i * 7 + offset * 5) % tileCount;
+              int no = index / 16;
+              int x = (index % 4) * tile;
+              int y = ((index / 4) % 4) * tile;
+              byte[] actual = concurrent.openBytes(0, no, x, y, tile, tile);
+              if (!Arrays.equals(expected.openBytes(no, x, y, tile, tile),
+                actual))
+              {
+                return false;
+              }
+            }
+          }
+          finally {
+            expected.close();
+          }
+          return true;
+        }
+      });
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      for (Future<Boolean> result : executor.invokeAll(tasks)) {
+        assertTrue(result.get());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertEquals(THREADS, concurrent.getCopyCount());
+
+    // the original reader is unaffected
+    assertEquals(0, reader.getSeries());
+    assertTrue(Arrays.equals(reader.openBytes(2),
+      concurrent.openBytes(0, 2, 0, 0, 64, 64)));
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testClosed() throws Exception {
+    concurrent.getReader();
+    concurrent.close();
+    concurrent.getReader();
+  }
+
+  @Test(expectedExceptions = FormatException.class)
+  public void testUnsupported() throws FormatException, IOException {
+    new ConcurrentReader(new ImageReaderTest.FooReader());
+  }
+
+  @Test(expectedExceptions = FormatException.class)
+  public void testWrapperNotCloned() throws FormatException, IOException {
+    new PlainWrapper(reader).cloneReader();
+  }
+
+  @Test(expectedExceptions = FormatException.class)
+  public void testUnsupportedWrapper() throws FormatException, IOException {
+    new ConcurrentReader(new PlainWrapper(reader));
+  }
+
+}
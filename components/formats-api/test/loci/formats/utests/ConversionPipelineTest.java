@@ -0,0 +1,360 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import loci.formats.ConversionPipeline;
+import loci.formats.CoreMetadata;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.FormatWriter;
+import loci.formats.IFormatReader;
+import loci.formats.SizeClassBufferPool;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.ConversionPipeline}.
+ */
+public class ConversionPipelineTest {
+
+  private static final int PLANES = 8;
+
+  private RawPlaneReader reader;
+  private RecordingWriter writer;
+  private String file;
+
+  /** Writer that keeps the planes it is given, in the order given. */
+  static class RecordingWriter extends FormatWriter {
+    final List<Integer> planes = new ArrayList<Integer>();
+    final List<byte[]> data = new ArrayList<byte[]>();
+    boolean sequentialSeen;
+
+    /** Whether to keep the given arrays rather than copies of them. */
+    boolean keepArrays;
+
+    /** Index of the call to saveBytes that fails, or -1. */
+    int failAt = -1;
+
+    RecordingWriter() {
+      super("Recording", "rec");
+    }
+
+    @Override
+    public void setSeries(int series) {
+      this.series = series;
+    }
+
+    @Override
+    public void saveBytes(int no, byte[] buf) throws IOException {
+      if (planes.size() == failAt) throw new IOException("bad write");
+      planes.add(no);
+      sequentialSeen |= sequential;
+      data.add(keepArrays ? buf : buf.clone());
+    }
+
+    @Override
+    public void saveBytes(int no, byte[] buf, int x, int y, int w, int h)
+      throws IOException
+    {
+      saveBytes(no, buf);
+    }
+  }
+
+  @BeforeMethod
+  public void setUp() throws FormatException, IOException {
+    reader =
+      new RawPlaneReader(32, 32, 1, FormatTools.UINT16, false, 0, PLANES);
+    file = reader.writeFile();
+    reader.setId(file);
+    writer = new RecordingWriter();
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    reader.close();
+    new File(file).delete();
+  }
+
+  private void assertPlanes(IFormatReader expected, List<Integer> order)
+    throws FormatException, IOException
+  {
+    assertEquals(order, writer.planes);
+    for (int i=0; i<order.size(); i++) {
+      assertTrue(Arrays.equals(expected.openBytes(order.get(i)),
+        writer.data.get(i)));
+    }
+  }
+
+  private static List<Integer> range(int count) {
+    List<Integer> planes = new ArrayList<Integer>();
+    for (int i=0; i<count; i++) planes.add(i);
+    return planes;
+  }
+
+  @Test
+  public void testOrderedCopy() throws Exception {
+    ConversionPipeline pipeline = new ConversionPipeline(reader, writer);
+    pipeline.setReaderThreads(4);
+    pipeline.setQueueSize(3);
+    pipeline.run();
+    assertPlanes(reader, range(PLANES));
+
+    int planeSize = FormatTools.getPlaneSize(reader);
+    assertEquals(PLANES, pipeline.getReadStatistics().getPlaneCount());
+    assertEquals(PLANES * planeSize,
+      pipeline.getReadStatistics().getByteCount());
+    assertEquals(PLANES, pipeline.getWriteStatistics().getPlaneCount());
+    assertEquals(0, pipeline.getTransformStatistics().getPlaneCount());
+    assertTrue(pipeline.getElapsedNanos() > 0);
+  }
+
+  /** Reader with two identical series. */
+  static class TwoSeriesReader extends RawPlaneReader {
+    TwoSeriesReader() {
+      super(32, 32, 1, FormatTools.UINT16, false, 0, PLANES);
+    }
+
+    @Override
+    protected void initFile(String id) throws FormatException, IOException {
+      super.initFile(id);
+      core.add(new CoreMetadata(core.get(0)));
+    }
+  }
+
+  /** Reader whose reads are slow, and which counts the reads in progress. */
+  static class SlowReader extends RawPlaneReader {
+    final AtomicInteger active = new AtomicInteger();
+
+    SlowReader() {
+      super(32, 32, 1, FormatTools.UINT16, false, 0, PLANES);
+    }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+      throws FormatException, IOException
+    {
+      active.incrementAndGet();
+      try {
+        long end = System.nanoTime() + 50 * 1000000L;
+        // keep reading through interrupts, as file reads may
+        while (System.nanoTime() < end) {
+          try {
+            Thread.sleep(5);
+          }
+          catch (InterruptedException e) {
+            // not interruptible
+          }
+        }
+        return super.openBytes(no, buf, x, y, w, h);
+      }
+      finally {
+        active.decrementAndGet();
+      }
+    }
+  }
+
+  @Test
+  public void testWriterSettingsUnchanged() throws Exception {
+    ConversionPipeline pipeline = new ConversionPipeline(reader, writer);
+    pipeline.setReaderThreads(4);
+    pipeline.run();
+    assertPlanes(reader, range(PLANES));
+    assertFalse(writer.sequentialSeen);
+  }
+
+  @Test
+  public void testBuffersKeptByWriter() throws Exception {
+    reader.setBufferPool(new SizeClassBufferPool());
+    writer.keepArrays = true;
+    ConversionPipeline pipeline = new ConversionPipeline(reader, writer);
+    assertFalse(pipeline.isRecycleBuffers());
+    pipeline.setReaderThreads(4);
+    pipeline.setQueueSize(2);
+    pipeline.run();
+    assertPlanes(reader, range(PLANES));
+  }
+
+  @Test
+  public void testRecycleBuffers() throws Exception {
+    reader.setBufferPool(new SizeClassBufferPool());
+    ConversionPipeline pipeline = new ConversionPipeline(reader, writer);
+    pipeline.setRecycleBuffers(true);
+    pipeline.setReaderThreads(4);
+    pipeline.setQueueSize(2);
+    pipeline.run();
+    assertPlanes(reader, range(PLANES));
+  }
+
+  @Test
+  public void testSeriesRestored() throws Exception {
+    TwoSeriesReader twoSeries = new TwoSeriesReader();
+    String twoSeriesFile = twoSeries.writeFile();
+    try {
+      twoSeries.setId(twoSeriesFile);
+      assertEquals(2, twoSeries.getSeriesCount());
+      ConversionPipeline pipeline = new ConversionPipeline(twoSeries, writer);
+      pipeline.setReaderThreads(1);
+      pipeline.run();
+      assertEquals(2 * PLANES, writer.planes.size());
+      assertEquals(0, twoSeries.getSeries());
+    }
+    finally {
+      twoSeries.close();
+      new File(twoSeriesFile).delete();
+    }
+  }
+
+  @Test
+  public void testFailureWaitsForReads() throws Exception {
+    SlowReader slow = new SlowReader();
+    String slowFile = slow.writeFile();
+    try {
+      slow.setId(slowFile);
+      writer.failAt = 1;
+      ConversionPipeline pipeline = new ConversionPipeline(slow, writer);
+      pipeline.setReaderThreads(4);
+      try {
+        pipeline.run();
+        fail("Expected IOException");
+      }
+      catch (IOException e) {
+        assertEquals("bad write", e.getMessage());
+      }
+      assertEquals(0, slow.active.get());
+    }
+    finally {
+      slow.close();
+      new File(slowFile).delete();
+    }
+  }
+
+  @Test
+  public void testUnorderedCopy() throws Exception {
+    ConversionPipeline pipeline = new ConversionPipeline(reader, writer);
+    pipeline.setReaderThreads(4);
+    pipeline.setOrdered(false);
+    pipeline.run();
+
+    List<Integer> sorted = new ArrayList<Integer>(writer.planes);
+    Collections.sort(sorted);
+    assertEquals(range(PLANES), sorted);
+    for (int i=0; i<PLANES; i++) {
+      assertTrue(Arrays.equals(reader.openBytes(writer.planes.get(i)),
+        writer.data.get(i)));
+    }
+  }
+
+  @Test
+  public void testTransform() throws Exception {
+    ConversionPipeline pipeline = new ConversionPipeline(reader, writer);
+    pipeline.setTransformThreads(3);
+    pipeline.setTransform(new ConversionPipeline.PlaneTransform() {
+      @Override
+      public byte[] transform(int series, int no, byte[] plane) {
+        byte[] inverted = new byte[plane.length];
+        for (int i=0; i<plane.length; i++) {
+          inverted[i] = (byte) ~plane[i];
+        }
+        return inverted;
+      }
+    });
+    pipeline.run();
+
+    assertEquals(range(PLANES), writer.planes);
+    for (int no=0; no<PLANES; no++) {
+      byte[] plane = reader.openBytes(no);
+      byte[] written = writer.data.get(no);
+      for (int i=0; i<plane.length; i++) {
+        assertEquals((byte) ~plane[i], written[i]);
+      }
+    }
+    assertEquals(PLANES, pipeline.getTransformStatistics().getPlaneCount());
+  }
+
+  @Test
+  public void testSingleReaderFallback() throws Exception {
+    AsyncReaderTest.RecordingReader uncloneable =
+      new AsyncReaderTest.RecordingReader(false);
+    String uncloneableFile = uncloneable.writeFile();
+    try {
+      uncloneable.setId(uncloneableFile);
+      ConversionPipeline pipeline =
+        new ConversionPipeline(uncloneable, writer);
+      pipeline.setReaderThreads(4);
+      pipeline.run();
+      assertPlanes(uncloneable, range(uncloneable.getImageCount()));
+    }
+    finally {
+      uncloneable.close();
+      new File(uncloneableFile).delete();
+    }
+  }
+
+  @Test
+  public void testTransformFailure() throws Exception {
+    ConversionPipeline pipeline = new ConversionPipeline(reader, writer);
+    pipeline.setReaderThreads(2);
+    pipeline.setTransform(new ConversionPipeline.PlaneTransform() {
+      @Override
+      public byte[] transform(int series, int no, byte[] plane)
+        throws FormatException
+      {
+        if (no == 5) throw new FormatException("bad plane");
+        return plane;
+      }
+    });
+    try {
+      pipeline.run();
+      fail("Expected FormatException");
+    }
+    catch (FormatException e) {
+      assertEquals("bad plane", e.getMessage());
+    }
+    assertTrue(writer.planes.size() <= 5);
+  }
+
+}
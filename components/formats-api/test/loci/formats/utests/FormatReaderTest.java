@@ -0,0 +1,571 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Random;
+
+import loci.common.DataTools;
+import loci.common.RandomAccessInputStream;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatReader;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.MetadataTable;
+import loci.formats.TileRequest;
+import loci.formats.in.DynamicMetadataOptions;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.ome.OMEXMLMetadataImpl;
+import loci.formats.services.OMEXMLService;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.FormatReader}.
+ */
+public class FormatReaderTest {
+
+  /** Regions to read, as {x, y, w, h} relative to a 20x16 plane. */
+  private static final int[][] REGIONS = {
+    {0, 0, 20, 16}, {0, 3, 20, 5}, {0, 11, 20, 5}, {4, 2, 7, 9},
+    {13, 0, 7, 16}, {0, 15, 1, 1}, {19, 15, 1, 1},
+  };
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    return new Object[][] {
+      // rgbChannels, pixelType, interleaved, scanlinePad
+      {1, FormatTools.UINT8, false, 0},
+      {1, FormatTools.UINT16, false, 5},
+      {3, FormatTools.UINT8, true, 0},
+      {3, FormatTools.UINT16, true, 2},
+      {3, FormatTools.UINT8, false, 0},
+      {3, FormatTools.UINT16, false, 3},
+    };
+  }
+
+  /** Stream that counts the calls that read bytes. */
+  public static class CountingStream extends RandomAccessInputStream {
+    int reads;
+
+    public CountingStream(String file) throws IOException {
+      super(file);
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+      reads++;
+      return super.read(b);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      reads++;
+      return super.read(b, off, len);
+    }
+  }
+
+  /** Reader whose stream counts the calls that read bytes. */
+  public static class CountingReader extends RawPlaneReader {
+    public CountingReader() {
+      super(20, 16, 1, FormatTools.UINT8, false, 0, 2);
+    }
+
+    public CountingStream getStream() {
+      return (CountingStream) in;
+    }
+
+    @Override
+    protected void initFile(String id) throws FormatException, IOException {
+      super.initFile(id);
+      in.close();
+      in = new CountingStream(id);
+    }
+  }
+
+  /** Counting reader that does not declare mapped read support. */
+  public static class UnmappedCountingReader extends CountingReader {
+    @Override
+    protected boolean isMappedReadSupported() {
+      return false;
+    }
+  }
+
+  @Test
+  public void testMappedReadBypassesStream()
+    throws FormatException, IOException
+  {
+    for (boolean mapped : new boolean[] {false, true}) {
+      CountingReader reader = new CountingReader();
+      DynamicMetadataOptions options = new DynamicMetadataOptions();
+      options.setBoolean(FormatReader.MAPPED_READ_KEY, mapped);
+      reader.setMetadataOptions(options);
+      reader.setId(reader.writeFile());
+      try {
+        // narrower than the plane, so not read in one call from the stream
+        reader.openBytes(1, 4, 2, 7, 9);
+        reader.openBytes(1, 13, 0, 7, 16);
+        assertEquals(mapped, reader.getStream().reads == 0);
+      }
+      finally {
+        reader.close();
+      }
+    }
+  }
+
+  @Test
+  public void testMappedReadOptIn() throws FormatException, IOException {
+    CountingReader reader = new UnmappedCountingReader();
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.setBoolean(FormatReader.MAPPED_READ_KEY, true);
+    reader.setMetadataOptions(options);
+    reader.setId(reader.writeFile());
+    try {
+      reader.openBytes(1, 4, 2, 7, 9);
+      assertTrue(reader.getStream().reads > 0);
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testMappedReadAfterClose() throws FormatException, IOException {
+    RawPlaneReader reader = new RawPlaneReader(20, 16, 1, FormatTools.UINT8,
+      false, 0, 2);
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.setBoolean(FormatReader.MAPPED_READ_KEY, true);
+    reader.setMetadataOptions(options);
+    reader.setId(reader.writeFile());
+    try {
+      byte[] expected = reader.openBytes(1, 4, 2, 7, 9);
+      // releases the mapping, which is created again on the next read
+      reader.close(true);
+      reader.reopenFile();
+      assertTrue(Arrays.equals(expected, reader.openBytes(1, 4, 2, 7, 9)));
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testMappedReadPlane(int rgbChannels, int pixelType,
+    boolean interleaved, int scanlinePad) throws FormatException, IOException
+  {
+    RawPlaneReader plain = new RawPlaneReader(20, 16, rgbChannels, pixelType,
+      interleaved, scanlinePad, 2);
+    RawPlaneReader mapped = new RawPlaneReader(20, 16, rgbChannels, pixelType,
+      interleaved, scanlinePad, 2);
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.setBoolean(FormatReader.MAPPED_READ_KEY, true);
+    mapped.setMetadataOptions(options);
+
+    String id = plain.writeFile();
+    plain.setId(id);
+    mapped.setId(id);
+    try {
+      for (int no=0; no<2; no++) {
+        for (int[] r : REGIONS) {
+          byte[] expected = plain.openBytes(no, r[0], r[1], r[2], r[3]);
+          byte[] actual = mapped.openBytes(no, r[0], r[1], r[2], r[3]);
+          assertTrue(Arrays.toString(r), Arrays.equals(expected, actual));
+        }
+      }
+    }
+    finally {
+      plain.close();
+      mapped.close();
+    }
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testByteBufferOpenBytes(int rgbChannels, int pixelType,
+    boolean interleaved, int scanlinePad) throws FormatException, IOException
+  {
+    for (boolean mapped : new boolean[] {false, true}) {
+      RawPlaneReader reader = new RawPlaneReader(20, 16, rgbChannels,
+        pixelType, interleaved, scanlinePad, 2);
+      DynamicMetadataOptions options = new DynamicMetadataOptions();
+      options.setBoolean(FormatReader.MAPPED_READ_KEY, mapped);
+      reader.setMetadataOptions(options);
+      reader.setId(reader.writeFile());
+      try {
+        for (int[] r : REGIONS) {
+          byte[] expected = reader.openBytes(1, r[0], r[1], r[2], r[3]);
+          ByteBuffer buf = ByteBuffer.allocateDirect(expected.length + 8);
+          buf.position(3);
+          reader.openBytes(1, buf, r[0], r[1], r[2], r[3]);
+          assertEquals(expected.length + 3, buf.position());
+
+          byte[] actual = new byte[expected.length];
+          buf.position(3);
+          buf.get(actual);
+          assertTrue(Arrays.toString(r), Arrays.equals(expected, actual));
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testBatchOpenBytes(int rgbChannels, int pixelType,
+    boolean interleaved, int scanlinePad) throws FormatException, IOException
+  {
+    List<TileRequest> tiles = new ArrayList<TileRequest>();
+    for (int no=2; no>=0; no--) {
+      for (int[] r : REGIONS) {
+        tiles.add(new TileRequest(no, r[0], r[1], r[2], r[3]));
+      }
+    }
+
+    for (int gap : new int[] {0, 100, FormatReader.COALESCE_GAP_DEFAULT}) {
+      RawPlaneReader reader = new RawPlaneReader(20, 16, rgbChannels,
+        pixelType, interleaved, scanlinePad, 3);
+      DynamicMetadataOptions options = new DynamicMetadataOptions();
+      options.setInteger(FormatReader.COALESCE_GAP_KEY, gap);
+      reader.setMetadataOptions(options);
+      reader.setId(reader.writeFile());
+      try {
+        byte[][] results = reader.openBytes(tiles);
+        assertEquals(tiles.size(), results.length);
+        for (int i=0; i<results.length; i++) {
+          TileRequest t = tiles.get(i);
+          assertTrue(t.toString(), Arrays.equals(
+            reader.openBytes(t.no, t.x, t.y, t.w, t.h), results[i]));
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+  }
+
+  @Test(expectedExceptions = FormatException.class)
+  public void testCloneUnsupported() throws FormatException, IOException {
+    ImageReaderTest.FooReader reader = new ImageReaderTest.FooReader();
+    reader.setId("test.foo");
+    reader.cloneReader();
+  }
+
+  @Test
+  public void testCloneReader() throws FormatException, IOException {
+    RawPlaneReader reader = new RawPlaneReader();
+    reader.setId(reader.writeFile());
+    IFormatReader clone = reader.cloneReader();
+    try {
+      assertNotSame(reader, clone);
+      assertEquals(reader.getCurrentFile(), clone.getCurrentFile());
+      assertSame(reader.getGlobalMetadata(), clone.getGlobalMetadata());
+      assertSame(reader.getMetadataStore(), clone.getMetadataStore());
+      byte[] tile = clone.openBytes(0, 3, 5, 20, 10);
+      assertTrue(Arrays.equals(reader.openBytes(0, 3, 5, 20, 10), tile));
+
+      // closing the clone leaves the original open
+      clone.close();
+      assertTrue(Arrays.equals(reader.openBytes(0, 3, 5, 20, 10), tile));
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /** Keys and values covering each of the addMeta filtering rules. */
+  private static final String[] META_STRINGS = {
+    "Exposure time", "  Channel 1 Name ", "12345", "", "   ", "x",
+    "a\u0000b\u0007c", "tab\tseparated", "line\nbreak", "para\u2028sep",
+    "carriage\rreturn", "next\u0085line", "a &lt; b", "a &gt; b", "&amp;",
+    "<tag>value</tag>", "&&lt;lt;", "&a&lt;mp;", "&l&amp;t;", "A & B",
+    "&&&", "<<>>", "\u00e9t\u00e9", "\u4e2d\u6587", "&lt;&gt;&amp;\u0001",
+  };
+
+  /** Exposes addGlobalMeta, with metadata filtering enabled. */
+  public static class MetadataReader extends RawPlaneReader {
+    public MetadataReader() {
+      setMetadataFiltered(true);
+      metadata = new MetadataTable();
+    }
+
+    public void add(String key, Object value) {
+      addGlobalMeta(key, value);
+    }
+
+    public void addList(String key, Object value) {
+      addGlobalMetaList(key, value);
+    }
+
+    public Object get(String key) {
+      return metadata.get(key);
+    }
+
+    public int size() {
+      return metadata.size();
+    }
+
+    /** Gets the global metadata table without flattening it. */
+    public Hashtable<String, Object> getMetadata() {
+      return metadata;
+    }
+  }
+
+  /** Reader that renames keys in an override of addMeta. */
+  public static class RenamingReader extends MetadataReader {
+    @Override
+    protected void addMeta(String key, Object value,
+      Hashtable<String, Object> meta)
+    {
+      super.addMeta("Renamed " + key, value, meta);
+    }
+
+    public void addPrimitives() {
+      addGlobalMeta("byte", (byte) 1);
+      addGlobalMeta("short", (short) 2);
+      addGlobalMeta("int", 3);
+      addGlobalMeta("long", 4L);
+      addGlobalMeta("float", 5f);
+      addGlobalMeta("double", 6d);
+      addGlobalMeta("boolean", true);
+      addSeriesMeta("int", 7);
+      addSeriesMeta("double", 8d);
+    }
+  }
+
+  /**
+   * Filters a key and value the way FormatReader.addMeta originally did,
+   * returning {key, value} or null if the entry is rejected.
+   */
+  public static Object[] legacyFilter(String key, Object value) {
+    key = key.trim();
+    boolean string = value instanceof String || value instanceof Character;
+    String val = string ? String.valueOf(value) : null;
+    boolean simple = string || value instanceof Number ||
+      value instanceof Boolean;
+    if (!simple) return null;
+    if (key.length() > 8192) return null;
+    if (string && val.length() > 8192) return null;
+    key = DataTools.sanitize(key);
+    if (string) val = DataTools.sanitize(val);
+    if (!key.matches(".*[a-zA-Z].*")) return null;
+    String[] invalidSequences = new String[] {
+      "&lt;", "&gt;", "&amp;", "<", ">", "&"
+    };
+    for (int i=0; i<invalidSequences.length; i++) {
+      if (key.indexOf(invalidSequences[i]) >= 0) {
+        key = key.replaceAll(invalidSequences[i], "");
+      }
+      if (string && val.indexOf(invalidSequences[i]) >= 0) {
+        val = val.replaceAll(invalidSequences[i], "");
+      }
+    }
+    if (key.length() == 0) return null;
+    if (string && val.trim().length() == 0) return null;
+    return new Object[] {key, string ? val : value};
+  }
+
+  private void assertFiltered(String key, Object value) {
+    MetadataReader reader = new MetadataReader();
+    reader.add(key, value);
+    Object[] expected = legacyFilter(key, value);
+    String message = "key '" + key + "', value '" + value + "'";
+    if (expected == null) {
+      assertEquals(message, 0, reader.size());
+    }
+    else {
+      assertEquals(message, 1, reader.size());
+      assertEquals(message, expected[1], reader.get((String) expected[0]));
+    }
+  }
+
+  @Test
+  public void testAddMetaFiltering() {
+    for (String key : META_STRINGS) {
+      for (String value : META_STRINGS) {
+        assertFiltered(key, value);
+        assertFiltered(key + value, value.length());
+      }
+      assertFiltered(key, 'c');
+      assertFiltered(key, Boolean.TRUE);
+      assertFiltered(key, new int[] {1});
+    }
+  }
+
+  @Test
+  public void testFlattenLists() throws FormatException, IOException {
+    MetadataReader reader = new MetadataReader();
+    reader.setId(reader.writeFile());
+    try {
+      reader.addList("Gain", 1);
+      reader.addList("Gain", 2);
+      MetadataTable table = (MetadataTable) reader.getGlobalMetadata();
+      assertFalse(table.hasListValues());
+      assertNull(reader.getMetadataValue("Gain"));
+      assertEquals(Integer.valueOf(1), reader.getMetadataValue("Gain #1"));
+      assertEquals(Integer.valueOf(2), reader.getMetadataValue("Gain #2"));
+
+      // later additions are flattened on the next read
+      reader.addList("Offset", "a");
+      assertEquals("a", reader.getMetadataValue("Offset #1"));
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testPrimitiveMetaOverride() throws Exception {
+    RenamingReader reader = new RenamingReader();
+    reader.setId(reader.writeFile());
+    reader.addPrimitives();
+    assertEquals(Byte.valueOf((byte) 1), reader.get("Renamed byte"));
+    assertEquals(Short.valueOf((short) 2), reader.get("Renamed short"));
+    assertEquals(Integer.valueOf(3), reader.get("Renamed int"));
+    assertEquals(Long.valueOf(4), reader.get("Renamed long"));
+    assertEquals(Float.valueOf(5), reader.get("Renamed float"));
+    assertEquals(Double.valueOf(6), reader.get("Renamed double"));
+    assertEquals(Boolean.TRUE, reader.get("Renamed boolean"));
+    assertNull(reader.get("int"));
+    assertEquals(7, reader.getSeriesMetadataValue("Renamed int"));
+    assertEquals(8d, reader.getSeriesMetadataValue("Renamed double"));
+    reader.close();
+  }
+
+  @Test
+  public void testShallowCopyFlattensLists() throws Exception {
+    MetadataReader reader = new MetadataReader();
+    reader.setId(reader.writeFile());
+    reader.addList("Gain", 1.5);
+    reader.addList("Gain", 2.5);
+    assertTrue(((MetadataTable) reader.getMetadata()).hasListValues());
+
+    // the tables are shared with the copy, so they are flattened up front
+    IFormatReader copy = reader.cloneReader();
+    assertNull(reader.get("Gain"));
+    assertEquals(1.5, reader.get("Gain #1"));
+    assertFalse(((MetadataTable) reader.getMetadata()).hasListValues());
+    assertSame(reader.getMetadata(), copy.getGlobalMetadata());
+    assertEquals(2.5, copy.getMetadataValue("Gain #2"));
+    copy.close();
+    reader.close();
+  }
+
+  @Test
+  public void testLazyOriginalMetadata() throws Exception {
+    OMEXMLService service =
+      new ServiceFactory().getInstance(OMEXMLService.class);
+    OMEXMLMetadata eagerStore = service.createOMEXMLMetadata();
+    OMEXMLMetadataImpl lazyStore =
+      (OMEXMLMetadataImpl) service.createOMEXMLMetadata();
+
+    RawPlaneReader eager = new RawPlaneReader();
+    eager.setOriginalMetadataPopulated(true);
+    eager.setMetadataStore(eagerStore);
+    RawPlaneReader lazy = new RawPlaneReader();
+    lazy.setOriginalMetadataPopulated(true);
+    lazy.setMetadataStore(lazyStore);
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.setBoolean(FormatReader.LAZY_ORIGINAL_METADATA_KEY, true);
+    lazy.setMetadataOptions(options);
+
+    String id = eager.writeFile();
+    eager.setId(id);
+    lazy.setId(id);
+    eager.close();
+    lazy.close();
+
+    assertFalse(((OMEXMLMetadataImpl) eagerStore).isOriginalMetadataPending());
+    assertTrue(lazyStore.isOriginalMetadataPending());
+    assertEquals(2, eagerStore.getXMLAnnotationCount());
+    assertEquals(2, lazyStore.getXMLAnnotationCount());
+    assertFalse(lazyStore.isOriginalMetadataPending());
+    assertEquals(service.getOriginalMetadata(eagerStore),
+      service.getOriginalMetadata(lazyStore));
+    assertEquals(eagerStore.dumpXML(), lazyStore.dumpXML());
+  }
+
+  @Test
+  public void testLazyOriginalMetadataReplacedRoot() throws Exception {
+    OMEXMLService service =
+      new ServiceFactory().getInstance(OMEXMLService.class);
+    OMEXMLMetadataImpl store =
+      (OMEXMLMetadataImpl) service.createOMEXMLMetadata();
+
+    RawPlaneReader reader = new RawPlaneReader();
+    reader.setOriginalMetadataPopulated(true);
+    reader.setMetadataStore(store);
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.setBoolean(FormatReader.LAZY_ORIGINAL_METADATA_KEY, true);
+    reader.setMetadataOptions(options);
+    reader.setId(reader.writeFile());
+    reader.close();
+
+    assertTrue(store.isOriginalMetadataPending());
+    store.createRoot();
+    assertFalse(store.isOriginalMetadataPending());
+    assertNull(service.getOriginalMetadata(store));
+  }
+
+  @Test
+  public void testAddMetaFilteringRandom() {
+    Random random = new Random(42);
+    char[] alphabet = "aZ9 &;<>ltgmp\t\n\r\u0000\u001f\u0085\u2028\u00e9"
+      .toCharArray();
+    for (int i=0; i<5000; i++) {
+      assertFiltered(randomString(random, alphabet),
+        randomString(random, alphabet));
+    }
+  }
+
+  private static String randomString(Random random, char[] alphabet) {
+    char[] chars = new char[random.nextInt(12)];
+    for (int i=0; i<chars.length; i++) {
+      chars[i] = alphabet[random.nextInt(alphabet.length)];
+    }
+    return new String(chars);
+  }
+
+}
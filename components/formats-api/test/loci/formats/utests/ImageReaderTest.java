@@ -0,0 +1,332 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import loci.common.Constants;
+import loci.common.RandomAccessInputStream;
+import loci.formats.ClassList;
+import loci.formats.DetectionCache;
+import loci.formats.FormatException;
+import loci.formats.FormatReader;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.UnknownFormatException;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for format detection in {@link loci.formats.ImageReader}.
+ */
+public class ImageReaderTest {
+
+  private ImageReader reader;
+
+  @BeforeMethod
+  public void setUp() {
+    ClassList<IFormatReader> classes =
+      new ClassList<IFormatReader>(IFormatReader.class);
+    classes.addClass(FooReader.class);
+    classes.addClass(ContentReader.class);
+    classes.addClass(OtherFooReader.class);
+    reader = new ImageReader(classes);
+  }
+
+  private String writeFile(String suffix, String content) throws IOException {
+    File file = File.createTempFile("image-reader-test", suffix);
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(content.getBytes(Constants.ENCODING));
+    out.close();
+    return file.getAbsolutePath();
+  }
+
+  @Test
+  public void testSuffixMatch() throws FormatException, IOException {
+    String id = writeFile(".foo", "");
+    assertEquals(FooReader.class, reader.getReader(id).getClass());
+  }
+
+  @Test
+  public void testCompressedSuffixMatch() throws FormatException, IOException {
+    String id = writeFile(".foo.gz", "");
+    assertEquals(FooReader.class, reader.getReader(id).getClass());
+  }
+
+  @Test
+  public void testUppercaseSuffixMatch() throws FormatException, IOException {
+    String id = writeFile(".FOO", "");
+    assertEquals(FooReader.class, reader.getReader(id).getClass());
+  }
+
+  @Test
+  public void testContentMatch() throws FormatException, IOException {
+    String id = writeFile(".bar", ContentReader.MAGIC + "data");
+    assertEquals(ContentReader.class, reader.getReader(id).getClass());
+  }
+
+  @Test
+  public void testContentMatchPrecedesLowerPriority()
+    throws FormatException, IOException
+  {
+    String id = writeFile(".bar", ContentReader.MAGIC);
+    assertEquals(ContentReader.class, reader.getReader(id).getClass());
+    id = writeFile(".bar", "");
+    assertEquals(OtherFooReader.class, reader.getReader(id).getClass());
+  }
+
+  @Test
+  public void testPrefetchedContentMatch() throws FormatException, IOException {
+    reader.setPrefetchSize(ImageReader.DEFAULT_PREFETCH_SIZE);
+    String id = writeFile(".bar", ContentReader.MAGIC + "data");
+    assertEquals(ContentReader.class, reader.getReader(id).getClass());
+    id = writeFile(".bar", "");
+    assertEquals(OtherFooReader.class, reader.getReader(id).getClass());
+  }
+
+  @Test
+  public void testPrefetchedReadPastHeader()
+    throws FormatException, IOException
+  {
+    // only part of the magic string is served from memory
+    reader.setPrefetchSize(2);
+    String id = writeFile(".bar", ContentReader.MAGIC);
+    assertEquals(ContentReader.class, reader.getReader(id).getClass());
+  }
+
+  @Test
+  public void testConcurrentDetection() throws FormatException, IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      reader.setDetectionExecutor(executor);
+      for (int prefetchSize : new int[] {0, ImageReader.DEFAULT_PREFETCH_SIZE}) {
+        reader.setPrefetchSize(prefetchSize);
+        String id = writeFile(".bar", ContentReader.MAGIC);
+        assertEquals(ContentReader.class, reader.getReader(id).getClass());
+        id = writeFile(".bar", "");
+        assertEquals(OtherFooReader.class, reader.getReader(id).getClass());
+        id = writeFile(".foo", ContentReader.MAGIC);
+        assertEquals(FooReader.class, reader.getReader(id).getClass());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testDetectionCache() throws FormatException, IOException {
+    File cacheFile = File.createTempFile("detection-cache", ".bin");
+    cacheFile.deleteOnExit();
+    cacheFile.delete();
+
+    DetectionCache cache = new DetectionCache(cacheFile.getAbsolutePath());
+    String id = writeFile(".bar", ContentReader.MAGIC);
+    reader.setDetectionCache(cache);
+    assertEquals(ContentReader.class, reader.getReader(id).getClass());
+    assertEquals(0, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.size());
+    cache.save();
+
+    // a new cache loaded from disk skips detection
+    DetectionCache loaded = new DetectionCache(cacheFile.getAbsolutePath());
+    assertEquals(1, loaded.size());
+    setUp();
+    reader.setDetectionCache(loaded);
+    assertEquals(ContentReader.class, reader.getReader(id).getClass());
+    assertEquals(1, loaded.getHitCount());
+    assertEquals(0, loaded.getMissCount());
+  }
+
+  @Test
+  public void testStaleDetectionCacheEntry() throws IOException {
+    DetectionCache cache = new DetectionCache();
+    String id = writeFile(".bar", ContentReader.MAGIC);
+    cache.put(id, ContentReader.class);
+    assertEquals(ContentReader.class.getName(), cache.get(id));
+
+    FileOutputStream out = new FileOutputStream(id, true);
+    out.write(1);
+    out.close();
+    assertEquals(null, cache.get(id));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void testIsThisType() throws IOException {
+    assertTrue(reader.isThisType(writeFile(".foo", ""), false));
+    assertFalse(reader.isThisType(writeFile(".baz", ""), true));
+  }
+
+  @Test
+  public void testSettingsAppliedToLazyReaders() {
+    reader.setGroupFiles(false);
+    reader.setNormalized(true);
+    IFormatReader[] readers = reader.getReaders();
+    assertEquals(3, readers.length);
+    for (IFormatReader r : readers) {
+      assertFalse(r.isGroupFiles());
+      assertTrue(r.isNormalized());
+      assertTrue(r.getMetadataOptions() == reader.getMetadataOptions());
+    }
+    assertTrue(reader.getReader(ContentReader.class) == readers[1]);
+  }
+
+  @Test
+  public void testSettingsWithoutReaders() {
+    ClassList<IFormatReader> classes =
+      new ClassList<IFormatReader>(IFormatReader.class);
+    classes.addClass(CountingReader.class);
+    new ImageReader(classes);
+    CountingReader.created.set(0);
+
+    ImageReader imageReader = new ImageReader(classes);
+    assertTrue(imageReader.isGroupFiles());
+    assertFalse(imageReader.isNormalized());
+    assertFalse(imageReader.isOriginalMetadataPopulated());
+    assertFalse(imageReader.isMetadataFiltered());
+    assertTrue(imageReader.hasFlattenedResolutions());
+    assertEquals(null, imageReader.getBufferPool());
+    assertTrue(imageReader.getMetadataOptions() != null);
+    assertFalse(imageReader.getSupportedMetadataLevels().isEmpty());
+    imageReader.setNormalized(true);
+    assertTrue(imageReader.isNormalized());
+    assertEquals(0, CountingReader.created.get());
+  }
+
+  @Test
+  public void testCloneReader() throws FormatException, IOException {
+    ClassList<IFormatReader> classes =
+      new ClassList<IFormatReader>(IFormatReader.class);
+    classes.addClass(FooReader.class);
+    classes.addClass(RawPlaneReader.class);
+    ImageReader imageReader = new ImageReader(classes);
+    String id = new RawPlaneReader().writeFile();
+    imageReader.setId(id);
+
+    IFormatReader clone = imageReader.cloneReader();
+    try {
+      assertTrue(clone instanceof ImageReader);
+      assertEquals(id, clone.getCurrentFile());
+      assertTrue(((ImageReader) clone).getReader() instanceof RawPlaneReader);
+      assertFalse(((ImageReader) clone).getReader() ==
+        imageReader.getReader());
+      assertTrue(Arrays.equals(imageReader.openBytes(0),
+        clone.openBytes(0)));
+    }
+    finally {
+      clone.close();
+      imageReader.close();
+    }
+  }
+
+  @Test(expectedExceptions={UnknownFormatException.class})
+  public void testUnknownFormat() throws FormatException, IOException {
+    reader.getReader(writeFile(".baz", "unknown"));
+  }
+
+  // -- Helper classes --
+
+  /** Reader that is identified only by its suffix. */
+  public static class FooReader extends FormatReader {
+    public FooReader() { super("Foo", "foo"); }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h) {
+      return buf;
+    }
+  }
+
+  /** Reader that counts the instances created. */
+  public static class CountingReader extends FooReader {
+    static final AtomicInteger created = new AtomicInteger();
+
+    public CountingReader() {
+      created.incrementAndGet();
+    }
+  }
+
+  /** Reader that is identified only by inspecting the file contents. */
+  public static class ContentReader extends FormatReader {
+    public static final String MAGIC = "CONT";
+
+    public ContentReader() {
+      super("Content", "cnt");
+      suffixNecessary = false;
+      suffixSufficient = false;
+    }
+
+    @Override
+    public boolean isThisType(RandomAccessInputStream stream)
+      throws IOException
+    {
+      if (stream.length() < MAGIC.length()) return false;
+      return stream.readString(MAGIC.length()).equals(MAGIC);
+    }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h) {
+      return buf;
+    }
+  }
+
+  /** Reader with a custom type check, accepting "foo" and "bar" files. */
+  public static class OtherFooReader extends FormatReader {
+    public OtherFooReader() { super("Other foo", new String[] {"foo", "bar"}); }
+
+    @Override
+    public boolean isThisType(String name, boolean open) {
+      return checkSuffix(name, suffixes);
+    }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h) {
+      return buf;
+    }
+  }
+
+}
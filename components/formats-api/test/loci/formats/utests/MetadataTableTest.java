@@ -0,0 +1,468 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import loci.formats.MetadataKeyDictionary;
+import loci.formats.MetadataTable;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.MetadataTable}.
+ */
+public class MetadataTableTest {
+
+  @Test
+  public void testPrimitiveValues() {
+    MetadataTable table = new MetadataTable();
+    table.putByte("byte", (byte) -3);
+    table.putShort("short", (short) 300);
+    table.putInt("int", -70000);
+    table.putLong("long", 1L << 40);
+    table.putFloat("float", -1.5f);
+    table.putDouble("double", Math.PI);
+    table.put("string", "value");
+    table.put("boolean", Boolean.TRUE);
+
+    assertEquals(Byte.valueOf((byte) -3), table.get("byte"));
+    assertEquals(Short.valueOf((short) 300), table.get("short"));
+    assertEquals(Integer.valueOf(-70000), table.get("int"));
+    assertEquals(Long.valueOf(1L << 40), table.get("long"));
+    assertEquals(Float.valueOf(-1.5f), table.get("float"));
+    assertEquals(Double.valueOf(Math.PI), table.get("double"));
+    assertEquals("value", table.get("string"));
+    assertEquals(Boolean.TRUE, table.get("boolean"));
+    assertEquals(8, table.size());
+
+    // replacing a primitive with an object, and vice versa
+    assertEquals(Integer.valueOf(-70000), table.put("int", "text"));
+    assertEquals("text", table.get("int"));
+    table.putInt("string", 7);
+    assertEquals(Integer.valueOf(7), table.get("string"));
+    assertEquals(8, table.size());
+  }
+
+  @Test
+  public void testBoxedValues() {
+    MetadataTable table = new MetadataTable();
+    Object[] values = {Byte.valueOf((byte) -3), Short.valueOf((short) 300),
+      Integer.valueOf(-70000), Long.valueOf(1L << 40), Float.valueOf(-1.5f),
+      Double.valueOf(Math.PI), Float.valueOf(Float.NaN)};
+    for (int i=0; i<values.length; i++) {
+      table.put("key" + i, values[i]);
+    }
+    for (int i=0; i<values.length; i++) {
+      assertEquals(values[i], table.get("key" + i));
+      assertEquals(values[i].getClass(), table.get("key" + i).getClass());
+    }
+  }
+
+  @Test
+  public void testKeysAreInterned() {
+    MetadataTable a = new MetadataTable();
+    MetadataTable b = new MetadataTable();
+    a.put(new String("Exposure"), 1);
+    b.put(new String("Exposure"), 2);
+    assertSame(a.keySet().iterator().next(), b.keySet().iterator().next());
+  }
+
+  @Test(expectedExceptions = NullPointerException.class)
+  public void testNullValue() {
+    new MetadataTable().put("key", null);
+  }
+
+  @Test(expectedExceptions = NullPointerException.class)
+  public void testNullKey() {
+    new MetadataTable().get(null);
+  }
+
+  @DataProvider(name = "dictionaries")
+  public Object[][] createDictionaries() {
+    MetadataKeyDictionary offset = new MetadataKeyDictionary();
+    for (int i=0; i<300; i++) offset.add("other key " + i);
+    return new Object[][] {
+      {null}, {new MetadataKeyDictionary()}, {offset},
+    };
+  }
+
+  @Test(dataProvider = "dictionaries")
+  public void testMatchesHashtable(MetadataKeyDictionary dict) {
+    Random random = new Random(7);
+    Hashtable<String, Object> expected = new Hashtable<String, Object>();
+    MetadataTable table = new MetadataTable();
+    table.setKeyDictionary(dict);
+    for (int i=0; i<20000; i++) {
+      String key = "key " + random.nextInt(500);
+      int op = random.nextInt(10);
+      if (op < 3) {
+        assertEquals(expected.put(key, "s" + i), table.put(key, "s" + i));
+      }
+      else if (op < 5) {
+        expected.put(key, i);
+        table.putInt(key, i);
+      }
+      else if (op < 6) {
+        expected.put(key, (double) i);
+        table.putDouble(key, i);
+      }
+      else if (op < 8) {
+        assertEquals(expected.remove(key), table.remove(key));
+      }
+      else {
+        assertEquals(expected.get(key), table.get(key));
+        assertEquals(expected.containsKey(key), table.containsKey(key));
+      }
+      assertEquals(expected.size(), table.size());
+    }
+    assertEquals(expected, table);
+    assertEquals(table, expected);
+    assertEquals(expected.hashCode(), table.hashCode());
+    assertSame(dict, table.getKeyDictionary());
+
+    // remove through the key set iterator
+    for (Iterator<String> it = table.keySet().iterator(); it.hasNext();) {
+      String key = it.next();
+      if (key.hashCode() % 3 == 0) {
+        it.remove();
+        expected.remove(key);
+      }
+    }
+    assertEquals(expected, table);
+
+    Set<String> keys = new HashSet<String>();
+    for (Enumeration<String> e = table.keys(); e.hasMoreElements();) {
+      keys.add(e.nextElement());
+    }
+    assertEquals(expected.keySet(), keys);
+    for (Map.Entry<String, Object> e : table.entrySet()) {
+      assertEquals(expected.get(e.getKey()), e.getValue());
+    }
+  }
+
+  @Test
+  public void testSharedKeyDictionary() {
+    MetadataKeyDictionary dict = new MetadataKeyDictionary();
+    MetadataTable[] series = new MetadataTable[50];
+    for (int s=0; s<series.length; s++) {
+      series[s] = new MetadataTable();
+      series[s].setKeyDictionary(dict);
+      series[s].put("Well", "A" + s);
+      series[s].putInt("Field", s);
+      series[s].putDouble("Exposure", s / 2.0);
+    }
+    assertEquals(3, dict.size());
+    for (int s=0; s<series.length; s++) {
+      assertSame(dict, series[s].getKeyDictionary());
+      assertEquals(3, series[s].size());
+      assertEquals("A" + s, series[s].get("Well"));
+      assertEquals(Integer.valueOf(s), series[s].get("Field"));
+      assertEquals(Double.valueOf(s / 2.0), series[s].get("Exposure"));
+      assertNull(series[s].get("Missing"));
+    }
+    assertEquals("Field", dict.getKey(dict.indexOf("Field")));
+  }
+
+  @Test
+  public void testConvertToKeyDictionary() {
+    MetadataTable table = new MetadataTable();
+    table.put("a", "x");
+    table.putLong("b", 5);
+    Hashtable<String, Object> expected = new Hashtable<String, Object>(table);
+
+    MetadataKeyDictionary dict = new MetadataKeyDictionary();
+    table.setKeyDictionary(dict);
+    assertSame(dict, table.getKeyDictionary());
+    assertEquals(2, dict.size());
+    assertEquals(expected, table);
+  }
+
+  @Test
+  public void testSparseKeyIds() {
+    MetadataKeyDictionary dict = new MetadataKeyDictionary();
+    MetadataTable first = new MetadataTable();
+    first.setKeyDictionary(dict);
+    first.put("shared", "1");
+    MetadataTable second = new MetadataTable();
+    second.setKeyDictionary(dict);
+    second.put("shared", "2");
+
+    // keys that only the first table uses push the second table's next
+    // id far from its first one
+    for (int i=0; i<1000; i++) {
+      first.putInt("first only " + i, i);
+    }
+    second.put("second only", "3");
+    assertSame(dict, first.getKeyDictionary());
+    assertNull(second.getKeyDictionary());
+    assertEquals("2", second.get("shared"));
+    assertEquals("3", second.get("second only"));
+    assertEquals(1001, first.size());
+    assertEquals(2, second.size());
+
+    // setting the same dictionary again does not convert the table back
+    second.setKeyDictionary(dict);
+    assertNull(second.getKeyDictionary());
+  }
+
+  @Test(dataProvider = "dictionaries")
+  public void testListValues(MetadataKeyDictionary dict) {
+    MetadataTable table = new MetadataTable();
+    table.setKeyDictionary(dict);
+    assertFalse(table.hasListValues());
+    table.put("a", new Vector<Object>());
+    table.put("b", new Vector<Object>());
+    assertTrue(table.hasListValues());
+    table.putInt("a", 1);
+    assertTrue(table.hasListValues());
+    table.remove("b");
+    assertFalse(table.hasListValues());
+    table.put("c", new Vector<Object>());
+    table.setKeyDictionary(new MetadataKeyDictionary());
+    assertTrue(table.hasListValues());
+    table.clear();
+    assertFalse(table.hasListValues());
+  }
+
+  @Test
+  public void testEntrySetValue() {
+    MetadataTable table = new MetadataTable();
+    table.putInt("a", 1);
+    Map.Entry<String, Object> entry = table.entrySet().iterator().next();
+    assertEquals(Integer.valueOf(1), entry.setValue("one"));
+    assertEquals("one", table.get("a"));
+  }
+
+  @Test
+  public void testClone() {
+    MetadataTable table = new MetadataTable();
+    table.putInt("a", 1);
+    table.put("b", "two");
+    MetadataTable copy = (MetadataTable) table.clone();
+    copy.putInt("a", 3);
+    copy.remove("b");
+    assertEquals(Integer.valueOf(1), table.get("a"));
+    assertEquals("two", table.get("b"));
+    assertEquals(1, copy.size());
+  }
+
+  @Test
+  public void testJavaUtilMapMethods() {
+    MetadataTable table = new MetadataTable();
+    assertNull(table.putIfAbsent("a", "x"));
+    assertEquals("x", table.putIfAbsent("a", "y"));
+    assertEquals("x", table.getOrDefault("a", "z"));
+    assertEquals("z", table.getOrDefault("b", "z"));
+    assertTrue(table.replace("a", "x", "w"));
+    assertFalse(table.remove("a", "x"));
+    assertTrue(table.remove("a", "w"));
+    assertTrue(table.isEmpty());
+  }
+
+  /** Function that appends its arguments, or removes the entry. */
+  private static final BiFunction<Object, Object, Object> CONCAT =
+    new BiFunction<Object, Object, Object>() {
+      @Override
+      public Object apply(Object a, Object b) {
+        return "remove".equals(b) ? null : a + "" + b;
+      }
+    };
+
+  private static Hashtable<String, Object> createTable() {
+    MetadataTable table = new MetadataTable();
+    table.putInt("a", 1);
+    table.put("b", "two");
+    return table;
+  }
+
+  @Test
+  public void testForEach() {
+    final Map<String, Object> visited = new HashMap<String, Object>();
+    Hashtable<String, Object> table = createTable();
+    table.forEach(new BiConsumer<String, Object>() {
+      @Override
+      public void accept(String key, Object value) {
+        visited.put(key, value);
+      }
+    });
+    assertEquals(table, visited);
+  }
+
+  @Test
+  public void testReplaceAll() {
+    Hashtable<String, Object> table = createTable();
+    table.replaceAll(CONCAT);
+    assertEquals(2, table.size());
+    assertEquals("a1", table.get("a"));
+    assertEquals("btwo", table.get("b"));
+  }
+
+  @Test
+  public void testComputeIfAbsent() {
+    Hashtable<String, Object> table = createTable();
+    Function<String, Object> upper = new Function<String, Object>() {
+      @Override
+      public Object apply(String key) {
+        return key.equals("d") ? null : key.toUpperCase();
+      }
+    };
+    assertEquals(Integer.valueOf(1), table.computeIfAbsent("a", upper));
+    assertEquals("C", table.computeIfAbsent("c", upper));
+    assertEquals("C", table.get("c"));
+    assertNull(table.computeIfAbsent("d", upper));
+    assertFalse(table.containsKey("d"));
+  }
+
+  @Test
+  public void testComputeIfPresent() {
+    Hashtable<String, Object> table = createTable();
+    assertEquals("a1", table.computeIfPresent("a", CONCAT));
+    assertEquals("a1", table.get("a"));
+    assertNull(table.computeIfPresent("c", CONCAT));
+    assertFalse(table.containsKey("c"));
+    table.put("r", "remove");
+    assertNull(table.computeIfPresent("r", new BiFunction<String, Object,
+      Object>() {
+        @Override
+        public Object apply(String key, Object value) {
+          return null;
+        }
+      }));
+    assertFalse(table.containsKey("r"));
+  }
+
+  @Test
+  public void testCompute() {
+    Hashtable<String, Object> table = createTable();
+    assertEquals("a1", table.compute("a", CONCAT));
+    assertEquals("cnull", table.compute("c", CONCAT));
+    assertEquals("cnull", table.get("c"));
+    table.put("remove", "x");
+    assertNull(table.compute("remove", new BiFunction<String, Object,
+      Object>() {
+        @Override
+        public Object apply(String key, Object value) {
+          return null;
+        }
+      }));
+    assertFalse(table.containsKey("remove"));
+    assertEquals(3, table.size());
+  }
+
+  @Test
+  public void testMerge() {
+    Hashtable<String, Object> table = createTable();
+    assertEquals("15", table.merge("a", 5, CONCAT));
+    assertEquals("15", table.get("a"));
+    assertEquals(Integer.valueOf(3), table.merge("c", 3, CONCAT));
+    assertEquals(Integer.valueOf(3), table.get("c"));
+    assertNull(table.merge("b", "remove", CONCAT));
+    assertFalse(table.containsKey("b"));
+  }
+
+  @Test
+  public void testCloneWithSharedDictionary() {
+    MetadataKeyDictionary dict = new MetadataKeyDictionary();
+    MetadataTable table = new MetadataTable();
+    table.setKeyDictionary(dict);
+    table.putInt("a", 1);
+    MetadataTable copy = (MetadataTable) table.clone();
+    assertTrue(dict.isReadOnly());
+
+    // adding keys leaves the shared dictionary unchanged
+    copy.put("b", "copy");
+    table.put("c", "original");
+    table.putInt("a", 2);
+    assertEquals(1, dict.size());
+    assertTrue(table.getKeyDictionary() != dict);
+    assertTrue(copy.getKeyDictionary() != dict);
+    assertEquals("copy", copy.get("b"));
+    assertEquals(Integer.valueOf(1), copy.get("a"));
+    assertFalse(copy.containsKey("c"));
+    assertEquals("original", table.get("c"));
+    assertEquals(Integer.valueOf(2), table.get("a"));
+    assertFalse(table.containsKey("b"));
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testReadOnlyDictionary() {
+    MetadataKeyDictionary dict = new MetadataKeyDictionary();
+    dict.add("a");
+    dict.setReadOnly();
+    assertEquals(0, dict.add("a"));
+    MetadataKeyDictionary copy = dict.copy();
+    assertFalse(copy.isReadOnly());
+    assertEquals(0, copy.indexOf("a"));
+    assertEquals(1, copy.add("b"));
+    dict.add("b");
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    MetadataTable table = new MetadataTable();
+    table.putLong("a", 5);
+    table.put("b", "text");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(table);
+    out.close();
+    ObjectInputStream in =
+      new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    Object copy = in.readObject();
+    assertEquals(Hashtable.class, copy.getClass());
+    assertEquals(table, copy);
+  }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import loci.formats.OffHeapTileCache;
+import loci.formats.TileCache;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.OffHeapTileCache}.
+ */
+public class OffHeapTileCacheTest {
+
+  private File directory;
+  private OffHeapTileCache tier;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    directory = File.createTempFile("OffHeapTileCacheTest", "");
+    assertTrue(directory.delete());
+    assertTrue(directory.mkdir());
+    tier = new OffHeapTileCache(200, 200, directory);
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    tier.close();
+    assertEquals(0, directory.list().length);
+    directory.delete();
+  }
+
+  private static TileCache.Key key(int no) {
+    return new TileCache.Key("test.raw", 0, no, 0, 0, 10, 10, false);
+  }
+
+  private static byte[] tile(int no) {
+    return tile(no, 100);
+  }
+
+  private static byte[] tile(int no, int length) {
+    byte[] tile = new byte[length];
+    Arrays.fill(tile, (byte) no);
+    return tile;
+  }
+
+  @Test
+  public void testMemoryTier() {
+    tier.offer(key(1), tile(1));
+    assertEquals(100, tier.getMemorySize());
+    assertTrue(Arrays.equals(tile(1), tier.get(key(1))));
+    assertNull(tier.get(key(2)));
+    assertEquals(1, tier.getMemoryHitCount());
+    assertEquals(1, tier.getMissCount());
+  }
+
+  @Test
+  public void testSpillToDisk() {
+    for (int i=0; i<4; i++) {
+      for (int n=0; n<=i; n++) {
+        tier.recordAccess(key(i));
+      }
+      tier.offer(key(i), tile(i));
+    }
+    assertEquals(200, tier.getMemorySize());
+    assertEquals(200, tier.getDiskSize());
+    assertEquals(2, tier.getSpillCount());
+    assertEquals(0, tier.getRejectedCount());
+
+    for (int i=0; i<4; i++) {
+      assertTrue(Arrays.equals(tile(i), tier.get(key(i))));
+    }
+    assertEquals(2, tier.getMemoryHitCount());
+    assertEquals(2, tier.getDiskHitCount());
+
+    // the disk budget is full, so the least recently used tile is dropped
+    for (int n=0; n<5; n++) {
+      tier.recordAccess(key(4));
+    }
+    tier.offer(key(4), tile(4));
+    assertEquals(200, tier.getDiskSize());
+    assertNull(tier.get(key(0)));
+    assertNotNull(tier.get(key(4)));
+  }
+
+  @Test
+  public void testSpillMixedSizes() throws IOException {
+    tier.close();
+    tier = new OffHeapTileCache(100, 200, directory);
+    int[] lengths = {100, 100, 100, 50, 50, 50, 50};
+    for (int i=0; i<lengths.length; i++) {
+      for (int n=0; n<=i; n++) {
+        tier.recordAccess(key(i));
+      }
+      tier.offer(key(i), tile(i, lengths[i]));
+      if (i == 2) assertEquals(200, tier.getDiskSize());
+    }
+
+    // the 50 byte tiles reuse the space of one dropped 100 byte tile
+    assertEquals(200, tier.getDiskSize());
+    assertEquals(5, tier.getSpillCount());
+    assertNull(tier.get(key(0)));
+    assertNull(tier.get(key(1)));
+    for (int i=2; i<lengths.length; i++) {
+      assertTrue(Arrays.equals(tile(i, lengths[i]), tier.get(key(i))));
+    }
+
+    // freed space is merged, so a larger tile fits again
+    tier.invalidate(null);
+    assertEquals(0, tier.getDiskSize());
+    for (int i=7; i<10; i++) {
+      for (int n=0; n<=i; n++) {
+        tier.recordAccess(key(i));
+      }
+      tier.offer(key(i), tile(i, 100));
+    }
+    assertEquals(200, tier.getDiskSize());
+    assertTrue(Arrays.equals(tile(7, 100), tier.get(key(7))));
+  }
+
+  @Test
+  public void testAdmission() {
+    for (int i=0; i<2; i++) {
+      for (int n=0; n<5; n++) {
+        tier.recordAccess(key(i));
+      }
+      tier.offer(key(i), tile(i));
+    }
+
+    // a scan over tiles that are requested once does not displace hot tiles
+    for (int i=2; i<10; i++) {
+      tier.recordAccess(key(i));
+      tier.offer(key(i), tile(i));
+    }
+    assertEquals(8, tier.getRejectedCount());
+    assertEquals(0, tier.getSpillCount());
+    assertNotNull(tier.get(key(0)));
+    assertNotNull(tier.get(key(1)));
+    assertNull(tier.get(key(2)));
+  }
+
+  @Test
+  public void testCorruption() throws IOException {
+    for (int i=0; i<3; i++) {
+      for (int n=0; n<=i; n++) {
+        tier.recordAccess(key(i));
+      }
+      tier.offer(key(i), tile(i));
+    }
+    assertEquals(100, tier.getDiskSize());
+
+    File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    RandomAccessFile scratch = new RandomAccessFile(files[0], "rw");
+    try {
+      scratch.seek(50);
+      scratch.write(0xff);
+    }
+    finally {
+      scratch.close();
+    }
+
+    assertNull(tier.get(key(0)));
+    assertEquals(1, tier.getCorruptionCount());
+    assertEquals(0, tier.getDiskSize());
+  }
+
+  @Test
+  public void testInvalidate() {
+    tier.offer(key(1), tile(1));
+    tier.offer(new TileCache.Key("other.raw", 0, 1, 0, 0, 10, 10, false),
+      tile(1));
+    tier.invalidate("test.raw");
+    assertEquals(100, tier.getMemorySize());
+    assertNull(tier.get(key(1)));
+  }
+
+  @Test
+  public void testSecondTier() {
+    TileCache cache = new TileCache(100, 1);
+    cache.setSecondTier(tier);
+    cache.put(key(1), tile(1));
+    cache.put(key(2), tile(2));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(100, tier.getMemorySize());
+
+    // served by the second tier and promoted back to the heap
+    assertTrue(Arrays.equals(tile(1), cache.get(key(1))));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, tier.getMemoryHitCount());
+    assertTrue(Arrays.equals(tile(1), cache.get(key(1))));
+    assertEquals(1, tier.getMemoryHitCount());
+
+    cache.clear();
+    assertEquals(0, tier.getMemorySize());
+  }
+
+}
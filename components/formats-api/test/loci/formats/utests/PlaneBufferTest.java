@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.PlaneBuffer;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.PlaneBuffer}.
+ */
+public class PlaneBufferTest {
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    return new Object[][] {
+      // rgbChannels, interleaved, chunkSize
+      {1, false, 100}, {3, true, 250}, {3, false, 300}, {3, false, 1 << 20},
+    };
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testMatchesOpenBytes(int rgbChannels, boolean interleaved,
+    int chunkSize) throws FormatException, IOException
+  {
+    RawPlaneReader reader = new RawPlaneReader(20, 15, rgbChannels,
+      FormatTools.UINT16, interleaved, 0, 1);
+    reader.setId(reader.writeFile());
+    try {
+      byte[] expected = reader.openBytes(0, 2, 1, 17, 13);
+      PlaneBuffer plane =
+        PlaneBuffer.open(reader, 0, 2, 1, 17, 13, chunkSize);
+      assertEquals(expected.length, plane.length());
+
+      for (int i=0; i<expected.length; i++) {
+        assertEquals(expected[i], plane.get(i));
+      }
+      byte[] copy = new byte[expected.length];
+      for (int i=0; i<copy.length; i+=37) {
+        plane.get(i, copy, i, Math.min(37, copy.length - i));
+      }
+      assertTrue(Arrays.equals(expected, copy));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      plane.writeTo(out);
+      assertTrue(Arrays.equals(expected, out.toByteArray()));
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test(expectedExceptions={FormatException.class})
+  public void testRowTooLarge() throws FormatException, IOException {
+    RawPlaneReader reader = new RawPlaneReader();
+    reader.setId(reader.writeFile());
+    try {
+      PlaneBuffer.open(reader, 0, 0, 0, reader.getSizeX(), 4, 8);
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.PrefetchingReader;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.PrefetchingReader}.
+ */
+public class PrefetchingReaderTest {
+
+  /** Runs read-ahead on the calling thread, so that tests are repeatable. */
+  private static final Executor DIRECT = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  /**
+   * Reader that blocks read-ahead on the reader's own background thread
+   * until released, and records any read that fails.
+   */
+  public static class BlockingReader extends RawPlaneReader {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Exception> failures =
+      Collections.synchronizedList(new ArrayList<Exception>());
+
+    public BlockingReader() {
+      super(64, 64, 1, FormatTools.UINT16, false, 0, 8);
+    }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+      throws FormatException, IOException
+    {
+      if (Thread.currentThread().getName().equals("PrefetchingReader")) {
+        started.countDown();
+        try {
+          release.await();
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      try {
+        return super.openBytes(no, buf, x, y, w, h);
+      }
+      catch (IOException e) {
+        failures.add(e);
+        throw e;
+      }
+    }
+
+    @Override
+    protected boolean isShallowCopySupported() {
+      return true;
+    }
+  }
+
+  private RawPlaneReader expected;
+  private PrefetchingReader reader;
+  private String file;
+
+  @BeforeMethod
+  public void setUp() throws FormatException, IOException {
+    expected = new RawPlaneReader(64, 64, 1, FormatTools.UINT16, false, 0, 8);
+    file = expected.writeFile();
+    expected.setId(file);
+    reader = new PrefetchingReader(
+      new RawPlaneReader(64, 64, 1, FormatTools.UINT16, false, 0, 8),
+      DIRECT, 3, PrefetchingReader.DEFAULT_MAX_BYTES);
+    reader.setId(file);
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    reader.close();
+    expected.close();
+    new File(file).delete();
+  }
+
+  @Test
+  public void testSequentialPlanes() throws Exception {
+    for (int no=0; no<reader.getImageCount(); no++) {
+      assertTrue(Arrays.equals(expected.openBytes(no), reader.openBytes(no)));
+    }
+    // the first two planes establish the pattern
+    assertEquals(2, reader.getMissCount());
+    assertEquals(6, reader.getHitCount());
+    assertEquals(6, reader.getPrefetchCount());
+    assertEquals(0, reader.getDiscardCount());
+    assertEquals(0, reader.getPrefetchedBytes());
+  }
+
+  @Test
+  public void testSequentialTiles() throws Exception {
+    int tile = 24;
+    byte[] buf = new byte[tile * tile * 2];
+    for (int y=0; y<reader.getSizeY(); y+=tile) {
+      for (int x=0; x<reader.getSizeX(); x+=tile) {
+        int w = Math.min(tile, reader.getSizeX() - x);
+        int h = Math.min(tile, reader.getSizeY() - y);
+        byte[] actual = reader.openBytes(2, buf, x, y, w, h);
+        int size = w * h * 2;
+        assertTrue(Arrays.equals(expected.openBytes(2, x, y, w, h),
+          Arrays.copyOf(actual, size)));
+      }
+    }
+    assertEquals(2, reader.getMissCount());
+    assertEquals(7, reader.getHitCount());
+    assertEquals(0, reader.getDiscardCount());
+  }
+
+  @Test
+  public void testRandomAccess() throws Exception {
+    int[] planes = {5, 1, 6, 2, 0};
+    for (int no : planes) {
+      assertTrue(Arrays.equals(expected.openBytes(no), reader.openBytes(no)));
+    }
+    assertEquals(0, reader.getPrefetchCount());
+    assertEquals(planes.length, reader.getMissCount());
+  }
+
+  @Test
+  public void testPatternChange() throws Exception {
+    reader.openBytes(0);
+    reader.openBytes(1);
+    assertEquals(3, reader.getPrefetchCount());
+    assertTrue(reader.getPrefetchedBytes() > 0);
+
+    // jumping elsewhere discards the planes that were read ahead
+    assertTrue(Arrays.equals(expected.openBytes(6), reader.openBytes(6)));
+    assertEquals(3, reader.getDiscardCount());
+    assertEquals(0, reader.getPrefetchedBytes());
+
+    // a different region of the next plane is not a hit
+    assertTrue(Arrays.equals(expected.openBytes(7, 0, 0, 8, 8),
+      reader.openBytes(7, 0, 0, 8, 8)));
+    assertEquals(0, reader.getHitCount());
+  }
+
+  @Test
+  public void testMemoryLimit() throws Exception {
+    reader.close();
+    int planeSize = 64 * 64 * 2;
+    reader = new PrefetchingReader(
+      new RawPlaneReader(64, 64, 1, FormatTools.UINT16, false, 0, 8),
+      DIRECT, 4, planeSize);
+    reader.setId(file);
+    reader.openBytes(0);
+    reader.openBytes(1);
+    assertEquals(1, reader.getPrefetchCount());
+    assertEquals(planeSize, reader.getPrefetchedBytes());
+    reader.openBytes(2);
+    assertEquals(1, reader.getHitCount());
+    assertEquals(planeSize, reader.getPrefetchedBytes());
+  }
+
+  @Test
+  public void testReopenDiscards() throws Exception {
+    reader.openBytes(0);
+    reader.openBytes(1);
+    assertTrue(reader.getPrefetchedBytes() > 0);
+    reader.close(true);
+    assertEquals(0, reader.getPrefetchedBytes());
+    assertEquals(3, reader.getDiscardCount());
+  }
+
+  @Test
+  public void testCloseWaitsForReadAhead() throws Exception {
+    reader.close();
+    final BlockingReader blocking = new BlockingReader();
+    reader = new PrefetchingReader(blocking);
+    reader.setId(file);
+    reader.openBytes(0);
+    reader.openBytes(1);
+    blocking.started.await();
+
+    Thread closer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          reader.close(true);
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    closer.start();
+    closer.join(200);
+    assertTrue(closer.isAlive());
+    blocking.release.countDown();
+    closer.join();
+    assertTrue(blocking.failures.isEmpty());
+  }
+
+}
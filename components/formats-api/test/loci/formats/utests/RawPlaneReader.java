@@ -0,0 +1,169 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import loci.common.RandomAccessInputStream;
+import loci.formats.CoreMetadata;
+import loci.formats.FormatException;
+import loci.formats.FormatReader;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+
+/**
+ * Reader for uncompressed planes stored one after another following a fixed
+ * size header, with the dimensions given to the constructor.  Test files
+ * are written by {@link #writeFile()}, with a distinct value at each offset.
+ */
+public class RawPlaneReader extends FormatReader {
+
+  /** Number of bytes preceding the first plane. */
+  public static final int HEADER_SIZE = 16;
+
+  private final int sizeX;
+  private final int sizeY;
+  private final int rgbChannels;
+  private final int pixelType;
+  private final boolean interleaved;
+  private final int scanlinePad;
+  private final int planeCount;
+
+  public RawPlaneReader() {
+    this(64, 48, 1, FormatTools.UINT8, false, 0, 1);
+  }
+
+  public RawPlaneReader(int sizeX, int sizeY, int rgbChannels, int pixelType,
+    boolean interleaved, int scanlinePad, int planeCount)
+  {
+    super("Raw planes", "rawplane");
+    this.sizeX = sizeX;
+    this.sizeY = sizeY;
+    this.rgbChannels = rgbChannels;
+    this.pixelType = pixelType;
+    this.interleaved = interleaved;
+    this.scanlinePad = scanlinePad;
+    this.planeCount = planeCount;
+  }
+
+  /** Gets the number of bytes used to store each plane, including padding. */
+  public int getStoredPlaneSize() {
+    return (sizeX + scanlinePad) * sizeY * rgbChannels *
+      FormatTools.getBytesPerPixel(pixelType);
+  }
+
+  /** Writes a temporary file with this reader's dimensions. */
+  public String writeFile() throws IOException {
+    File file = File.createTempFile("raw-plane-reader", ".rawplane");
+    file.deleteOnExit();
+    byte[] data = new byte[HEADER_SIZE + planeCount * getStoredPlaneSize()];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i * 31 + i / 251);
+    }
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(data);
+    out.close();
+    return file.getAbsolutePath();
+  }
+
+  @Override
+  public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
+    in.seek(HEADER_SIZE + (long) no * getStoredPlaneSize());
+    readPlane(in, x, y, w, h, scanlinePad, buf);
+    return buf;
+  }
+
+  @Override
+  public ByteBuffer openBytes(int no, ByteBuffer buf, int x, int y, int w,
+    int h) throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf.remaining(), x, y, w, h);
+    in.seek(HEADER_SIZE + (long) no * getStoredPlaneSize());
+    return readPlane(in, x, y, w, h, scanlinePad, buf);
+  }
+
+  @Override
+  protected void initFile(String id) throws FormatException, IOException {
+    super.initFile(id);
+    in = new RandomAccessInputStream(id);
+    CoreMetadata m = core.get(0);
+    m.sizeX = sizeX;
+    m.sizeY = sizeY;
+    m.sizeZ = planeCount;
+    m.sizeC = rgbChannels;
+    m.sizeT = 1;
+    m.imageCount = planeCount;
+    m.pixelType = pixelType;
+    m.bitsPerPixel = FormatTools.getBytesPerPixel(pixelType) * 8;
+    m.rgb = rgbChannels > 1;
+    m.interleaved = interleaved;
+    m.littleEndian = true;
+    m.dimensionOrder = "XYCZT";
+
+    addGlobalMeta("Header size", HEADER_SIZE);
+    addGlobalMeta("Scanline padding", scanlinePad);
+    MetadataTools.populatePixels(makeFilterMetadata(), this);
+  }
+
+  @Override
+  protected long getPlaneOffset(int no) {
+    return HEADER_SIZE + (long) no * getStoredPlaneSize();
+  }
+
+  @Override
+  protected int getRawScanlinePad() {
+    return scanlinePad;
+  }
+
+  @Override
+  protected boolean isSnapshotSupported() {
+    return true;
+  }
+
+  @Override
+  protected boolean isMappedReadSupported() {
+    return true;
+  }
+
+  @Override
+  protected boolean isShallowCopySupported() {
+    return true;
+  }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.ReaderPool;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.ReaderPool}.
+ */
+public class ReaderPoolTest {
+
+  /** Reader that counts how often each instance is cloned. */
+  public static class CloneCountingReader extends RawPlaneReader {
+    int clones;
+
+    @Override
+    public IFormatReader cloneReader() throws FormatException, IOException {
+      clones++;
+      return super.cloneReader();
+    }
+  }
+
+  private String first;
+  private String second;
+  private ReaderPool pool;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    first = new RawPlaneReader().writeFile();
+    second = new RawPlaneReader().writeFile();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    if (pool != null) pool.close();
+    new File(first).delete();
+    new File(second).delete();
+  }
+
+  @Test
+  public void testReuse() throws Exception {
+    pool = new ReaderPool(RawPlaneReader.class);
+    IFormatReader reader = pool.lease(first);
+    assertEquals(first, reader.getCurrentFile());
+    pool.release(reader);
+    assertSame(reader, pool.lease(first));
+    assertEquals(1, pool.getCreateCount());
+    assertEquals(2, pool.getLeaseCount());
+    assertTrue(pool.getMetadataBytes() > 0);
+  }
+
+  @Test
+  public void testClone() throws Exception {
+    pool = new ReaderPool(RawPlaneReader.class);
+    IFormatReader a = pool.lease(first);
+    IFormatReader b = pool.lease(first);
+    assertNotSame(a, b);
+    assertEquals(1, pool.getCreateCount());
+    assertEquals(1, pool.getCloneCount());
+    assertEquals(2, pool.getOpenReaderCount());
+    assertTrue(Arrays.equals(a.openBytes(0), b.openBytes(0)));
+  }
+
+  @Test
+  public void testLeasedReaderNotCloned() throws Exception {
+    pool = new ReaderPool(CloneCountingReader.class);
+    CloneCountingReader a = (CloneCountingReader) pool.lease(first);
+    // the template is cloned from the new reader before it is leased
+    int clones = a.clones;
+    assertEquals(1, clones);
+
+    IFormatReader b = pool.lease(first);
+    IFormatReader c = pool.lease(first);
+    assertEquals(clones, a.clones);
+    assertEquals(1, pool.getCreateCount());
+    assertEquals(2, pool.getCloneCount());
+    assertEquals(3, pool.getOpenReaderCount());
+    assertTrue(Arrays.equals(a.openBytes(0), c.openBytes(0)));
+
+    // the template survives until the dataset's last reader is closed
+    pool.release(a);
+    pool.release(b);
+    pool.release(c);
+    pool.clear();
+    assertEquals(0, pool.getMetadataBytes());
+    IFormatReader d = pool.lease(first);
+    assertEquals(2, pool.getCreateCount());
+    pool.release(d);
+  }
+
+  @Test
+  public void testCloneUnsupported() throws Exception {
+    pool = new ReaderPool(ImageReaderTest.FooReader.class);
+    pool.lease("test.foo");
+    pool.lease("test.foo");
+    assertEquals(2, pool.getCreateCount());
+    assertEquals(0, pool.getCloneCount());
+  }
+
+  @Test
+  public void testOpenReaderLimit() throws Exception {
+    pool = new ReaderPool(RawPlaneReader.class, 1,
+      ReaderPool.DEFAULT_MAX_METADATA_BYTES, 0);
+    IFormatReader a = pool.lease(first);
+    byte[] plane = a.openBytes(0);
+    assertNull(pool.lease(second, 10, TimeUnit.MILLISECONDS));
+    assertEquals(1, pool.getTimeoutCount());
+
+    // the idle reader's files are closed to make room
+    pool.release(a);
+    IFormatReader b = pool.lease(second);
+    assertEquals(1, pool.getOpenReaderCount());
+    assertEquals(1, pool.getIdleReaderCount());
+    pool.release(b);
+
+    // and reopened when it is leased again
+    assertSame(a, pool.lease(first));
+    assertTrue(Arrays.equals(plane, a.openBytes(0)));
+    assertEquals(2, pool.getCreateCount());
+  }
+
+  @Test
+  public void testWaitForRelease() throws Exception {
+    pool = new ReaderPool(RawPlaneReader.class, 1,
+      ReaderPool.DEFAULT_MAX_METADATA_BYTES, 0);
+    final IFormatReader reader = pool.lease(first);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<IFormatReader> waiting =
+        executor.submit(new Callable<IFormatReader>() {
+          @Override
+          public IFormatReader call() throws Exception {
+            return pool.lease(first);
+          }
+        });
+      Thread.sleep(50);
+      pool.release(reader);
+      assertSame(reader, waiting.get());
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertTrue(pool.getMaxWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(40));
+    assertTrue(pool.getAverageWaitNanos() > 0);
+  }
+
+  @Test
+  public void testIdleTimeout() throws Exception {
+    pool = new ReaderPool(RawPlaneReader.class, 4,
+      ReaderPool.DEFAULT_MAX_METADATA_BYTES, 1);
+    pool.release(pool.lease(first));
+    Thread.sleep(20);
+    pool.evictIdle();
+    assertEquals(0, pool.getOpenReaderCount());
+    assertEquals(1, pool.getIdleReaderCount());
+  }
+
+  @Test
+  public void testMetadataLimit() throws Exception {
+    pool = new ReaderPool(RawPlaneReader.class, 4, 1, 0);
+    IFormatReader reader = pool.lease(first);
+    pool.release(reader);
+    assertEquals(0, pool.getIdleReaderCount());
+    assertEquals(0, pool.getMetadataBytes());
+    assertEquals(null, reader.getCurrentFile());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testReleaseUnknown() throws IOException {
+    pool = new ReaderPool(RawPlaneReader.class);
+    pool.release(new RawPlaneReader());
+  }
+
+}
@@ -0,0 +1,362 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.ClassList;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.ReaderSnapshot;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.ReaderSnapshot}.
+ */
+public class ReaderSnapshotTest {
+
+  private String id;
+  private String snapshot;
+  private OMEXMLService service;
+
+  /** Reader that counts how often it is initialized. */
+  public static class CountingReader extends RawPlaneReader {
+    int initCount;
+
+    public CountingReader() {
+      super(32, 16, 3, FormatTools.UINT16, true, 0, 4);
+    }
+
+    @Override
+    protected void initFile(String id) throws FormatException, IOException {
+      initCount++;
+      super.initFile(id);
+    }
+  }
+
+  /** Reader whose metadata has repeated keys, stored as lists. */
+  public static class ListReader extends CountingReader {
+    @Override
+    protected void initFile(String id) throws FormatException, IOException {
+      super.initFile(id);
+      addGlobalMetaList("Gain", 1.5);
+      addGlobalMetaList("Gain", 2.5);
+      addSeriesMetaList("Channel", "DAPI");
+      addSeriesMetaList("Channel", "GFP");
+      addSeriesMeta("Exposure", 10);
+    }
+  }
+
+  @BeforeMethod
+  public void setUp() throws DependencyException, IOException {
+    id = new CountingReader().writeFile();
+    snapshot = id + ".snapshot";
+    service = new ServiceFactory().getInstance(OMEXMLService.class);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    new File(snapshot).delete();
+    new File(id).delete();
+  }
+
+  private CountingReader open()
+    throws FormatException, IOException, ServiceException
+  {
+    CountingReader reader = new CountingReader();
+    reader.setMetadataStore(service.createOMEXMLMetadata());
+    ReaderSnapshot.setId(reader, id, snapshot);
+    return reader;
+  }
+
+  @Test
+  public void testRestore()
+    throws FormatException, IOException, ServiceException
+  {
+    CountingReader initialized = open();
+    assertEquals(1, initialized.initCount);
+    assertTrue(new File(snapshot).exists());
+
+    CountingReader restored = open();
+    assertEquals(0, restored.initCount);
+    assertEquals(id, restored.getCurrentFile());
+    assertEquals(initialized.getSizeX(), restored.getSizeX());
+    assertEquals(initialized.getImageCount(), restored.getImageCount());
+    assertEquals(initialized.getPixelType(), restored.getPixelType());
+    assertEquals(initialized.getDimensionOrder(),
+      restored.getDimensionOrder());
+    assertEquals(initialized.isInterleaved(), restored.isInterleaved());
+    assertEquals(initialized.getGlobalMetadata(),
+      restored.getGlobalMetadata());
+    assertEquals(service.getOMEXML((IMetadata)
+      initialized.getMetadataStore()),
+      service.getOMEXML((IMetadata) restored.getMetadataStore()));
+    assertTrue(Arrays.equals(initialized.openBytes(3),
+      restored.openBytes(3)));
+
+    // setId on the restored reader does not initialize it again
+    restored.setId(id);
+    assertEquals(0, restored.initCount);
+    initialized.close();
+    restored.close();
+  }
+
+  @Test
+  public void testModifiedFile()
+    throws FormatException, IOException, ServiceException
+  {
+    open().close();
+    File file = new File(id);
+    assertTrue(file.setLastModified(file.lastModified() - 10000));
+
+    CountingReader reader = open();
+    assertEquals(1, reader.initCount);
+    reader.close();
+
+    // the first reader saved a new snapshot
+    reader = open();
+    assertEquals(0, reader.initCount);
+    reader.close();
+  }
+
+  @Test
+  public void testSettingsMismatch()
+    throws FormatException, IOException, ServiceException
+  {
+    open().close();
+    CountingReader reader = new CountingReader();
+    reader.setMetadataStore(service.createOMEXMLMetadata());
+    reader.setMetadataFiltered(true);
+    assertFalse(ReaderSnapshot.restore(reader, id, snapshot));
+    assertEquals(0, reader.initCount);
+    assertEquals(null, reader.getCurrentFile());
+  }
+
+  @Test
+  public void testCorruptSnapshot()
+    throws FormatException, IOException, ServiceException
+  {
+    FileOutputStream out = new FileOutputStream(snapshot);
+    out.write(new byte[] {1, 2, 3});
+    out.close();
+    assertFalse(ReaderSnapshot.restore(new CountingReader(), id, snapshot));
+  }
+
+  @Test
+  public void testRepeatedKeys()
+    throws FormatException, IOException, ServiceException
+  {
+    ListReader initialized = new ListReader();
+    ReaderSnapshot.setId(initialized, id, snapshot);
+    assertEquals(1, initialized.initCount);
+    ListReader restored = new ListReader();
+    ReaderSnapshot.setId(restored, id, snapshot);
+    assertEquals(0, restored.initCount);
+
+    assertEquals(1.5, restored.getGlobalMetadata().get("Gain #1"));
+    assertEquals(2.5, restored.getGlobalMetadata().get("Gain #2"));
+    assertEquals(initialized.getGlobalMetadata(),
+      restored.getGlobalMetadata());
+    assertEquals("GFP", restored.getSeriesMetadataValue("Channel #2"));
+    assertEquals(initialized.getSeriesMetadata(),
+      restored.getSeriesMetadata());
+    initialized.close();
+    restored.close();
+  }
+
+  @DataProvider(name = "corruptions")
+  public Object[][] createCorruptions() {
+    return new Object[][] {
+      // used file count, core count, reader class length, reader state length
+      {0, -5, 8, 0},
+      {0, Integer.MAX_VALUE, 8, 0},
+      {-3, 0, 8, 0},
+      {1 << 28, 0, 8, 0},
+      {0, 0, -7, 0},
+      {0, 0, Integer.MAX_VALUE, 0},
+      {0, 0, 8, -3},
+      {0, 0, 8, Integer.MAX_VALUE},
+    };
+  }
+
+  @Test(dataProvider = "corruptions")
+  public void testCorruptCounts(int fileCount, int coreCount,
+    int classLength, int stateLength)
+    throws FormatException, IOException, ServiceException
+  {
+    // take the magic number and version from a real snapshot
+    open().close();
+    DataInputStream in = new DataInputStream(
+      new GZIPInputStream(new FileInputStream(snapshot)));
+    int magic = in.readInt();
+    int version = in.readInt();
+    in.close();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(magic);
+    out.writeInt(version);
+    out.writeInt(classLength);
+    out.write(new byte[Math.max(classLength, 0) & 0xff]);
+    for (int i=0; i<2; i++) {
+      out.writeInt(1);
+      out.writeByte('x');
+    }
+    out.writeInt(fileCount);
+    out.writeInt(coreCount);
+    out.writeInt(-1);
+    out.writeInt(-1);
+    out.writeInt(stateLength);
+    out.close();
+    writeSnapshot(bytes.toByteArray());
+
+    CountingReader reader = new CountingReader();
+    assertFalse(ReaderSnapshot.restore(reader, id, snapshot));
+    assertEquals(null, reader.getCurrentFile());
+  }
+
+  @Test
+  public void testCorruptTable()
+    throws FormatException, IOException, ServiceException
+  {
+    open().close();
+    DataInputStream in = new DataInputStream(
+      new GZIPInputStream(new FileInputStream(snapshot)));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      bytes.write(buf, 0, n);
+    }
+    in.close();
+    byte[] valid = bytes.toByteArray();
+
+    // overwrite each int in turn with a bad count or length
+    int[] badValues = {-2, Integer.MAX_VALUE, Integer.MIN_VALUE};
+    for (int offset=8; offset<valid.length - 4; offset+=4) {
+      for (int bad : badValues) {
+        byte[] corrupt = valid.clone();
+        corrupt[offset] = (byte) (bad >>> 24);
+        corrupt[offset + 1] = (byte) (bad >>> 16);
+        corrupt[offset + 2] = (byte) (bad >>> 8);
+        corrupt[offset + 3] = (byte) bad;
+        writeSnapshot(corrupt);
+        CountingReader reader = new CountingReader();
+        reader.setMetadataStore(service.createOMEXMLMetadata());
+        try {
+          ReaderSnapshot.restore(reader, id, snapshot);
+        }
+        catch (FormatException e) {
+          // a readable snapshot with invalid metadata values
+        }
+        finally {
+          reader.close();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRecordedSizeMismatch()
+    throws FormatException, IOException, ServiceException
+  {
+    open().close();
+    byte[] data = readFile(snapshot);
+    // the GZIP trailer ends with the decompressed size, little-endian
+    data[data.length - 4] = 16;
+    data[data.length - 3] = 0;
+    data[data.length - 2] = 0;
+    data[data.length - 1] = 0;
+    FileOutputStream out = new FileOutputStream(snapshot);
+    out.write(data);
+    out.close();
+    assertFalse(ReaderSnapshot.restore(new CountingReader(), id, snapshot));
+  }
+
+  private void writeSnapshot(byte[] data) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+      new GZIPOutputStream(new FileOutputStream(snapshot)));
+    out.write(data);
+    out.close();
+  }
+
+  private static byte[] readFile(String path) throws IOException {
+    File file = new File(path);
+    byte[] data = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    in.readFully(data);
+    in.close();
+    return data;
+  }
+
+  @Test
+  public void testImageReader()
+    throws FormatException, IOException, ServiceException
+  {
+    open().close();
+
+    ClassList<IFormatReader> classes =
+      new ClassList<IFormatReader>(IFormatReader.class);
+    classes.addClass(CountingReader.class);
+    ImageReader reader = new ImageReader(classes);
+    assertTrue(ReaderSnapshot.restore(reader, id, snapshot));
+    assertEquals(0, ((CountingReader) reader.getReader()).initCount);
+    assertEquals(id, reader.getCurrentFile());
+    assertEquals(4, reader.getImageCount());
+    reader.close();
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ReaderWrapper;
+import loci.formats.TileRequest;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.ReaderWrapper}.
+ */
+public class ReaderWrapperTest {
+
+  /**
+   * Wrapper that reverses the order of the planes and inverts the pixels,
+   * overriding only the byte array methods, as most wrappers do.
+   */
+  public static class InvertingWrapper extends ReaderWrapper {
+    public InvertingWrapper(IFormatReader r) { super(r); }
+
+    @Override
+    public byte[] openBytes(int no, int x, int y, int w, int h)
+      throws FormatException, IOException
+    {
+      byte[] buf = new byte[FormatTools.getPlaneSize(this, w, h)];
+      return openBytes(no, buf, x, y, w, h);
+    }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+      throws FormatException, IOException
+    {
+      reader.openBytes(getImageCount() - 1 - no, buf, x, y, w, h);
+      for (int i=0; i<buf.length; i++) {
+        buf[i] = (byte) ~buf[i];
+      }
+      return buf;
+    }
+  }
+
+  private RawPlaneReader raw;
+  private InvertingWrapper reader;
+
+  @BeforeMethod
+  public void setUp() throws FormatException, IOException {
+    raw = new RawPlaneReader(32, 16, 1, FormatTools.UINT8, false, 0, 3);
+    reader = new InvertingWrapper(raw);
+    reader.setId(raw.writeFile());
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    String file = raw.getCurrentFile();
+    reader.close();
+    new File(file).delete();
+  }
+
+  @Test
+  public void testByteBufferUsesWrapper()
+    throws FormatException, IOException
+  {
+    for (int no=0; no<reader.getImageCount(); no++) {
+      byte[] expected = reader.openBytes(no, 4, 2, 9, 7);
+      ByteBuffer buf = ByteBuffer.allocateDirect(expected.length + 5);
+      buf.position(5);
+      reader.openBytes(no, buf, 4, 2, 9, 7);
+      assertEquals(buf.capacity(), buf.position());
+      byte[] actual = new byte[expected.length];
+      buf.position(5);
+      buf.get(actual);
+      assertTrue(Arrays.equals(expected, actual));
+
+      ByteBuffer plane = ByteBuffer.allocate(32 * 16);
+      reader.openBytes(no, plane);
+      assertTrue(Arrays.equals(reader.openBytes(no, 0, 0, 32, 16),
+        plane.array()));
+    }
+  }
+
+  @Test
+  public void testBatchUsesWrapper() throws FormatException, IOException {
+    List<TileRequest> tiles = new ArrayList<TileRequest>();
+    for (int no=0; no<reader.getImageCount(); no++) {
+      tiles.add(new TileRequest(no, 0, 0, 32, 16));
+      tiles.add(new TileRequest(no, 5, 3, 11, 8));
+    }
+    byte[][] batch = reader.openBytes(tiles);
+    assertEquals(tiles.size(), batch.length);
+    for (int i=0; i<batch.length; i++) {
+      TileRequest t = tiles.get(i);
+      assertTrue(Arrays.equals(reader.openBytes(t.no, t.x, t.y, t.w, t.h),
+        batch[i]));
+    }
+  }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * #%L
+ * Top-level reader and writer APIs
+ * %%
+ * Copyright (C) 2015 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.formats.FormatException;
+import loci.formats.SizeClassBufferPool;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.SizeClassBufferPool}.
+ */
+public class SizeClassBufferPoolTest {
+
+  private SizeClassBufferPool pool;
+
+  @BeforeMethod
+  public void setUp() {
+    pool = new SizeClassBufferPool(100);
+  }
+
+  @Test
+  public void testReuse() {
+    byte[] a = pool.acquire(10);
+    assertEquals(10, a.length);
+    a[3] = 7;
+    pool.release(a);
+    assertEquals(10, pool.getRetainedBytes());
+
+    byte[] b = pool.acquire(10);
+    assertTrue(a == b);
+    assertEquals(0, b[3]);
+    assertEquals(0, pool.getRetainedBytes());
+    assertEquals(1, pool.getHitCount());
+    assertEquals(1, pool.getMissCount());
+    assertEquals(0.5, pool.getHitRate(), 0);
+  }
+
+  @Test
+  public void testExactLength() {
+    pool.release(new byte[10]);
+    assertEquals(12, pool.acquire(12).length);
+    assertEquals(0, pool.getHitCount());
+    assertEquals(10, pool.getRetainedBytes());
+  }
+
+  @Test
+  public void testBudget() {
+    pool.release(new byte[40]);
+    pool.release(new byte[30]);
+    pool.release(new byte[30]);
+    assertEquals(100, pool.getRetainedBytes());
+
+    // the least recently used arrays are discarded to make room
+    pool.release(new byte[50]);
+    assertEquals(80, pool.getRetainedBytes());
+    pool.acquire(40);
+    assertEquals(0, pool.getHitCount());
+
+    // arrays larger than the budget are never retained
+    pool.release(new byte[101]);
+    assertEquals(80, pool.getRetainedBytes());
+    pool.clear();
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  @Test
+  public void testReaderAllocation() throws FormatException, IOException {
+    RawPlaneReader reader = new RawPlaneReader();
+    reader.setBufferPool(new SizeClassBufferPool());
+    reader.setId(reader.writeFile());
+    try {
+      byte[] first = reader.openBytes(0, 0, 0, 16, 16);
+      byte[] expected = first.clone();
+      reader.getBufferPool().release(first);
+      byte[] second = reader.openBytes(0, 0, 0, 16, 16);
+      assertTrue(first == second);
+      assertTrue(Arrays.equals(expected, second));
+      assertEquals(1, reader.getBufferPool().getHitCount());
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+}